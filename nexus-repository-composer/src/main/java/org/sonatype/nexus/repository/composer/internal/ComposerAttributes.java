@@ -54,4 +54,25 @@ public final class ComposerAttributes
   public static final String P_VENDOR = "vendor";
 
   public static final String P_PROJECT = "project";
+
+  public static final String P_REWRITE_KEY = "rewrite_key";
+
+  /**
+   * Asset attributes kept outside of the format attributes, which are indexed for search and shown in the UI.
+   */
+  public static final String P_COMPOSER_METADATA = "composer_metadata";
+
+  public static final String P_COMPOSER_JSON = "composer_json";
+
+  /**
+   * Dist URLs of the versions listed in a proxied provider or package JSON, kept in its {@link #P_COMPOSER_METADATA}
+   * attributes keyed by package name and version.
+   */
+  public static final String P_DIST_URLS = "dist_urls";
+
+  /**
+   * Flag kept in the {@link #P_COMPOSER_METADATA} attributes of a proxied zipball whose format attribute extraction
+   * was deferred when it was stored.
+   */
+  public static final String P_EXTRACTION_PENDING = "extraction_pending";
 }
@@ -0,0 +1,100 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2018-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.repository.composer.internal;
+
+import javax.annotation.Nullable;
+
+import org.sonatype.nexus.repository.view.Payload;
+import org.sonatype.nexus.repository.view.payloads.TempBlob;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * A single zipball of a bulk upload, already streamed into a temporary blob, together with the vendor/project/version
+ * and source information it is stored under.
+ */
+public class ComposerBulkUploadEntry
+{
+  private final String vendor;
+
+  private final String project;
+
+  private final String version;
+
+  @Nullable
+  private final String sourceType;
+
+  @Nullable
+  private final String sourceUrl;
+
+  @Nullable
+  private final String sourceReference;
+
+  private final TempBlob tempBlob;
+
+  private final Payload payload;
+
+  public ComposerBulkUploadEntry(final String vendor,
+                                 final String project,
+                                 final String version,
+                                 @Nullable final String sourceType,
+                                 @Nullable final String sourceUrl,
+                                 @Nullable final String sourceReference,
+                                 final TempBlob tempBlob,
+                                 final Payload payload)
+  {
+    this.vendor = checkNotNull(vendor);
+    this.project = checkNotNull(project);
+    this.version = checkNotNull(version);
+    this.sourceType = sourceType;
+    this.sourceUrl = sourceUrl;
+    this.sourceReference = sourceReference;
+    this.tempBlob = checkNotNull(tempBlob);
+    this.payload = checkNotNull(payload);
+  }
+
+  public String getVendor() {
+    return vendor;
+  }
+
+  public String getProject() {
+    return project;
+  }
+
+  public String getVersion() {
+    return version;
+  }
+
+  @Nullable
+  public String getSourceType() {
+    return sourceType;
+  }
+
+  @Nullable
+  public String getSourceUrl() {
+    return sourceUrl;
+  }
+
+  @Nullable
+  public String getSourceReference() {
+    return sourceReference;
+  }
+
+  public TempBlob getTempBlob() {
+    return tempBlob;
+  }
+
+  public Payload getPayload() {
+    return payload;
+  }
+}
@@ -13,6 +13,7 @@
 package org.sonatype.nexus.repository.composer.internal;
 
 import java.io.IOException;
+import java.util.List;
 
 import javax.annotation.Nullable;
 
@@ -20,6 +21,7 @@ import org.sonatype.nexus.repository.Facet;
 import org.sonatype.nexus.repository.cache.CacheInfo;
 import org.sonatype.nexus.repository.view.Content;
 import org.sonatype.nexus.repository.view.Payload;
+import org.sonatype.nexus.repository.view.payloads.TempBlob;
 
 /**
  * Content facet used for getting assets from storage and putting assets into storage for a Composer-format repository.
@@ -33,8 +35,70 @@ public interface ComposerContentFacet
 
   Content put(String path, Payload payload, AssetKind assetKind) throws IOException;
 
+  /**
+   * Stores JSON metadata produced by the writer, piping it straight into a temporary blob rather than holding the
+   * document in memory. The writer runs on the calling thread.
+   */
+  Content put(String path, ComposerJsonWriter writer, AssetKind assetKind) throws IOException;
+
   Content put(String path, Payload payload, String sourceType, String sourceUrl, String sourceReference)
       throws IOException;
 
+  /**
+   * Stores a zipball that has already been streamed into a temporary blob (see {@link #createUploadBlob}). The payload
+   * is only consulted for its content type and attributes.
+   */
+  Content put(String path,
+              TempBlob tempBlob,
+              Payload payload,
+              String sourceType,
+              String sourceUrl,
+              String sourceReference) throws IOException;
+
+  /**
+   * Streams an uploaded zipball into a temporary blob while its hashes are computed, failing as soon as more than the
+   * maximum upload size configured for the repository has been read.
+   */
+  TempBlob createUploadBlob(Payload payload) throws IOException;
+
+  /**
+   * Extracts the format attributes of a stored zipball whose extraction was deferred when it was stored (see
+   * {@link ComposerAttributes#P_EXTRACTION_PENDING}). Returns whether an asset awaiting extraction was found.
+   */
+  boolean extractFormatAttributes(String path) throws IOException;
+
+  /**
+   * Returns the paths of the stored zipballs whose format attribute extraction is still pending, for instance because
+   * the repository was stopped before it ran.
+   */
+  List<String> findPendingExtractions();
+
   void setCacheInfo(String path, Content content, CacheInfo cacheInfo) throws IOException;
+
+  /**
+   * Returns the dist URL of a package version recorded when the proxied provider or package JSON at the given path was
+   * stored (see {@link ComposerAttributes#P_DIST_URLS}), or {@code null} if the document is missing or does not list
+   * the version.
+   */
+  @Nullable
+  String getDistUrl(String path, String packageName, String version);
+
+  /**
+   * Returns the rewritten metadata stored at the given path, or {@code null} if it is missing or was rendered for a
+   * different rewrite key.
+   */
+  @Nullable
+  Content getRewritten(String path, String rewriteKey) throws IOException;
+
+  /**
+   * Stores rewritten metadata at the given path, recording the rewrite key it was rendered for.
+   */
+  Content putRewritten(String path, Payload payload, AssetKind assetKind, String rewriteKey) throws IOException;
+
+  /**
+   * Stores rewritten metadata produced by the writer (see {@link #put(String, ComposerJsonWriter, AssetKind)}),
+   * recording the rewrite key it was rendered for.
+   */
+  Content putRewritten(String path, ComposerJsonWriter writer, AssetKind assetKind, String rewriteKey)
+      throws IOException;
 }
@@ -12,9 +12,22 @@
  */
 package org.sonatype.nexus.repository.composer.internal;
 
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.Nullable;
 import javax.inject.Inject;
@@ -22,38 +35,59 @@ import javax.inject.Named;
 
 import org.sonatype.nexus.blobstore.api.Blob;
 import org.sonatype.nexus.common.hash.HashAlgorithm;
+import org.sonatype.nexus.common.stateguard.Guarded;
 import org.sonatype.nexus.repository.FacetSupport;
 import org.sonatype.nexus.repository.Format;
+import org.sonatype.nexus.repository.InvalidContentException;
 import org.sonatype.nexus.repository.cache.CacheInfo;
 import org.sonatype.nexus.repository.config.Configuration;
 import org.sonatype.nexus.repository.storage.Asset;
 import org.sonatype.nexus.repository.storage.AssetBlob;
+import org.sonatype.nexus.repository.storage.AssetDeletedEvent;
 import org.sonatype.nexus.repository.storage.Bucket;
 import org.sonatype.nexus.repository.storage.Component;
 import org.sonatype.nexus.repository.storage.Query;
 import org.sonatype.nexus.repository.storage.StorageFacet;
 import org.sonatype.nexus.repository.storage.StorageTx;
+import org.sonatype.nexus.repository.transaction.TransactionalDeleteBlob;
 import org.sonatype.nexus.repository.transaction.TransactionalStoreBlob;
 import org.sonatype.nexus.repository.transaction.TransactionalStoreMetadata;
 import org.sonatype.nexus.repository.transaction.TransactionalTouchBlob;
 import org.sonatype.nexus.repository.transaction.TransactionalTouchMetadata;
+import org.sonatype.nexus.repository.types.ProxyType;
 import org.sonatype.nexus.repository.view.Content;
+import org.sonatype.nexus.repository.view.ContentTypes;
 import org.sonatype.nexus.repository.view.Payload;
 import org.sonatype.nexus.repository.view.payloads.BlobPayload;
 import org.sonatype.nexus.repository.view.payloads.TempBlob;
 import org.sonatype.nexus.transaction.UnitOfWork;
 
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Throwables;
+import com.google.common.eventbus.AllowConcurrentEvents;
+import com.google.common.eventbus.Subscribe;
+import com.google.common.hash.HashCode;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
 import static com.google.common.base.Preconditions.checkNotNull;
 import static java.util.Collections.singletonList;
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.sonatype.nexus.common.hash.HashAlgorithm.MD5;
 import static org.sonatype.nexus.common.hash.HashAlgorithm.SHA1;
 import static org.sonatype.nexus.common.hash.HashAlgorithm.SHA256;
+import static org.sonatype.nexus.common.stateguard.StateGuardLifecycleSupport.State.STARTED;
+import static org.sonatype.nexus.repository.composer.internal.ComposerAttributes.P_COMPOSER_METADATA;
+import static org.sonatype.nexus.repository.composer.internal.ComposerAttributes.P_DIST_URLS;
+import static org.sonatype.nexus.repository.composer.internal.ComposerAttributes.P_EXTRACTION_PENDING;
 import static org.sonatype.nexus.repository.composer.internal.ComposerAttributes.P_PROJECT;
+import static org.sonatype.nexus.repository.composer.internal.ComposerAttributes.P_REWRITE_KEY;
 import static org.sonatype.nexus.repository.composer.internal.ComposerAttributes.P_VENDOR;
+import static org.sonatype.nexus.repository.composer.internal.ComposerPathUtils.buildRewrittenPath;
 import static org.sonatype.nexus.repository.composer.internal.ComposerRecipeSupport.*;
 import static org.sonatype.nexus.repository.storage.AssetEntityAdapter.P_ASSET_KIND;
 import static org.sonatype.nexus.repository.storage.ComponentEntityAdapter.P_GROUP;
 import static org.sonatype.nexus.repository.storage.ComponentEntityAdapter.P_VERSION;
+import static org.sonatype.nexus.repository.storage.MetadataNodeEntityAdapter.P_ATTRIBUTES;
 import static org.sonatype.nexus.repository.storage.MetadataNodeEntityAdapter.P_NAME;
 
 /**
@@ -66,16 +100,40 @@ public class ComposerContentFacetImpl
 {
   private static final List<HashAlgorithm> hashAlgorithms = Arrays.asList(MD5, SHA1, SHA256);
 
+  public static final String COMPOSER_CONFIG_KEY = "composer";
+
+  /**
+   * Maximum size in bytes of an uploaded zipball, unlimited when not configured.
+   */
+  public static final String MAX_UPLOAD_SIZE = "maxUploadSize";
+
+  private static final int PIPE_BUFFER_SIZE = 64 * 1024;
+
   private final Format format;
 
   private final ComposerFormatAttributesExtractor composerFormatAttributesExtractor;
 
+  private final ComposerJsonProcessor composerJsonProcessor;
+
+  /**
+   * Number of metadata writes skipped because the content was unchanged.
+   */
+  private final AtomicLong skippedMetadataWriteCount = new AtomicLong();
+
+  /**
+   * Reads the documents generated by {@link ComposerJsonWriter}s into temporary blobs while the writer, which may need
+   * the caller's transaction, runs on the calling thread.
+   */
+  private ThreadPoolExecutor tempBlobExecutor;
+
   @Inject
   public ComposerContentFacetImpl(@Named(ComposerFormat.NAME) final Format format,
-                                  final ComposerFormatAttributesExtractor composerFormatAttributesExtractor)
+                                  final ComposerFormatAttributesExtractor composerFormatAttributesExtractor,
+                                  final ComposerJsonProcessor composerJsonProcessor)
   {
     this.format = checkNotNull(format);
     this.composerFormatAttributesExtractor = checkNotNull(composerFormatAttributesExtractor);
+    this.composerJsonProcessor = checkNotNull(composerJsonProcessor);
   }
 
   @Override
@@ -84,6 +142,23 @@ public class ComposerContentFacetImpl
     getRepository().facet(StorageFacet.class).registerWritePolicySelector(new ComposerWritePolicySelector());
   }
 
+  @Override
+  protected void doStart() throws Exception {
+    super.doStart();
+    tempBlobExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60L, SECONDS, new SynchronousQueue<>(),
+        new ThreadFactoryBuilder().setDaemon(true)
+            .setNameFormat("composer-json-" + getRepository().getName() + "-%d").build());
+  }
+
+  @Override
+  protected void doStop() throws Exception {
+    if (tempBlobExecutor != null) {
+      tempBlobExecutor.shutdown();
+      tempBlobExecutor = null;
+    }
+    super.doStop();
+  }
+
   @Nullable
   @Override
   @TransactionalTouchBlob
@@ -110,28 +185,124 @@ public class ComposerContentFacetImpl
         case ZIPBALL:
           return doPutContent(path, tempBlob, payload, assetKind, null, null, null);
         case PACKAGES:
-          return doPutMetadata(path, tempBlob, payload, assetKind);
+          return doPutMetadata(path, tempBlob, payload, assetKind, null);
         case PACKAGE:
-          return doPutMetadata(path, tempBlob, payload, assetKind);
+          return doPutMetadata(path, tempBlob, payload, assetKind, null);
         case LIST:
-          return doPutMetadata(path, tempBlob, payload, assetKind);
+          return doPutMetadata(path, tempBlob, payload, assetKind, null);
         case PROVIDER:
-          return doPutMetadata(path, tempBlob, payload, assetKind);
+          return doPutMetadata(path, tempBlob, payload, assetKind, null);
         default:
           throw new IllegalStateException("Unexpected asset kind: " + assetKind);
       }
     }
   }
 
+  @Override
+  public Content put(final String path, final ComposerJsonWriter writer, final AssetKind assetKind)
+      throws IOException
+  {
+    try (TempBlob tempBlob = createTempBlob(writer)) {
+      Content content = new Content(new BlobPayload(tempBlob.getBlob(), ContentTypes.APPLICATION_JSON));
+      return doPutMetadata(path, tempBlob, content, assetKind, null);
+    }
+  }
+
+  /**
+   * Pipes the document produced by the writer straight into a temporary blob. The blob is read from the pipe on a
+   * separate thread; if either side fails the pipe is closed so the other side does not wait on it.
+   */
+  private TempBlob createTempBlob(final ComposerJsonWriter writer) throws IOException {
+    ThreadPoolExecutor executor = tempBlobExecutor;
+    if (executor == null) {
+      throw new IllegalStateException("Content facet of repository " + getRepository().getName() + " is not started");
+    }
+    StorageFacet storageFacet = facet(StorageFacet.class);
+    PipedInputStream in = new PipedInputStream(PIPE_BUFFER_SIZE);
+    Future<TempBlob> future;
+    try (OutputStream out = new PipedOutputStream(in)) {
+      future = executor.submit(() -> {
+        try (InputStream input = in) {
+          return storageFacet.createTempBlob(input, hashAlgorithms);
+        }
+      });
+      try {
+        writer.writeTo(out);
+      }
+      catch (IOException | RuntimeException e) {
+        // fails the blob being read instead of completing it with a truncated document
+        in.close();
+        discard(future, e);
+        throw e;
+      }
+    }
+    try {
+      return future.get();
+    }
+    catch (InterruptedException e) {
+      discard(future, e);
+      Thread.currentThread().interrupt();
+      throw new IOException(e);
+    }
+    catch (ExecutionException e) {
+      Throwables.throwIfInstanceOf(e.getCause(), IOException.class);
+      Throwables.throwIfUnchecked(e.getCause());
+      throw new IOException(e.getCause());
+    }
+  }
+
+  /**
+   * Waits for the reading side of a failed write, releasing its temporary blob should it have been created regardless
+   * and keeping its own failure (which may be the cause of the write failing) with the write failure.
+   */
+  private void discard(final Future<TempBlob> future, final Exception failure) {
+    try {
+      future.get().close();
+    }
+    catch (ExecutionException e) {
+      failure.addSuppressed(e.getCause());
+    }
+    catch (Exception e) {
+      failure.addSuppressed(e);
+    }
+  }
+
   @Override
   public Content put(final String path, final Payload payload, final String sourceType, final String sourceUrl,
                      final String sourceReference) throws IOException {
+    try (TempBlob tempBlob = createUploadBlob(payload)) {
+      return put(path, tempBlob, payload, sourceType, sourceUrl, sourceReference);
+    }
+  }
+
+  @Override
+  public Content put(final String path,
+                     final TempBlob tempBlob,
+                     final Payload payload,
+                     final String sourceType,
+                     final String sourceUrl,
+                     final String sourceReference) throws IOException
+  {
+    return doPutContent(path, tempBlob, payload, AssetKind.ZIPBALL, sourceType, sourceUrl, sourceReference);
+  }
+
+  @Override
+  public TempBlob createUploadBlob(final Payload payload) throws IOException {
     StorageFacet storageFacet = facet(StorageFacet.class);
-    try (TempBlob tempBlob = storageFacet.createTempBlob(payload, hashAlgorithms)) {
-      return doPutContent(path, tempBlob, payload, AssetKind.ZIPBALL, sourceType, sourceUrl, sourceReference);
+    long maxUploadSize = getMaxUploadSize();
+    try (InputStream in = payload.openInputStream()) {
+      return storageFacet.createTempBlob(maxUploadSize > 0 ? new MaxUploadSizeInputStream(in, maxUploadSize) : in,
+          hashAlgorithms);
     }
   }
 
+  private long getMaxUploadSize() {
+    Configuration configuration = getRepository().getConfiguration();
+    Number maxUploadSize = configuration != null ?
+        configuration.attributes(COMPOSER_CONFIG_KEY).get(MAX_UPLOAD_SIZE, Number.class) : null;
+    return maxUploadSize != null ? maxUploadSize.longValue() : 0L;
+  }
+
   @Override
   @TransactionalTouchMetadata
   public void setCacheInfo(final String path, final Content content, final CacheInfo cacheInfo) throws IOException {
@@ -148,11 +319,113 @@ public class ComposerContentFacetImpl
     tx.saveAsset(asset);
   }
 
+  @Nullable
+  @Override
+  @TransactionalTouchMetadata
+  public String getDistUrl(final String path, final String packageName, final String version) {
+    StorageTx tx = UnitOfWork.currentTx();
+
+    Asset asset = findAsset(tx, path);
+    if (asset == null || !asset.attributes().contains(P_COMPOSER_METADATA)) {
+      return null;
+    }
+    Map<?, ?> distUrls = asset.attributes().child(P_COMPOSER_METADATA).get(P_DIST_URLS, Map.class);
+    Object packageDistUrls = distUrls != null ? distUrls.get(packageName) : null;
+    Object distUrl = packageDistUrls instanceof Map ? ((Map<?, ?>) packageDistUrls).get(version) : null;
+    return distUrl instanceof String ? (String) distUrl : null;
+  }
+
+  @Nullable
+  @Override
+  @TransactionalTouchBlob
+  public Content getRewritten(final String path, final String rewriteKey) throws IOException {
+    StorageTx tx = UnitOfWork.currentTx();
+
+    final Asset asset = findAsset(tx, path);
+    if (asset == null || !rewriteKey.equals(asset.formatAttributes().get(P_REWRITE_KEY, String.class))) {
+      return null;
+    }
+    if (asset.markAsDownloaded()) {
+      tx.saveAsset(asset);
+    }
+
+    final Blob blob = tx.requireBlob(asset.requireBlobRef());
+    return toContent(asset, blob);
+  }
+
+  @Override
+  public Content putRewritten(final String path,
+                              final Payload payload,
+                              final AssetKind assetKind,
+                              final String rewriteKey) throws IOException
+  {
+    StorageFacet storageFacet = facet(StorageFacet.class);
+    try (TempBlob tempBlob = storageFacet.createTempBlob(payload, hashAlgorithms)) {
+      return doPutMetadata(path, tempBlob, payload, assetKind, checkNotNull(rewriteKey));
+    }
+  }
+
+  @Override
+  public Content putRewritten(final String path,
+                              final ComposerJsonWriter writer,
+                              final AssetKind assetKind,
+                              final String rewriteKey) throws IOException
+  {
+    try (TempBlob tempBlob = createTempBlob(writer)) {
+      Content content = new Content(new BlobPayload(tempBlob.getBlob(), ContentTypes.APPLICATION_JSON));
+      return doPutMetadata(path, tempBlob, content, assetKind, checkNotNull(rewriteKey));
+    }
+  }
+
+  /**
+   * Deletes the rewritten variant stored next to a proxied metadata file when the raw file is deleted, whether by a
+   * cleanup policy, a user or the repository being emptied. A refreshed raw file needs no cleanup as the variant is
+   * keyed by the checksum of the raw content and so is rendered again on the next request.
+   */
+  @Subscribe
+  @Guarded(by = STARTED)
+  @AllowConcurrentEvents
+  public void on(final AssetDeletedEvent deleted) {
+    if (!deleted.isLocal() || !getRepository().getName().equals(deleted.getRepositoryName())) {
+      return;
+    }
+    Asset asset = deleted.getAsset();
+    String assetKind = asset.formatAttributes().get(P_ASSET_KIND, String.class);
+    if (asset.name() == null || asset.formatAttributes().contains(P_REWRITE_KEY) ||
+        !(AssetKind.PROVIDER.name().equals(assetKind) || AssetKind.PACKAGE.name().equals(assetKind))) {
+      return;
+    }
+    UnitOfWork.begin(facet(StorageFacet.class).txSupplier());
+    try {
+      deleteRewritten(buildRewrittenPath(asset.name()));
+    }
+    catch (Exception e) {
+      log.warn("Unable to delete the rewritten variant of {} in repository {}", asset.name(),
+          getRepository().getName(), e);
+    }
+    finally {
+      UnitOfWork.end();
+    }
+  }
+
+  @TransactionalDeleteBlob
+  protected boolean deleteRewritten(final String path) {
+    StorageTx tx = UnitOfWork.currentTx();
+
+    Asset asset = findAsset(tx, path);
+    if (asset == null) {
+      return false;
+    }
+    tx.deleteAsset(asset);
+    return true;
+  }
+
   @TransactionalStoreBlob
   protected Content doPutMetadata(final String path,
                                   final TempBlob tempBlob,
                                   final Payload payload,
-                                  final AssetKind assetKind)
+                                  final AssetKind assetKind,
+                                  @Nullable final String rewriteKey)
       throws IOException
   {
     StorageTx tx = UnitOfWork.currentTx();
@@ -160,11 +433,27 @@ public class ComposerContentFacetImpl
     Asset asset = getOrCreateAsset(path);
 
     asset.formatAttributes().set(P_ASSET_KIND, assetKind.toString());
+    if (rewriteKey != null) {
+      asset.formatAttributes().set(P_REWRITE_KEY, rewriteKey);
+    }
 
     if (payload instanceof Content) {
       Content.applyToAsset(asset, Content.maintainLastModified(asset, ((Content) payload).getAttributes()));
     }
 
+    boolean unchanged = isUnchanged(asset, tempBlob, payload);
+    if (rewriteKey == null && isDistUrlSource(assetKind) &&
+        (!unchanged || !asset.attributes().contains(P_COMPOSER_METADATA))) {
+      recordDistUrls(path, asset, tempBlob);
+    }
+
+    if (unchanged) {
+      // identical metadata, only the asset (cache info, last downloaded) needs updating
+      skippedMetadataWriteCount.incrementAndGet();
+      tx.saveAsset(asset);
+      return toContent(asset, tx.requireBlob(asset.requireBlobRef()));
+    }
+
     AssetBlob assetBlob = tx.setBlob(
         asset,
         path,
@@ -179,6 +468,48 @@ public class ComposerContentFacetImpl
     return toContent(asset, assetBlob.getBlob());
   }
 
+  /**
+   * Returns whether the dist URLs listed in metadata of the given kind are recorded when it is stored. Only the raw
+   * provider and package JSON of a proxy list the upstream URLs zipballs are fetched from.
+   */
+  private boolean isDistUrlSource(final AssetKind assetKind) {
+    return getRepository().getType() instanceof ProxyType &&
+        (assetKind == AssetKind.PROVIDER || assetKind == AssetKind.PACKAGE);
+  }
+
+  /**
+   * Records the dist URL of each version listed in the stored document, so that zipball downloads are resolved from
+   * the asset attributes (see {@link #getDistUrl}) rather than by reading the document again. A document that cannot
+   * be read keeps no dist URLs, the zipball URL is then looked up in the document itself.
+   */
+  private void recordDistUrls(final String path, final Asset asset, final TempBlob tempBlob) {
+    asset.attributes().remove(P_COMPOSER_METADATA);
+    try (InputStream in = tempBlob.get()) {
+      asset.attributes().child(P_COMPOSER_METADATA).set(P_DIST_URLS, composerJsonProcessor.readDistUrls(in));
+    }
+    catch (Exception e) {
+      asset.attributes().remove(P_COMPOSER_METADATA);
+      log.warn("Unable to record the dist URLs listed in {} of repository {}", path, getRepository().getName(), e);
+    }
+  }
+
+  /**
+   * Returns whether the asset already holds a blob with the same SHA-256 and content type as the new payload.
+   */
+  private boolean isUnchanged(final Asset asset, final TempBlob tempBlob, final Payload payload) {
+    if (asset.blobRef() == null || tempBlob.getHashes() == null) {
+      return false;
+    }
+    HashCode current = asset.getChecksum(SHA256);
+    return current != null && current.equals(tempBlob.getHashes().get(SHA256)) &&
+        Objects.equals(asset.contentType(), payload.getContentType());
+  }
+
+  @VisibleForTesting
+  long getSkippedMetadataWriteCount() {
+    return skippedMetadataWriteCount.get();
+  }
+
   @TransactionalStoreMetadata
   public Asset getOrCreateAsset(final String path) {
     final StorageTx tx = UnitOfWork.currentTx();
@@ -229,6 +560,7 @@ public class ComposerContentFacetImpl
 
     try {
       asset.formatAttributes().clear();
+      asset.attributes().remove(P_COMPOSER_METADATA);
       asset.formatAttributes().set(P_ASSET_KIND, assetKind.toString());
       asset.formatAttributes().set(P_VENDOR, group);
       asset.formatAttributes().set(P_PROJECT, name);
@@ -236,7 +568,14 @@ public class ComposerContentFacetImpl
       asset.formatAttributes().set(SOURCE_TYPE_FIELD_NAME, sourceType);
       asset.formatAttributes().set(SOURCE_URL_FIELD_NAME, sourceUrl);
       asset.formatAttributes().set(SOURCE_REFERENCE_FIELD_NAME, sourceReference);
-      composerFormatAttributesExtractor.extractFromZip(tempBlob, asset.formatAttributes());
+      if (getRepository().getType() instanceof ProxyType) {
+        // a client is waiting for the proxied zipball, so the archive is read once it has been stored
+        asset.attributes().child(P_COMPOSER_METADATA).set(P_EXTRACTION_PENDING, true);
+      }
+      else {
+        composerFormatAttributesExtractor.extractFromZip(tempBlob, asset.formatAttributes(),
+            asset.attributes().child(P_COMPOSER_METADATA));
+      }
     }
     catch (Exception e) {
       log.error("Error extracting format attributes for {}, skipping", path, e);
@@ -247,6 +586,51 @@ public class ComposerContentFacetImpl
     return toContent(asset, assetBlob.getBlob());
   }
 
+  @Override
+  @TransactionalStoreMetadata
+  public boolean extractFormatAttributes(final String path) throws IOException {
+    StorageTx tx = UnitOfWork.currentTx();
+
+    Asset asset = findAsset(tx, path);
+    if (asset == null || !isExtractionPending(asset) || asset.blobRef() == null) {
+      return false;
+    }
+
+    asset.attributes().child(P_COMPOSER_METADATA).remove(P_EXTRACTION_PENDING);
+    try {
+      composerFormatAttributesExtractor.extractFromZip(tx.requireBlob(asset.requireBlobRef()),
+          asset.formatAttributes(), asset.attributes().child(P_COMPOSER_METADATA));
+    }
+    catch (Exception e) {
+      log.error("Error extracting format attributes for {}, skipping", path, e);
+    }
+
+    tx.saveAsset(asset);
+    return true;
+  }
+
+  @Override
+  @TransactionalTouchMetadata
+  public List<String> findPendingExtractions() {
+    StorageTx tx = UnitOfWork.currentTx();
+    List<String> paths = new ArrayList<>();
+    Query query = Query.builder()
+        .where(P_ATTRIBUTES + "." + P_COMPOSER_METADATA + "." + P_EXTRACTION_PENDING).eq(true)
+        .build();
+    for (Asset asset : tx.findAssets(query, singletonList(getRepository()))) {
+      paths.add(asset.name());
+    }
+    return paths;
+  }
+
+  /**
+   * Returns whether the format attribute extraction of a stored zipball was deferred and has not run yet.
+   */
+  static boolean isExtractionPending(final Asset asset) {
+    return asset.attributes().contains(P_COMPOSER_METADATA) &&
+        Boolean.TRUE.equals(asset.attributes().child(P_COMPOSER_METADATA).get(P_EXTRACTION_PENDING));
+  }
+
   @TransactionalStoreMetadata
   public Asset getOrCreateAsset(final String path,
                                 final String group,
@@ -297,4 +681,57 @@ public class ComposerContentFacetImpl
     Content.extractFromAsset(asset, hashAlgorithms, content.getAttributes());
     return content;
   }
+
+  /**
+   * Input stream failing the upload as soon as more than the allowed number of bytes has been read from it.
+   */
+  private static class MaxUploadSizeInputStream
+      extends FilterInputStream
+  {
+    private final long maxSize;
+
+    private long count;
+
+    MaxUploadSizeInputStream(final InputStream in, final long maxSize) {
+      super(in);
+      this.maxSize = maxSize;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b != -1) {
+        count(1);
+      }
+      return b;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+      int n = super.read(b, off, len);
+      if (n > 0) {
+        count(n);
+      }
+      return n;
+    }
+
+    @Override
+    public long skip(final long n) throws IOException {
+      long skipped = super.skip(n);
+      count(skipped);
+      return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+
+    private void count(final long n) {
+      count += n;
+      if (count > maxSize) {
+        throw new InvalidContentException("Upload exceeds the maximum size of " + maxSize + " bytes");
+      }
+    }
+  }
 }
@@ -23,9 +23,11 @@ import javax.inject.Named;
 import javax.inject.Singleton;
 
 import org.sonatype.goodies.common.ComponentSupport;
+import org.sonatype.nexus.blobstore.api.Blob;
 import org.sonatype.nexus.common.collect.NestedAttributesMap;
 import org.sonatype.nexus.repository.view.payloads.TempBlob;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableMap;
 
@@ -104,6 +106,8 @@ public class ComposerFormatAttributesExtractor
       .put(SUPPORT_RSS, P_SUPPORT_RSS)
       .build();
 
+  private final ObjectMapper mapper = new ObjectMapper();
+
   private ComposerJsonExtractor composerJsonExtractor;
 
   @Inject
@@ -114,14 +118,33 @@ public class ComposerFormatAttributesExtractor
   /**
    * Populates an asset's format attributes with the content contained in a composer.json file in the zip archive. This
    * does not extract all JSON entries, but does try to extract those that could be viewed as more "interesting" from
-   * the standpoint of the repository manager.
+   * the standpoint of the repository manager. The fields that go into a version entry of the generated metadata are
+   * also kept as a compact JSON string in the metadata attributes, which unlike the format attributes are neither
+   * indexed nor shown, so the archive and its composer.json are only read once, when the zipball is stored, and
+   * metadata can later be rebuilt from that entry.
    */
-  public void extractFromZip(final TempBlob tempBlob, final NestedAttributesMap formatAttributes) throws IOException {
-    Map<String, Object> contents = composerJsonExtractor.extractFromZip(tempBlob.getBlob());
+  public void extractFromZip(final TempBlob tempBlob,
+                             final NestedAttributesMap formatAttributes,
+                             final NestedAttributesMap metadataAttributes) throws IOException
+  {
+    extractFromZip(tempBlob.getBlob(), formatAttributes, metadataAttributes);
+  }
+
+  /**
+   * Populates an asset's format and metadata attributes from the composer.json in the zip archive as above, reading a
+   * blob that has already been stored.
+   */
+  public void extractFromZip(final Blob blob,
+                             final NestedAttributesMap formatAttributes,
+                             final NestedAttributesMap metadataAttributes) throws IOException
+  {
+    Map<String, Object> contents = composerJsonExtractor.extractFromZip(blob);
     if (!contents.isEmpty()) {
       extractStrings(contents, formatAttributes, STRINGS_MAPPING);
       extractAuthors(contents, formatAttributes);
       extractSupport(contents, formatAttributes);
+      Map<String, Object> versionInfo = ComposerJsonProcessor.extractVersionInfo(contents);
+      metadataAttributes.set(P_COMPOSER_JSON, mapper.writeValueAsString(versionInfo));
     }
   }
 
@@ -0,0 +1,117 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2018-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.repository.composer.internal;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor.CallerRunsPolicy;
+
+import javax.annotation.Nullable;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.sonatype.goodies.lifecycle.LifecycleSupport;
+import org.sonatype.nexus.common.app.BaseUrlHolder;
+import org.sonatype.nexus.common.app.ManagedLifecycle;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.shiro.subject.Subject;
+import org.apache.shiro.util.ThreadContext;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.sonatype.nexus.common.app.ManagedLifecycle.Phase.SERVICES;
+
+/**
+ * Runs the member dispatches of Composer group requests, shared by all group merging handlers. Tasks run as the
+ * subject and with the base URL of the request that submitted them. Tasks submitted while the executor is not running
+ * are run on the calling thread.
+ */
+@Named
+@Singleton
+@ManagedLifecycle(phase = SERVICES)
+public class ComposerGroupMemberExecutor
+    extends LifecycleSupport
+{
+  private static final int MEMBER_THREADS = 8;
+
+  private static final int MEMBER_QUEUE_SIZE = 100;
+
+  private static final long STOP_TIMEOUT_SECONDS = 30;
+
+  @Nullable
+  private volatile ThreadPoolExecutor executor;
+
+  @Override
+  protected void doStart() throws Exception {
+    ThreadPoolExecutor started = new ThreadPoolExecutor(MEMBER_THREADS, MEMBER_THREADS, 60L, SECONDS,
+        new ArrayBlockingQueue<>(MEMBER_QUEUE_SIZE),
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("composer-group-member-%d").build(),
+        new CallerRunsPolicy());
+    started.allowCoreThreadTimeOut(true);
+    executor = started;
+  }
+
+  @Override
+  protected void doStop() throws Exception {
+    ThreadPoolExecutor stopped = executor;
+    executor = null;
+    if (stopped != null) {
+      stopped.shutdownNow();
+      if (!stopped.awaitTermination(STOP_TIMEOUT_SECONDS, SECONDS)) {
+        log.warn("Composer group member dispatches did not finish within {} seconds", STOP_TIMEOUT_SECONDS);
+      }
+    }
+  }
+
+  /**
+   * Submits the task to run as the current subject and with the current base URL.
+   */
+  public <T> Future<T> submit(final Callable<T> task) {
+    Callable<T> bound = bindBaseUrl(task);
+    Subject subject = ThreadContext.getSubject();
+    if (subject != null) {
+      bound = subject.associateWith(bound);
+    }
+    ThreadPoolExecutor current = executor;
+    if (current == null || current.isShutdown()) {
+      FutureTask<T> future = new FutureTask<>(bound);
+      future.run();
+      return future;
+    }
+    return current.submit(bound);
+  }
+
+  private static <T> Callable<T> bindBaseUrl(final Callable<T> task) {
+    String baseUrl = BaseUrlHolder.isSet() ? BaseUrlHolder.get() : null;
+    if (baseUrl == null) {
+      return task;
+    }
+    return () -> {
+      boolean held = !BaseUrlHolder.isSet();
+      if (held) {
+        BaseUrlHolder.set(baseUrl);
+      }
+      try {
+        return task.call();
+      }
+      finally {
+        if (held) {
+          BaseUrlHolder.unset();
+        }
+      }
+    };
+  }
+}
@@ -0,0 +1,141 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2018-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.repository.composer.internal;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+
+import javax.annotation.Nullable;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.sonatype.nexus.repository.Repository;
+import org.sonatype.nexus.repository.group.GroupFacet;
+import org.sonatype.nexus.repository.view.Context;
+import org.sonatype.nexus.repository.view.matchers.token.TokenMatcher;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import static java.util.stream.Collectors.toList;
+import static org.sonatype.nexus.repository.composer.internal.ComposerRecipeSupport.PROJECT_TOKEN;
+import static org.sonatype.nexus.repository.composer.internal.ComposerRecipeSupport.VENDOR_TOKEN;
+import static org.sonatype.nexus.repository.composer.internal.ComposerRecipeSupport.VERSION_TOKEN;
+
+/**
+ * Index of the first group member, in group order, known to serve each version of a vendor/project, learned from
+ * zipball downloads that probed the members in order. Group zipball requests go straight to that member rather than
+ * probing the members before it again. All versions of a vendor/project are forgotten once the group merges new
+ * metadata for it, as an earlier member may have gained a version, and an entry is ignored once the members of the
+ * group or their order change.
+ */
+@Named
+@Singleton
+public class ComposerGroupMemberIndex
+{
+  private static final int MAXIMUM_SIZE = 50000;
+
+  private final Cache<String, ConcurrentMap<String, IndexedMember>> packages = CacheBuilder.newBuilder()
+      .maximumSize(MAXIMUM_SIZE)
+      .build();
+
+  /**
+   * Records the member found first in group order to have the version addressed by the request, if the request
+   * addresses one.
+   */
+  public void put(final Context context, final Repository member) {
+    String key = buildKey(context);
+    String version = getToken(context, VERSION_TOKEN);
+    if (key == null || version == null) {
+      return;
+    }
+    try {
+      packages.get(key, ConcurrentHashMap::new).put(version, new IndexedMember(member.getName(), memberNames(context)));
+    }
+    catch (ExecutionException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Returns the member of the group found first in group order to have the version addressed by the request, if any.
+   */
+  @Nullable
+  public Repository get(final Context context) {
+    String key = buildKey(context);
+    String version = getToken(context, VERSION_TOKEN);
+    ConcurrentMap<String, IndexedMember> versions = key != null ? packages.getIfPresent(key) : null;
+    IndexedMember indexed = versions != null && version != null ? versions.get(version) : null;
+    if (indexed == null) {
+      return null;
+    }
+    List<Repository> members = context.getRepository().facet(GroupFacet.class).members();
+    if (indexed.members.equals(memberNames(members))) {
+      for (Repository member : members) {
+        if (indexed.name.equals(member.getName())) {
+          return member;
+        }
+      }
+    }
+    versions.remove(version, indexed);
+    return null;
+  }
+
+  /**
+   * Forgets the members indexed for all versions of the vendor/project addressed by the request.
+   */
+  public void invalidate(final Context context) {
+    String key = buildKey(context);
+    if (key != null) {
+      packages.invalidate(key);
+    }
+  }
+
+  @Nullable
+  private String buildKey(final Context context) {
+    String vendor = getToken(context, VENDOR_TOKEN);
+    String project = getToken(context, PROJECT_TOKEN);
+    if (vendor == null || project == null) {
+      return null;
+    }
+    return context.getRepository().getName() + ":" + vendor + "/" + project;
+  }
+
+  @Nullable
+  private String getToken(final Context context, final String name) {
+    TokenMatcher.State state = context.getAttributes().get(TokenMatcher.State.class);
+    return state != null ? state.getTokens().get(name) : null;
+  }
+
+  private List<String> memberNames(final Context context) {
+    return memberNames(context.getRepository().facet(GroupFacet.class).members());
+  }
+
+  private List<String> memberNames(final List<Repository> members) {
+    return members.stream().map(Repository::getName).collect(toList());
+  }
+
+  private static class IndexedMember
+  {
+    private final String name;
+
+    private final List<String> members;
+
+    IndexedMember(final String name, final List<String> members) {
+      this.name = name;
+      this.members = members;
+    }
+  }
+}
@@ -12,32 +12,101 @@
  */
 package org.sonatype.nexus.repository.composer.internal;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.Map.Entry;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeoutException;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
+import org.sonatype.nexus.common.hash.HashAlgorithm;
 import org.sonatype.nexus.repository.Repository;
+import org.sonatype.nexus.repository.config.Configuration;
 import org.sonatype.nexus.repository.group.GroupFacet;
 import org.sonatype.nexus.repository.group.GroupHandler;
 import org.sonatype.nexus.repository.http.HttpResponses;
 import org.sonatype.nexus.repository.http.HttpStatus;
+import org.sonatype.nexus.repository.storage.StorageFacet;
 import org.sonatype.nexus.repository.view.Content;
 import org.sonatype.nexus.repository.view.Context;
 import org.sonatype.nexus.repository.view.Payload;
+import org.sonatype.nexus.repository.view.Request;
 import org.sonatype.nexus.repository.view.Response;
+import org.sonatype.nexus.repository.view.ViewFacet;
+import org.sonatype.nexus.repository.view.payloads.BytesPayload;
+import org.sonatype.nexus.transaction.UnitOfWork;
 
+import com.google.common.base.Throwables;
+import com.google.common.io.ByteStreams;
+
+import static java.util.Collections.emptyMap;
+import static java.util.Collections.singletonMap;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.sonatype.nexus.repository.http.HttpConditions.makeConditional;
 import static org.sonatype.nexus.repository.http.HttpConditions.makeUnconditional;
 
 /**
  * Abstract handler for merging in the context of a Composer group repository, with merging left to concrete
- * implementations of the class.
+ * implementations of the class. Members are queried concurrently and their responses merged in member order once all
+ * of them are in; a member that does not respond within the configured timeout is left out of the merge. The merged
+ * document is stored keyed by the checksums of the member documents, so it is only merged again once one of them
+ * changes. Handlers for per-package documents can instead serve the first member's document under the first-match
+ * merge policy.
  */
 public abstract class ComposerGroupMergingHandler
     extends GroupHandler
 {
+  public static final String COMPOSER_CONFIG_KEY = "composer";
+
+  public static final String MEMBER_TIMEOUT = "memberTimeout";
+
+  /**
+   * Group configuration selecting how per-package documents are merged. The default merges all members' documents;
+   * {@link #FIRST_MATCH} serves the document of the first member that has the package without querying the others.
+   */
+  public static final String MERGE_POLICY = "mergePolicy";
+
+  public static final String FIRST_MATCH = "firstMatch";
+
+  private static final long DEFAULT_MEMBER_TIMEOUT_SECONDS = 60;
+
+  /**
+   * Set on member dispatch threads so nested groups query their own members inline rather than waiting on the pool
+   * that is running them.
+   */
+  private static final ThreadLocal<Boolean> MEMBER_DISPATCH = new ThreadLocal<>();
+
+  private final ComposerGroupMemberExecutor memberExecutor;
+
+  @Nullable
+  private final ComposerGroupMemberIndex memberIndex;
+
+  protected ComposerGroupMergingHandler(final ComposerGroupMemberExecutor memberExecutor) {
+    this(memberExecutor, null);
+  }
+
+  /**
+   * @param memberIndex index of the members serving each version of a vendor/project, to invalidate when the
+   *                    handler merges new per-package documents
+   */
+  protected ComposerGroupMergingHandler(final ComposerGroupMemberExecutor memberExecutor,
+                                        @Nullable final ComposerGroupMemberIndex memberIndex)
+  {
+    this.memberExecutor = checkNotNull(memberExecutor);
+    this.memberIndex = memberIndex;
+  }
+
   @Override
   protected final Response doGet(@Nonnull final Context context,
                                  @Nonnull final GroupHandler.DispatchedRepositories dispatched)
@@ -45,25 +114,248 @@ public abstract class ComposerGroupMergingHandler
   {
     Repository repository = context.getRepository();
     GroupFacet groupFacet = repository.facet(GroupFacet.class);
+    boolean firstMatch = supportsFirstMatch() && FIRST_MATCH.equals(getMergePolicy(repository));
 
     makeUnconditional(context.getRequest());
     Map<Repository, Response> responses;
     try {
-      responses = getAll(context, groupFacet.members(), dispatched);
+      responses = firstMatch ?
+          getFirstMatch(context, groupFacet.members(), dispatched) :
+          getAllConcurrently(context, groupFacet.members(), dispatched);
     }
     finally {
       makeConditional(context.getRequest());
     }
 
-    List<Payload> payloads = responses.values().stream()
-        .filter(response -> response.getStatus().getCode() == HttpStatus.OK && response.getPayload() != null)
-        .map(Response::getPayload)
-        .collect(Collectors.toList());
+    Map<Repository, Payload> payloads = new LinkedHashMap<>();
+    responses.forEach((member, response) -> {
+      if (response.getStatus().getCode() == HttpStatus.OK && response.getPayload() != null) {
+        payloads.put(member, response.getPayload());
+      }
+    });
     if (payloads.isEmpty()) {
       return notFoundResponse(context);
     }
-    return HttpResponses.ok(merge(repository, payloads));
+    String mergeKey = buildMergeKey(repository, payloads, firstMatch);
+    if (mergeKey == null) {
+      invalidateMemberIndex(context);
+      return HttpResponses.ok(doMerge(repository, payloads, firstMatch));
+    }
+    return HttpResponses.ok(getOrMerge(context, payloads, firstMatch, mergeKey));
   }
 
+  private Content doMerge(final Repository repository,
+                          final Map<Repository, Payload> payloads,
+                          final boolean firstMatch) throws Exception
+  {
+    if (firstMatch) {
+      Payload payload = payloads.values().iterator().next();
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      rewriteFirstMatch(repository, payload, out);
+      return new Content(new BytesPayload(out.toByteArray(), payload.getContentType()));
+    }
+    return merge(repository, new ArrayList<>(payloads.values()));
+  }
+
+  /**
+   * Dispatches the request to the members in order, stopping at the first one that has the document.
+   */
+  private Map<Repository, Response> getFirstMatch(final Context context,
+                                                  final List<Repository> members,
+                                                  final GroupHandler.DispatchedRepositories dispatched)
+      throws Exception
+  {
+    for (Repository member : members) {
+      if (dispatched.contains(member)) {
+        log.trace("Skipping already dispatched member: {}", member);
+        continue;
+      }
+      dispatched.add(member);
+      Response response = member.facet(ViewFacet.class).dispatch(context.getRequest(), context);
+      if (response.getStatus().getCode() == HttpStatus.OK && response.getPayload() != null) {
+        return singletonMap(member, response);
+      }
+    }
+    return emptyMap();
+  }
+
+  /**
+   * Returns the merged document stored for the given member fingerprints, merging and storing it if the members'
+   * content has changed since it was last merged.
+   */
+  private Content getOrMerge(final Context context,
+                             final Map<Repository, Payload> payloads,
+                             final boolean firstMatch,
+                             final String mergeKey) throws Exception
+  {
+    Repository repository = context.getRepository();
+    ComposerContentFacet content = repository.facet(ComposerContentFacet.class);
+    String path = getPath(context);
+    UnitOfWork.begin(repository.facet(StorageFacet.class).txSupplier());
+    try {
+      Content merged = content.getRewritten(path, mergeKey);
+      if (merged == null) {
+        invalidateMemberIndex(context);
+        AssetKind assetKind = context.getAttributes().require(AssetKind.class);
+        if (firstMatch) {
+          Payload payload = payloads.values().iterator().next();
+          merged = content.putRewritten(path, out -> rewriteFirstMatch(repository, payload, out), assetKind, mergeKey);
+        }
+        else {
+          merged = content.putRewritten(path, doMerge(repository, payloads, false), assetKind, mergeKey);
+        }
+      }
+      return merged;
+    }
+    finally {
+      UnitOfWork.end();
+    }
+  }
+
+  /**
+   * Forgets the members indexed for the package once its documents change, as an earlier member may now have a version
+   * that was indexed for a later one.
+   */
+  private void invalidateMemberIndex(final Context context) {
+    if (memberIndex != null) {
+      memberIndex.invalidate(context);
+    }
+  }
+
+  /**
+   * Builds a key identifying the merge inputs from each member's content checksum (or etag when no checksum is
+   * known) and the merge policy. Returns {@code null} if any member's content cannot be identified, in which case the
+   * merge is not stored.
+   */
+  @Nullable
+  private String buildMergeKey(final Repository repository,
+                               final Map<Repository, Payload> payloads,
+                               final boolean firstMatch)
+  {
+    StringBuilder key = new StringBuilder(repository.getUrl());
+    if (firstMatch) {
+      key.append('#').append(FIRST_MATCH);
+    }
+    for (Entry<Repository, Payload> entry : payloads.entrySet()) {
+      if (!(entry.getValue() instanceof Content)) {
+        return null;
+      }
+      Content content = (Content) entry.getValue();
+      Map<?, ?> hashCodes = content.getAttributes().get(Content.CONTENT_HASH_CODES_MAP, Map.class);
+      Object sourceKey = hashCodes != null ? hashCodes.get(HashAlgorithm.SHA1) : null;
+      if (sourceKey == null) {
+        sourceKey = content.getAttributes().get(Content.CONTENT_ETAG, String.class);
+      }
+      if (sourceKey == null) {
+        return null;
+      }
+      key.append('@').append(entry.getKey().getName()).append('=').append(sourceKey);
+    }
+    return key.toString();
+  }
+
+  /**
+   * Dispatches the request to all members not yet dispatched to at the same time, returning the responses in member
+   * order. Each member gets its own copy of the context, as the dispatches run on separate threads and may outlive
+   * the group request when they time out. Members that time out are logged and left out.
+   */
+  private Map<Repository, Response> getAllConcurrently(final Context context,
+                                                       final List<Repository> members,
+                                                       final GroupHandler.DispatchedRepositories dispatched)
+      throws Exception
+  {
+    if (members.size() <= 1 || Boolean.TRUE.equals(MEMBER_DISPATCH.get())) {
+      return getAll(context, members, dispatched);
+    }
+
+    Map<Repository, Future<Response>> futures = new LinkedHashMap<>();
+    for (Repository member : members) {
+      if (dispatched.contains(member)) {
+        log.trace("Skipping already dispatched member: {}", member);
+        continue;
+      }
+      dispatched.add(member);
+      Context memberContext = copyContext(context);
+      futures.put(member, memberExecutor.submit(() -> {
+        MEMBER_DISPATCH.set(true);
+        try {
+          return member.facet(ViewFacet.class).dispatch(memberContext.getRequest(), memberContext);
+        }
+        finally {
+          MEMBER_DISPATCH.remove();
+        }
+      }));
+    }
+
+    long deadline = System.currentTimeMillis() + getMemberTimeout(context.getRepository());
+    Map<Repository, Response> responses = new LinkedHashMap<>();
+    try {
+      for (Entry<Repository, Future<Response>> entry : futures.entrySet()) {
+        try {
+          long remaining = Math.max(0, deadline - System.currentTimeMillis());
+          responses.put(entry.getKey(), entry.getValue().get(remaining, MILLISECONDS));
+        }
+        catch (TimeoutException e) {
+          log.warn("Member {} of group {} did not respond in time, leaving it out", entry.getKey().getName(),
+              context.getRepository().getName());
+        }
+        catch (ExecutionException e) {
+          Throwables.throwIfInstanceOf(e.getCause(), Exception.class);
+          Throwables.throwIfUnchecked(e.getCause());
+          throw e;
+        }
+      }
+    }
+    finally {
+      futures.values().forEach(future -> future.cancel(true));
+    }
+    return responses;
+  }
+
+  private static Context copyContext(final Context context) {
+    Context copy = new Context(context.getRepository(), new Request.Builder().copy(context.getRequest()).build());
+    copy.getAttributes().backing().putAll(context.getAttributes().backing());
+    return copy;
+  }
+
+  @Nullable
+  private String getMergePolicy(final Repository repository) {
+    Configuration configuration = repository.getConfiguration();
+    return configuration != null ?
+        configuration.attributes(COMPOSER_CONFIG_KEY).get(MERGE_POLICY, String.class) : null;
+  }
+
+  private long getMemberTimeout(final Repository repository) {
+    Configuration configuration = repository.getConfiguration();
+    Number timeout = configuration != null ?
+        configuration.attributes(COMPOSER_CONFIG_KEY).get(MEMBER_TIMEOUT, Number.class) : null;
+    return SECONDS.toMillis(timeout != null ? timeout.longValue() : DEFAULT_MEMBER_TIMEOUT_SECONDS);
+  }
+
+  /**
+   * Whether the handler can serve the first member's document on its own under the first-match merge policy.
+   */
+  protected boolean supportsFirstMatch() {
+    return false;
+  }
+
+  /**
+   * Rewrites the document of the first member that has it for the group under the first-match merge policy into the
+   * output stream. The default copies the member's document as is; handlers supporting first match rewrite it for the
+   * group.
+   */
+  protected void rewriteFirstMatch(final Repository repository, final Payload payload, final OutputStream out)
+      throws IOException
+  {
+    try (InputStream in = payload.openInputStream()) {
+      ByteStreams.copy(in, out);
+    }
+  }
+
+  /**
+   * Returns the path the merged document is stored at in the group repository.
+   */
+  protected abstract String getPath(Context context);
+
   protected abstract Content merge(final Repository repository, final List<Payload> payloads) throws Exception;
 }
@@ -15,15 +15,18 @@ package org.sonatype.nexus.repository.composer.internal;
 import org.joda.time.DateTime;
 import org.sonatype.nexus.repository.Repository;
 import org.sonatype.nexus.repository.view.Content;
+import org.sonatype.nexus.repository.view.Context;
 import org.sonatype.nexus.repository.view.Payload;
 
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.inject.Singleton;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.List;
 
 import static com.google.common.base.Preconditions.checkNotNull;
+import static org.sonatype.nexus.repository.composer.internal.ComposerPathUtils.buildPackagePath;
 
 /**
  * Handler for merging package JSON files together.
@@ -36,10 +39,31 @@ public class ComposerGroupPackageJsonHandler
   private final ComposerJsonProcessor composerJsonProcessor;
 
   @Inject
-  public ComposerGroupPackageJsonHandler(final ComposerJsonProcessor composerJsonProcessor) {
+  public ComposerGroupPackageJsonHandler(final ComposerJsonProcessor composerJsonProcessor,
+                                         final ComposerGroupMemberExecutor memberExecutor,
+                                         final ComposerGroupMemberIndex memberIndex)
+  {
+    super(memberExecutor, checkNotNull(memberIndex));
     this.composerJsonProcessor = checkNotNull(composerJsonProcessor);
   }
 
+  @Override
+  protected String getPath(final Context context) {
+    return buildPackagePath(context);
+  }
+
+  @Override
+  protected boolean supportsFirstMatch() {
+    return true;
+  }
+
+  @Override
+  protected void rewriteFirstMatch(final Repository repository, final Payload payload, final OutputStream out)
+      throws IOException
+  {
+    composerJsonProcessor.rewritePackageJson(repository, payload, out);
+  }
+
   @Override
   protected Content merge(final Repository repository, final List<Payload> payloads) throws IOException {
     return composerJsonProcessor.mergePackageJson(repository, payloads, DateTime.now());
@@ -20,6 +20,7 @@ import javax.inject.Singleton;
 
 import org.sonatype.nexus.repository.Repository;
 import org.sonatype.nexus.repository.view.Content;
+import org.sonatype.nexus.repository.view.Context;
 import org.sonatype.nexus.repository.view.Payload;
 
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -32,13 +33,23 @@ import static com.google.common.base.Preconditions.checkNotNull;
 public class ComposerGroupPackagesJsonHandler
     extends ComposerGroupMergingHandler
 {
+  private static final String PACKAGES_JSON = "packages.json";
+
   private final ComposerJsonProcessor composerJsonProcessor;
 
   @Inject
-  public ComposerGroupPackagesJsonHandler(final ComposerJsonProcessor composerJsonProcessor) {
+  public ComposerGroupPackagesJsonHandler(final ComposerJsonProcessor composerJsonProcessor,
+                                          final ComposerGroupMemberExecutor memberExecutor)
+  {
+    super(memberExecutor);
     this.composerJsonProcessor = checkNotNull(composerJsonProcessor);
   }
 
+  @Override
+  protected String getPath(final Context context) {
+    return PACKAGES_JSON;
+  }
+
   @Override
   protected Content merge(final Repository repository, final List<Payload> payloads) throws Exception {
     return composerJsonProcessor.mergePackagesJson(repository, payloads);
@@ -13,6 +13,7 @@
 package org.sonatype.nexus.repository.composer.internal;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.List;
 
 import javax.inject.Inject;
@@ -21,11 +22,13 @@ import javax.inject.Singleton;
 
 import org.sonatype.nexus.repository.Repository;
 import org.sonatype.nexus.repository.view.Content;
+import org.sonatype.nexus.repository.view.Context;
 import org.sonatype.nexus.repository.view.Payload;
 
 import org.joda.time.DateTime;
 
 import static com.google.common.base.Preconditions.checkNotNull;
+import static org.sonatype.nexus.repository.composer.internal.ComposerPathUtils.buildProviderPath;
 
 /**
  * Handler for merging provider JSON files together.
@@ -38,10 +41,31 @@ public class ComposerGroupProviderJsonHandler
   private final ComposerJsonProcessor composerJsonProcessor;
 
   @Inject
-  public ComposerGroupProviderJsonHandler(final ComposerJsonProcessor composerJsonProcessor) {
+  public ComposerGroupProviderJsonHandler(final ComposerJsonProcessor composerJsonProcessor,
+                                          final ComposerGroupMemberExecutor memberExecutor,
+                                          final ComposerGroupMemberIndex memberIndex)
+  {
+    super(memberExecutor, checkNotNull(memberIndex));
     this.composerJsonProcessor = checkNotNull(composerJsonProcessor);
   }
 
+  @Override
+  protected String getPath(final Context context) {
+    return buildProviderPath(context);
+  }
+
+  @Override
+  protected boolean supportsFirstMatch() {
+    return true;
+  }
+
+  @Override
+  protected void rewriteFirstMatch(final Repository repository, final Payload payload, final OutputStream out)
+      throws IOException
+  {
+    super.rewriteFirstMatch(repository, composerJsonProcessor.rewriteProviderJson(repository, payload), out);
+  }
+
   @Override
   protected Content merge(final Repository repository, final List<Payload> payloads) throws IOException {
     return composerJsonProcessor.mergeProviderJson(repository, payloads, DateTime.now());
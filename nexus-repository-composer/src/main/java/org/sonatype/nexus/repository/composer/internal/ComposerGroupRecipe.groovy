@@ -22,7 +22,6 @@ import org.sonatype.nexus.repository.Format
 import org.sonatype.nexus.repository.Repository
 import org.sonatype.nexus.repository.Type
 import org.sonatype.nexus.repository.group.GroupFacetImpl
-import org.sonatype.nexus.repository.group.GroupHandler
 import org.sonatype.nexus.repository.http.HttpHandlers
 import org.sonatype.nexus.repository.types.GroupType
 import org.sonatype.nexus.repository.view.ConfigurableViewFacet
@@ -43,7 +42,7 @@ class ComposerGroupRecipe
   Provider<GroupFacetImpl> groupFacet
 
   @Inject
-  GroupHandler standardGroupHandler
+  ComposerGroupZipballHandler zipballHandler
 
   @Inject
   ComposerGroupPackagesJsonHandler packagesJsonHandler
@@ -63,6 +62,7 @@ class ComposerGroupRecipe
   void apply(@Nonnull final Repository repository) throws Exception {
     repository.attach(groupFacet.get())
     repository.attach(storageFacet.get())
+    repository.attach(contentFacet.get())
     repository.attach(securityFacet.get())
     repository.attach(configure(viewFacet.get()))
     repository.attach(attributesFacet.get())
@@ -80,6 +80,8 @@ class ComposerGroupRecipe
         .handler(securityHandler)
         .handler(exceptionHandler)
         .handler(handlerContributor)
+        .handler(conditionalRequestHandler)
+        .handler(contentHeadersHandler)
         .handler(packagesJsonHandler)
         .create())
 
@@ -89,6 +91,8 @@ class ComposerGroupRecipe
         .handler(securityHandler)
         .handler(exceptionHandler)
         .handler(handlerContributor)
+        .handler(conditionalRequestHandler)
+        .handler(contentHeadersHandler)
         .handler(providerJsonHandler)
         .create())
 
@@ -98,6 +102,8 @@ class ComposerGroupRecipe
             .handler(securityHandler)
             .handler(exceptionHandler)
             .handler(handlerContributor)
+            .handler(conditionalRequestHandler)
+            .handler(contentHeadersHandler)
             .handler(packageJsonHandler)
             .create())
 
@@ -107,7 +113,7 @@ class ComposerGroupRecipe
         .handler(securityHandler)
         .handler(exceptionHandler)
         .handler(handlerContributor)
-        .handler(standardGroupHandler)
+        .handler(zipballHandler)
         .create())
 
     addBrowseUnsupportedRoute(builder)
@@ -0,0 +1,94 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2018-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.repository.composer.internal;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.sonatype.nexus.repository.Repository;
+import org.sonatype.nexus.repository.group.GroupFacet;
+import org.sonatype.nexus.repository.group.GroupHandler;
+import org.sonatype.nexus.repository.view.Context;
+import org.sonatype.nexus.repository.view.Response;
+import org.sonatype.nexus.repository.view.ViewFacet;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Handler for zipball downloads from a Composer group repository. The members are probed in order and the first one
+ * serving the zipball is indexed for its version, so that later requests for the same version go straight to it. An
+ * indexed member that no longer serves the version is dropped from the index and the members are probed in order.
+ */
+@Named
+@Singleton
+public class ComposerGroupZipballHandler
+    extends GroupHandler
+{
+  private final ComposerGroupMemberIndex memberIndex;
+
+  /**
+   * Number of zipball requests served by the indexed member without probing the others.
+   */
+  private final AtomicLong indexHitCount = new AtomicLong();
+
+  @Inject
+  public ComposerGroupZipballHandler(final ComposerGroupMemberIndex memberIndex) {
+    this.memberIndex = checkNotNull(memberIndex);
+  }
+
+  @Override
+  protected Response doGet(@Nonnull final Context context,
+                           @Nonnull final GroupHandler.DispatchedRepositories dispatched)
+      throws Exception
+  {
+    Repository indexed = memberIndex.get(context);
+    if (indexed != null && !dispatched.contains(indexed)) {
+      dispatched.add(indexed);
+      Response response = dispatch(context, indexed);
+      if (response.getStatus().isSuccessful()) {
+        indexHitCount.incrementAndGet();
+        return response;
+      }
+      memberIndex.invalidate(context);
+    }
+
+    for (Repository member : context.getRepository().facet(GroupFacet.class).members()) {
+      if (dispatched.contains(member)) {
+        log.trace("Skipping already dispatched member: {}", member);
+        continue;
+      }
+      dispatched.add(member);
+      Response response = dispatch(context, member);
+      if (response.getStatus().isSuccessful()) {
+        memberIndex.put(context, member);
+        return response;
+      }
+    }
+    return notFoundResponse(context);
+  }
+
+  private Response dispatch(final Context context, final Repository member) throws Exception {
+    return member.facet(ViewFacet.class).dispatch(context.getRequest(), context);
+  }
+
+  @VisibleForTesting
+  long getIndexHitCount() {
+    return indexHitCount.get();
+  }
+}
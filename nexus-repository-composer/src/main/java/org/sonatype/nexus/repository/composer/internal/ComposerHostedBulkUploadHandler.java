@@ -0,0 +1,237 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2018-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.repository.composer.internal;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.Nonnull;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.sonatype.goodies.common.ComponentSupport;
+import org.sonatype.nexus.repository.InvalidContentException;
+import org.sonatype.nexus.repository.Repository;
+import org.sonatype.nexus.repository.http.HttpResponses;
+import org.sonatype.nexus.repository.security.ContentPermissionChecker;
+import org.sonatype.nexus.repository.security.VariableResolverAdapter;
+import org.sonatype.nexus.repository.view.Context;
+import org.sonatype.nexus.repository.view.Handler;
+import org.sonatype.nexus.repository.view.PartPayload;
+import org.sonatype.nexus.repository.view.Request;
+import org.sonatype.nexus.repository.view.Response;
+import org.sonatype.nexus.selector.VariableSource;
+
+import org.apache.shiro.authz.AuthorizationException;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static org.sonatype.nexus.repository.composer.internal.ComposerPathUtils.buildZipballPath;
+import static org.sonatype.nexus.repository.composer.internal.ComposerHostedUploadHandler.readPartStreamToString;
+import static org.sonatype.nexus.repository.composer.internal.ComposerRecipeSupport.*;
+import static org.sonatype.nexus.security.BreadActions.EDIT;
+
+/**
+ * Bulk upload handler for Composer hosted repositories. The request is a multipart stream of any number of zipballs,
+ * each {@code package} part being preceded by the {@code vendor}, {@code project} and {@code version} fields (and
+ * optionally the {@code src-type}, {@code src-url} and {@code src-ref} fields) it is stored under. The zipballs are
+ * stored in batches, one transaction per batch, and the metadata of every package touched is rebuilt once after the
+ * last batch. The request only needs to be permitted to the upload path, so each zipball is checked against the
+ * content selectors for the path it is stored at before it is read.
+ * <p>
+ * The request is not atomic: each batch is committed once it is full, so if a later part is rejected or fails to be
+ * stored, the batches committed before remain in the repository (with their metadata rebuilt) while the rest of the
+ * request is discarded. The error returned for a rejected part then states how many zipballs were already stored, so
+ * the client can resume the upload after them.
+ */
+@Named
+@Singleton
+public class ComposerHostedBulkUploadHandler
+    extends ComponentSupport
+    implements Handler
+{
+  static final int BATCH_SIZE = 100;
+
+  private final ContentPermissionChecker contentPermissionChecker;
+
+  private final VariableResolverAdapter variableResolverAdapter;
+
+  @Inject
+  public ComposerHostedBulkUploadHandler(final ContentPermissionChecker contentPermissionChecker,
+                                         @Named("simple") final VariableResolverAdapter variableResolverAdapter)
+  {
+    this.contentPermissionChecker = checkNotNull(contentPermissionChecker);
+    this.variableResolverAdapter = checkNotNull(variableResolverAdapter);
+  }
+
+  @Nonnull
+  @Override
+  public Response handle(@Nonnull final Context context) throws Exception {
+    Request request = checkNotNull(context.getRequest());
+    if (!request.isMultipart() || request.getMultiparts() == null) {
+      return HttpResponses.badRequest("Bulk upload requires a multipart request");
+    }
+
+    Repository repository = context.getRepository();
+    ComposerHostedFacet hostedFacet = repository.facet(ComposerHostedFacet.class);
+    ComposerHostedMetadataFacet metadataFacet = repository.facet(ComposerHostedMetadataFacet.class);
+
+    List<ComposerBulkUploadEntry> batch = new ArrayList<>(BATCH_SIZE);
+    Set<String> heldPackages = new LinkedHashSet<>();
+    int uploaded = 0;
+    try {
+      PartFields fields = new PartFields();
+      for (PartPayload part : request.getMultiparts()) {
+        if (PACKAGE_FIELD_NAME.equals(part.getFieldName())) {
+          ComposerBulkUploadEntry entry = fields.toEntry(repository, part);
+          batch.add(entry);
+          if (heldPackages.add(entry.getVendor() + "/" + entry.getProject())) {
+            metadataFacet.holdRebuild(entry.getVendor(), entry.getProject());
+          }
+          fields = new PartFields();
+          if (batch.size() == BATCH_SIZE) {
+            uploaded += store(hostedFacet, batch);
+          }
+        }
+        else {
+          fields.set(part.getFieldName(), readPartStreamToString(part));
+        }
+      }
+      uploaded += store(hostedFacet, batch);
+    }
+    catch (InvalidContentException e) {
+      throw uploaded > 0 ? new InvalidContentException(partiallyStored(e, uploaded), e) : e;
+    }
+    catch (AuthorizationException e) {
+      throw uploaded > 0 ? new AuthorizationException(partiallyStored(e, uploaded), e) : e;
+    }
+    catch (Exception e) {
+      if (uploaded > 0) {
+        log.warn("Bulk upload to repository {} failed after storing {} zipballs", repository.getName(), uploaded);
+      }
+      throw e;
+    }
+    finally {
+      close(batch);
+      for (String heldPackage : heldPackages) {
+        String[] vendorAndProject = heldPackage.split("/", 2);
+        metadataFacet.releaseRebuild(vendorAndProject[0], vendorAndProject[1]);
+      }
+    }
+    log.debug("Bulk upload of {} zipballs to repository {}", uploaded, repository.getName());
+    return HttpResponses.ok();
+  }
+
+  /**
+   * Stores the batch in a single transaction and releases its temporary blobs, returning the number of zipballs stored.
+   */
+  private int store(final ComposerHostedFacet hostedFacet, final List<ComposerBulkUploadEntry> batch)
+      throws IOException
+  {
+    if (batch.isEmpty()) {
+      return 0;
+    }
+    try {
+      hostedFacet.upload(batch);
+      return batch.size();
+    }
+    finally {
+      close(batch);
+    }
+  }
+
+  /**
+   * Appends the number of zipballs committed before the failure to its message.
+   */
+  private String partiallyStored(final Exception e, final int uploaded) {
+    return e.getMessage() + " (the first " + uploaded + " zipballs of the request were already stored)";
+  }
+
+  private void close(final List<ComposerBulkUploadEntry> batch) {
+    for (ComposerBulkUploadEntry entry : batch) {
+      entry.getTempBlob().close();
+    }
+    batch.clear();
+  }
+
+  /**
+   * Ensures the current user may store a zipball at the path of the given vendor, project and version.
+   */
+  private void ensurePermitted(final Repository repository,
+                               final String vendor,
+                               final String project,
+                               final String version)
+  {
+    String path = "/" + buildZipballPath(vendor, project, version);
+    VariableSource variableSource = variableResolverAdapter.fromPath(path, ComposerFormat.NAME);
+    if (!contentPermissionChecker.isPermitted(repository.getName(), ComposerFormat.NAME, EDIT, variableSource)) {
+      throw new AuthorizationException("Not permitted to upload " + path + " to repository " + repository.getName());
+    }
+  }
+
+  /**
+   * The form fields read since the previous package part, applying to the next one.
+   */
+  private class PartFields
+  {
+    private String vendor;
+
+    private String project;
+
+    private String version;
+
+    private String sourceType;
+
+    private String sourceUrl;
+
+    private String sourceReference;
+
+    void set(final String fieldName, final String value) {
+      if (VENDOR_TOKEN.equals(fieldName)) {
+        vendor = value;
+      }
+      else if (PROJECT_TOKEN.equals(fieldName)) {
+        project = value;
+      }
+      else if (VERSION_TOKEN.equals(fieldName)) {
+        version = value;
+      }
+      else if (SOURCE_TYPE_FIELD_NAME.equals(fieldName)) {
+        sourceType = value;
+      }
+      else if (SOURCE_URL_FIELD_NAME.equals(fieldName)) {
+        sourceUrl = value;
+      }
+      else if (SOURCE_REFERENCE_FIELD_NAME.equals(fieldName)) {
+        sourceReference = value;
+      }
+    }
+
+    ComposerBulkUploadEntry toEntry(final Repository repository, final PartPayload part) throws IOException {
+      try {
+        if (vendor == null || project == null || version == null) {
+          throw new InvalidContentException("Package part without vendor, project and version fields");
+        }
+        ensurePermitted(repository, vendor, project, version);
+        return new ComposerBulkUploadEntry(vendor, project, version, sourceType, sourceUrl, sourceReference,
+            repository.facet(ComposerHostedFacet.class).createUploadBlob(part), part);
+      }
+      finally {
+        part.close();
+      }
+    }
+  }
+}
@@ -13,12 +13,15 @@
 package org.sonatype.nexus.repository.composer.internal;
 
 import java.io.IOException;
+import java.util.List;
+import java.util.Set;
 
 import javax.annotation.Nullable;
 
 import org.sonatype.nexus.repository.Facet;
 import org.sonatype.nexus.repository.view.Content;
 import org.sonatype.nexus.repository.view.Payload;
+import org.sonatype.nexus.repository.view.payloads.TempBlob;
 
 /**
  * Interface defining the features supported by Composer repository hosted facets.
@@ -30,16 +33,46 @@ public interface ComposerHostedFacet
   void upload(String vendor, String project, String version, String sourceType, String sourceUrl,
               String sourceReference, Payload payload) throws IOException;
 
+  /**
+   * Uploads a zipball that has already been streamed into a temporary blob with {@link #createUploadBlob}. The payload
+   * is only consulted for its content type.
+   */
+  void upload(String vendor, String project, String version, String sourceType, String sourceUrl,
+              String sourceReference, TempBlob tempBlob, Payload payload) throws IOException;
+
+  /**
+   * Streams an uploaded zipball into a temporary blob, enforcing the maximum upload size of the repository.
+   */
+  TempBlob createUploadBlob(Payload payload) throws IOException;
+
+  /**
+   * Uploads a batch of zipballs that have already been streamed into temporary blobs, storing all of them in a single
+   * transaction.
+   */
+  void upload(List<ComposerBulkUploadEntry> entries) throws IOException;
+
   Content getPackagesJson() throws IOException;
 
+  void rebuildPackagesJson() throws IOException;
+
+  void updatePackagesJson(String vendor, String project) throws IOException;
+
   Content getProviderJson(String vendor, String project) throws IOException;
 
   Content getPackageJson(String vendor, String project) throws IOException;
 
   void rebuildPackageJson(String vendor, String project) throws IOException;
 
+  void patchPackageJson(String vendor, String project, String version, boolean deleted) throws IOException;
+
   void rebuildProviderJson(String vendor, String project) throws IOException;
 
+  /**
+   * Returns the vendor/project of the packages whose provider JSON is older than their newest zipball, or that have a
+   * provider JSON but no zipball left, i.e. the packages whose metadata rebuild never ran.
+   */
+  Set<String> findStaleMetadata();
+
   @Nullable
   Content getZipball(String path) throws IOException;
 }
@@ -13,24 +13,41 @@
 package org.sonatype.nexus.repository.composer.internal;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 
+import javax.annotation.Nullable;
 import javax.inject.Inject;
 import javax.inject.Named;
 
 import org.sonatype.nexus.repository.FacetSupport;
+import org.sonatype.nexus.repository.storage.Asset;
+import org.sonatype.nexus.repository.storage.Component;
 import org.sonatype.nexus.repository.storage.Query;
 import org.sonatype.nexus.repository.storage.StorageTx;
 import org.sonatype.nexus.repository.transaction.TransactionalStoreBlob;
 import org.sonatype.nexus.repository.transaction.TransactionalTouchMetadata;
 import org.sonatype.nexus.repository.view.Content;
 import org.sonatype.nexus.repository.view.Payload;
+import org.sonatype.nexus.repository.view.payloads.TempBlob;
 import org.sonatype.nexus.transaction.UnitOfWork;
 
 import com.google.common.annotations.VisibleForTesting;
+import org.joda.time.DateTime;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static java.util.Collections.singletonList;
+import static org.sonatype.nexus.repository.composer.internal.ComposerAttributes.P_PROJECT;
+import static org.sonatype.nexus.repository.composer.internal.ComposerAttributes.P_VENDOR;
+import static org.sonatype.nexus.repository.composer.internal.ComposerPathUtils.buildRewrittenPath;
+import static org.sonatype.nexus.repository.storage.AssetEntityAdapter.P_ASSET_KIND;
 import static org.sonatype.nexus.repository.storage.ComponentEntityAdapter.P_GROUP;
+import static org.sonatype.nexus.repository.storage.ComponentEntityAdapter.P_VERSION;
 import static org.sonatype.nexus.repository.storage.MetadataNodeEntityAdapter.P_NAME;
 
 /**
@@ -41,6 +58,8 @@ public class ComposerHostedFacetImpl
     extends FacetSupport
     implements ComposerHostedFacet
 {
+  private static final String PACKAGES_JSON = "packages.json";
+
   private final ComposerJsonProcessor composerJsonProcessor;
 
   @Inject
@@ -62,17 +81,111 @@ public class ComposerHostedFacetImpl
     );
   }
 
+  @Override
+  @TransactionalStoreBlob
+  public void upload(final String vendor, final String project, final String version, final String sourceType,
+                     final String sourceUrl, final String sourceReference, final TempBlob tempBlob,
+                     final Payload payload)
+      throws IOException {
+    content().put(
+        ComposerPathUtils.buildZipballPath(vendor, project, version),
+        tempBlob,
+        payload,
+        sourceType,
+        sourceUrl,
+        sourceReference
+    );
+  }
+
+  @Override
+  public TempBlob createUploadBlob(final Payload payload) throws IOException {
+    return content().createUploadBlob(payload);
+  }
+
+  @Override
+  @TransactionalStoreBlob
+  public void upload(final List<ComposerBulkUploadEntry> entries) throws IOException {
+    for (ComposerBulkUploadEntry entry : entries) {
+      content().put(
+          ComposerPathUtils.buildZipballPath(entry.getVendor(), entry.getProject(), entry.getVersion()),
+          entry.getTempBlob(),
+          entry.getPayload(),
+          entry.getSourceType(),
+          entry.getSourceUrl(),
+          entry.getSourceReference()
+      );
+    }
+  }
+
   @Override
   public Content getZipball(final String path) throws IOException {
     return content().get(path);
   }
 
+  /**
+   * Serves the packages.json with its URLs pointed at the current base URL. The rewritten variant is stored next to the
+   * raw document, keyed by the repository URL and the checksum of the raw document (see
+   * {@link ComposerRewriteHandlerSupport}), and only rendered again when either changes. A raw document is generated
+   * from the components and stored if the metadata has not been rebuilt yet.
+   */
   @Override
-  @TransactionalTouchMetadata
+  @TransactionalStoreBlob
   public Content getPackagesJson() throws IOException {
+    Content raw = content().get(PACKAGES_JSON);
+    if (raw == null) {
+      raw = doRebuildPackagesJson();
+    }
+    String rewriteKey = ComposerRewriteHandlerSupport.buildRewriteKey(getRepository(), raw);
+    if (rewriteKey == null) {
+      return raw;
+    }
+    String path = buildRewrittenPath(PACKAGES_JSON);
+    Content rewritten = content().getRewritten(path, rewriteKey);
+    if (rewritten == null) {
+      Content source = raw;
+      rewritten = content().putRewritten(path, out -> {
+        try (InputStream in = source.openInputStream()) {
+          composerJsonProcessor.rewritePackagesJson(getRepository(), in, out);
+        }
+      }, AssetKind.PACKAGES, rewriteKey);
+    }
+    return rewritten;
+  }
+
+  @Override
+  @TransactionalStoreBlob
+  public void rebuildPackagesJson() throws IOException {
+    doRebuildPackagesJson();
+  }
+
+  /**
+   * Adds or removes the vendor/project in the stored packages.json depending on whether any of its components remain.
+   * The document is streamed through the processor, a document that is already up to date is not written again.
+   * Concurrent updates of the stored asset fail the transaction, which is then retried against the latest document.
+   */
+  @Override
+  @TransactionalStoreBlob
+  public void updatePackagesJson(final String vendor, final String project) throws IOException {
+    Content existing = content().get(PACKAGES_JSON);
+    if (existing == null) {
+      doRebuildPackagesJson();
+      return;
+    }
     StorageTx tx = UnitOfWork.currentTx();
-    return composerJsonProcessor
-        .generatePackagesFromComponents(getRepository(), tx.browseComponents(tx.findBucket(getRepository())));
+    boolean present = tx.countComponents(buildQuery(vendor, project), singletonList(getRepository())) > 0;
+    content().put(PACKAGES_JSON, out -> {
+      try (InputStream in = existing.openInputStream()) {
+        composerJsonProcessor.patchPackagesJson(in, out, vendor + "/" + project, present);
+      }
+    }, AssetKind.PACKAGES);
+  }
+
+  private Content doRebuildPackagesJson() throws IOException {
+    StorageTx tx = UnitOfWork.currentTx();
+    Iterable<Component> components = tx.browseComponents(tx.findBucket(getRepository()));
+    return content().put(PACKAGES_JSON,
+        out -> composerJsonProcessor.writePackagesFromComponents(getRepository(), components, out),
+        AssetKind.PACKAGES);
   }
 
   @Override
@@ -98,18 +211,80 @@ public class ComposerHostedFacetImpl
   @TransactionalStoreBlob
   public void rebuildProviderJson(final String vendor, final String project) throws IOException {
     StorageTx tx = UnitOfWork.currentTx();
-    Content content = composerJsonProcessor.buildProviderJson(getRepository(), tx,
-        tx.findComponents(buildQuery(vendor, project), singletonList(getRepository())));
-    content().put(ComposerPathUtils.buildProviderPath(vendor, project), content, AssetKind.PROVIDER);
+    Iterable<Component> components = tx.findComponents(buildQuery(vendor, project), singletonList(getRepository()));
+    content().put(ComposerPathUtils.buildProviderPath(vendor, project),
+        out -> composerJsonProcessor.writeProviderJson(getRepository(), tx, components, out),
+        AssetKind.PROVIDER);
   }
 
   @Override
   @TransactionalStoreBlob
   public void rebuildPackageJson(final String vendor, final String project) throws IOException {
     StorageTx tx = UnitOfWork.currentTx();
-    Content content = composerJsonProcessor.buildPackageJson(getRepository(), tx,
-            tx.findComponents(buildQuery(vendor, project), singletonList(getRepository())));
-    content().put(ComposerPathUtils.buildPackagePath(vendor, project), content, AssetKind.PACKAGE);
+    Iterable<Component> components = tx.findComponents(buildQuery(vendor, project), singletonList(getRepository()));
+    content().put(ComposerPathUtils.buildPackagePath(vendor, project),
+        out -> composerJsonProcessor.writePackageJson(getRepository(), tx, components, out),
+        AssetKind.PACKAGE);
+  }
+
+  @Override
+  @TransactionalStoreBlob
+  public void patchPackageJson(final String vendor, final String project, final String version, final boolean deleted)
+      throws IOException
+  {
+    String path = ComposerPathUtils.buildPackagePath(vendor, project);
+    Content existing = content().get(path);
+    if (existing == null) {
+      rebuildPackageJson(vendor, project);
+      return;
+    }
+    StorageTx tx = UnitOfWork.currentTx();
+    Component component = deleted ? null : findComponent(tx, vendor, project, version);
+    content().put(path,
+        out -> composerJsonProcessor.patchPackageJson(getRepository(), tx, existing, vendor + "/" + project, version,
+            component, out),
+        AssetKind.PACKAGE);
+  }
+
+  @Nullable
+  private Component findComponent(final StorageTx tx, final String vendor, final String project, final String version) {
+    Iterator<Component> components = tx
+        .findComponents(buildQuery(vendor, project, version), singletonList(getRepository())).iterator();
+    return components.hasNext() ? components.next() : null;
+  }
+
+  @Override
+  @TransactionalTouchMetadata
+  public Set<String> findStaleMetadata() {
+    StorageTx tx = UnitOfWork.currentTx();
+    Map<String, DateTime> zipballs = new HashMap<>();
+    Map<String, DateTime> providers = new HashMap<>();
+    for (Asset asset : tx.browseAssets(tx.findBucket(getRepository()))) {
+      String assetKind = asset.formatAttributes().get(P_ASSET_KIND, String.class);
+      if (AssetKind.ZIPBALL.name().equals(assetKind)) {
+        String key = asset.formatAttributes().get(P_VENDOR, String.class) + "/" +
+            asset.formatAttributes().get(P_PROJECT, String.class);
+        zipballs.merge(key, blobUpdated(asset), (a, b) -> a.isAfter(b) ? a : b);
+      }
+      else if (AssetKind.PROVIDER.name().equals(assetKind)) {
+        // p/vendor/project.json
+        String name = asset.name();
+        providers.put(name.substring(2, name.length() - 5), blobUpdated(asset));
+      }
+    }
+    Set<String> stale = new TreeSet<>(providers.keySet());
+    stale.removeAll(zipballs.keySet());
+    zipballs.forEach((key, updated) -> {
+      DateTime provider = providers.get(key);
+      if (provider == null || provider.isBefore(updated)) {
+        stale.add(key);
+      }
+    });
+    return stale;
+  }
+
+  private DateTime blobUpdated(final Asset asset) {
+    return asset.blobUpdated() != null ? asset.blobUpdated() : new DateTime(0L);
   }
 
   @VisibleForTesting
@@ -117,6 +292,11 @@ public class ComposerHostedFacetImpl
     return Query.builder().where(P_GROUP).eq(vendor).and(P_NAME).eq(project).build();
   }
 
+  @VisibleForTesting
+  protected Query buildQuery(final String vendor, final String project, final String version) {
+    return Query.builder().where(P_GROUP).eq(vendor).and(P_NAME).eq(project).and(P_VERSION).eq(version).build();
+  }
+
   private ComposerContentFacet content() {
     return getRepository().facet(ComposerContentFacet.class);
   }
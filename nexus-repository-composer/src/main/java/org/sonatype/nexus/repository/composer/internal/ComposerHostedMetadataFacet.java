@@ -15,11 +15,23 @@ package org.sonatype.nexus.repository.composer.internal;
 import org.sonatype.nexus.repository.Facet;
 
 /**
- * Tagging interface indicating that a facet is an implementation of a {@code ComposerHostedMetadataFacet}. This facet
- * is responsible for maintaining the internal metadata (currently just the provider.json file).
+ * Interface indicating that a facet is an implementation of a {@code ComposerHostedMetadataFacet}. This facet is
+ * responsible for maintaining the internal metadata (the packages.json, provider and package JSON files).
  */
 @Facet.Exposed
 public interface ComposerHostedMetadataFacet
     extends Facet
 {
+  /**
+   * Holds back metadata rebuilds for a vendor/project, typically while a bulk upload stores several of its versions, so
+   * that it is rebuilt once after the matching {@link #releaseRebuild(String, String)}. Rebuilds of other packages are
+   * not affected. Holds are counted, so concurrent uploads of the same package each take and release their own.
+   */
+  void holdRebuild(String vendor, String project);
+
+  /**
+   * Releases a hold taken by {@link #holdRebuild(String, String)}, rebuilding the package if it was invalidated while
+   * held and no other hold on it remains.
+   */
+  void releaseRebuild(String vendor, String project);
 }
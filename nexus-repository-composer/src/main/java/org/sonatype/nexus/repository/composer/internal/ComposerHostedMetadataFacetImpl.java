@@ -13,13 +13,29 @@
 package org.sonatype.nexus.repository.composer.internal;
 
 import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
+import javax.annotation.Nullable;
 import javax.inject.Inject;
 import javax.inject.Named;
 
+import org.sonatype.nexus.common.app.BaseUrlHolder;
+import org.sonatype.nexus.common.app.BaseUrlManager;
 import org.sonatype.nexus.common.event.EventManager;
 import org.sonatype.nexus.common.stateguard.Guarded;
 import org.sonatype.nexus.repository.FacetSupport;
+import org.sonatype.nexus.repository.config.Configuration;
 import org.sonatype.nexus.repository.storage.Asset;
 import org.sonatype.nexus.repository.storage.AssetCreatedEvent;
 import org.sonatype.nexus.repository.storage.AssetDeletedEvent;
@@ -28,11 +44,15 @@ import org.sonatype.nexus.repository.storage.AssetUpdatedEvent;
 import org.sonatype.nexus.repository.storage.StorageFacet;
 import org.sonatype.nexus.transaction.UnitOfWork;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.eventbus.AllowConcurrentEvents;
 import com.google.common.eventbus.Subscribe;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.joda.time.DateTime;
 
 import static java.util.Objects.requireNonNull;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.joda.time.DateTime.now;
 import static org.sonatype.nexus.common.stateguard.StateGuardLifecycleSupport.State.STARTED;
 import static org.sonatype.nexus.repository.composer.internal.ComposerAttributes.P_PROJECT;
@@ -48,12 +68,149 @@ public class ComposerHostedMetadataFacetImpl
     extends FacetSupport
     implements ComposerHostedMetadataFacet
 {
+  private static final String COMPOSER_CONFIG_KEY = "composer";
+
+  private static final String REBUILD_DELAY = "metadataRebuildDelay";
+
+  private static final long DEFAULT_REBUILD_DELAY_MILLIS = 1000L;
+
+  private static final String REBUILD_THREADS = "metadataRebuildThreads";
+
+  private static final int DEFAULT_REBUILD_THREADS = 4;
+
+  private static final int REBUILD_QUEUE_SIZE = 1000;
+
+  private static final long REBUILD_RETRY_DELAY_MILLIS = 100L;
+
+  private static final long STOP_TIMEOUT_SECONDS = 30L;
+
   private final EventManager eventManager;
 
+  private final BaseUrlManager baseUrlManager;
+
+  /**
+   * Rebuilds waiting for the end of their delay, keyed by vendor/project. Invalidations arriving for a key that is
+   * already pending are merged into it so that a burst of changes to one package results in a single rebuild.
+   */
+  private final ConcurrentMap<String, PendingRebuild> pendingRebuilds = new ConcurrentHashMap<>();
+
+  /**
+   * Packages whose rebuild is currently running. A package is only rebuilt by one worker at a time so that its changes
+   * are applied in order, while different packages are rebuilt in parallel.
+   */
+  private final Set<String> runningRebuilds = ConcurrentHashMap.newKeySet();
+
+  /**
+   * Number of holds taken on each package by the bulk uploads in progress, keyed by vendor/project.
+   */
+  private final ConcurrentMap<String, Integer> rebuildHolds = new ConcurrentHashMap<>();
+
+  /**
+   * Packages with a pending rebuild that is held back until the holds on them are released.
+   */
+  private final Set<String> heldRebuilds = ConcurrentHashMap.newKeySet();
+
+  /**
+   * Rebuilds of different packages run in parallel but all of them patch the single packages.json, so those updates
+   * are applied one at a time rather than failing and retrying against each other.
+   */
+  private final Object packagesJsonLock = new Object();
+
+  /**
+   * Number of invalidations merged into a rebuild that was already pending rather than causing a rebuild of their own.
+   */
+  private final AtomicLong coalescedInvalidationCount = new AtomicLong();
+
+  /**
+   * Number of rebuilds that could not be queued because the workers were saturated and had to be retried later.
+   */
+  private final AtomicLong rejectedRebuildCount = new AtomicLong();
+
+  private long rebuildDelay = DEFAULT_REBUILD_DELAY_MILLIS;
+
+  private int rebuildThreads = DEFAULT_REBUILD_THREADS;
+
+  private ScheduledExecutorService rebuildScheduler;
+
+  private ThreadPoolExecutor rebuildExecutor;
+
   @Inject
-  public ComposerHostedMetadataFacetImpl(final EventManager eventManager)
+  public ComposerHostedMetadataFacetImpl(final EventManager eventManager, final BaseUrlManager baseUrlManager)
   {
     this.eventManager = requireNonNull(eventManager);
+    this.baseUrlManager = requireNonNull(baseUrlManager);
+  }
+
+  @Override
+  protected void doConfigure(final Configuration configuration) throws Exception {
+    super.doConfigure(configuration);
+    Number delay = configuration.attributes(COMPOSER_CONFIG_KEY).get(REBUILD_DELAY, Number.class);
+    rebuildDelay = delay != null ? delay.longValue() : DEFAULT_REBUILD_DELAY_MILLIS;
+    Number threads = configuration.attributes(COMPOSER_CONFIG_KEY).get(REBUILD_THREADS, Number.class);
+    rebuildThreads = threads != null && threads.intValue() > 0 ? threads.intValue() : DEFAULT_REBUILD_THREADS;
+  }
+
+  @Override
+  protected void doStart() throws Exception {
+    super.doStart();
+    rebuildScheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactoryBuilder().setDaemon(true)
+        .setNameFormat("composer-metadata-scheduler-" + getRepository().getName() + "-%d").build());
+    rebuildExecutor = new ThreadPoolExecutor(rebuildThreads, rebuildThreads, 60L, SECONDS,
+        new ArrayBlockingQueue<>(REBUILD_QUEUE_SIZE), new ThreadFactoryBuilder().setDaemon(true)
+        .setNameFormat("composer-metadata-" + getRepository().getName() + "-%d").build());
+    rebuildExecutor.allowCoreThreadTimeOut(true);
+    rebuildExecutor.execute(this::rederivePendingRebuilds);
+  }
+
+  /**
+   * Stops the rebuild workers and runs the rebuilds still pending on the stopping thread, the storage they write to is
+   * only stopped after this facet.
+   */
+  @Override
+  protected void doStop() throws Exception {
+    if (rebuildScheduler != null) {
+      rebuildScheduler.shutdownNow();
+      rebuildScheduler = null;
+    }
+    if (rebuildExecutor != null) {
+      ThreadPoolExecutor executor = rebuildExecutor;
+      rebuildExecutor = null;
+      executor.shutdown();
+      if (!executor.awaitTermination(STOP_TIMEOUT_SECONDS, SECONDS)) {
+        log.warn("Metadata rebuilds of repository {} did not finish in time", getRepository().getName());
+      }
+    }
+    for (String key : pendingRebuilds.keySet()) {
+      rebuildPending(key);
+    }
+    heldRebuilds.clear();
+    rebuildHolds.clear();
+    super.doStop();
+  }
+
+  /**
+   * Pending rebuilds only live in memory, so any package whose provider JSON is older than its newest zipball (or that
+   * has no zipball left) lost its rebuild to a restart and is scheduled for a full rebuild again.
+   */
+  private void rederivePendingRebuilds() {
+    try {
+      Set<String> stale;
+      UnitOfWork.begin(getRepository().facet(StorageFacet.class).txSupplier());
+      try {
+        stale = getRepository().facet(ComposerHostedFacet.class).findStaleMetadata();
+      }
+      finally {
+        UnitOfWork.end();
+      }
+      for (String key : stale) {
+        int separator = key.indexOf('/');
+        invalidate(new ComposerHostedMetadataInvalidationEvent(getRepository().getName(), key.substring(0, separator),
+            key.substring(separator + 1), null, false), null);
+      }
+    }
+    catch (Exception e) {
+      log.warn("Unable to find stale metadata in repository {}", getRepository().getName(), e);
+    }
   }
 
   @Subscribe
@@ -61,7 +218,7 @@ public class ComposerHostedMetadataFacetImpl
   @AllowConcurrentEvents
   public void on(final AssetDeletedEvent deleted) {
     if (matchesRepository(deleted) && isEventRelevant(deleted)) {
-      invalidateMetadata(deleted);
+      invalidateMetadata(deleted, true);
     }
   }
 
@@ -70,7 +227,7 @@ public class ComposerHostedMetadataFacetImpl
   @AllowConcurrentEvents
   public void on(final AssetCreatedEvent created) {
     if (matchesRepository(created) && isEventRelevant(created)) {
-      invalidateMetadata(created);
+      invalidateMetadata(created, false);
     }
   }
 
@@ -79,31 +236,196 @@ public class ComposerHostedMetadataFacetImpl
   @AllowConcurrentEvents
   public void on(final AssetUpdatedEvent updated) {
     if (matchesRepository(updated) && isEventRelevant(updated) && hasBlobBeenUpdated(updated)) {
-      invalidateMetadata(updated);
+      invalidateMetadata(updated, false);
     }
   }
 
   @Subscribe
   @Guarded(by = STARTED)
-  public void on(final ComposerHostedMetadataInvalidationEvent event) throws IOException {
+  @AllowConcurrentEvents
+  public void on(final ComposerHostedMetadataInvalidationEvent event) {
     if (getRepository().getName().equals(event.getRepositoryName())) {
-      ComposerHostedFacet hostedFacet = getRepository().facet(ComposerHostedFacet.class);
-      UnitOfWork.begin(getRepository().facet(StorageFacet.class).txSupplier());
-      try {
-        hostedFacet.rebuildProviderJson(event.getVendor(), event.getProject());
-        hostedFacet.rebuildPackageJson(event.getVendor(), event.getProject());
+      invalidate(event, BaseUrlHolder.isSet() ? BaseUrlHolder.get() : null);
+    }
+  }
+
+  private void invalidate(final ComposerHostedMetadataInvalidationEvent event, @Nullable final String baseUrl) {
+    String key = event.getVendor() + "/" + event.getProject();
+    AtomicBoolean scheduled = new AtomicBoolean();
+    pendingRebuilds.compute(key, (k, pending) -> {
+      if (pending == null) {
+        scheduled.set(true);
+        return new PendingRebuild(event, baseUrl);
       }
-      finally {
-        UnitOfWork.end();
+      coalescedInvalidationCount.incrementAndGet();
+      return pending.merge(event, baseUrl);
+    });
+    if (scheduled.get()) {
+      if (rebuildHolds.containsKey(key)) {
+        heldRebuilds.add(key);
+        // the hold may have been released before the key was held, in which case nobody else will dispatch it
+        if (!rebuildHolds.containsKey(key) && heldRebuilds.remove(key)) {
+          dispatchRebuild(key);
+        }
+      }
+      else {
+        dispatchRebuild(key);
+      }
+    }
+  }
+
+  @Override
+  public void holdRebuild(final String vendor, final String project) {
+    rebuildHolds.merge(vendor + "/" + project, 1, Integer::sum);
+  }
+
+  @Override
+  public void releaseRebuild(final String vendor, final String project) {
+    String key = vendor + "/" + project;
+    if (rebuildHolds.computeIfPresent(key, (k, holds) -> holds > 1 ? holds - 1 : null) == null &&
+        heldRebuilds.remove(key)) {
+      dispatchRebuild(key);
+    }
+  }
+
+  /**
+   * Hands the pending rebuild for a package to the rebuild workers, straight away when no delay is configured. Event
+   * threads never run rebuilds themselves.
+   */
+  private void dispatchRebuild(final String key) {
+    if (rebuildDelay <= 0) {
+      submitRebuild(key);
+    }
+    else {
+      scheduleRebuild(key, rebuildDelay);
+    }
+  }
+
+  /**
+   * Hands the pending rebuild for a package to the rebuild workers once the delay has passed.
+   */
+  private void scheduleRebuild(final String key, final long delay) {
+    ScheduledExecutorService scheduler = rebuildScheduler;
+    if (scheduler != null) {
+      scheduler.schedule(() -> submitRebuild(key), Math.max(delay, 0L), MILLISECONDS);
+    }
+  }
+
+  private void submitRebuild(final String key) {
+    ThreadPoolExecutor executor = rebuildExecutor;
+    if (executor == null) {
+      return;
+    }
+    try {
+      executor.execute(() -> rebuildPending(key));
+    }
+    catch (RejectedExecutionException e) {
+      rejectedRebuildCount.incrementAndGet();
+      // workers are saturated, the rebuild stays pending (and keeps merging invalidations) until it can be queued
+      scheduleRebuild(key, Math.max(rebuildDelay, REBUILD_RETRY_DELAY_MILLIS));
+    }
+  }
+
+  private void rebuildPending(final String key) {
+    if (!runningRebuilds.add(key)) {
+      // an earlier rebuild of the same package is still running, try again once it had time to finish
+      scheduleRebuild(key, Math.max(rebuildDelay, REBUILD_RETRY_DELAY_MILLIS));
+      return;
+    }
+    try {
+      PendingRebuild pending = pendingRebuilds.remove(key);
+      if (pending != null) {
+        rebuild(pending);
+      }
+    }
+    catch (Exception e) {
+      log.warn("Unable to rebuild metadata for {} in repository {}", key, getRepository().getName(), e);
+    }
+    finally {
+      runningRebuilds.remove(key);
+    }
+  }
+
+  /**
+   * Rebuilds the metadata for a vendor/project. The p2 package JSON is only patched when exactly one version changed,
+   * otherwise it is rebuilt in full once for all of the changes.
+   */
+  private void rebuild(final PendingRebuild pending) throws IOException {
+    ComposerHostedFacet hostedFacet = getRepository().facet(ComposerHostedFacet.class);
+    // workers link to the base URL of the request that caused the rebuild, or the configured one for rebuilds that
+    // were re-derived on start
+    String baseUrl = pending.baseUrl != null ? pending.baseUrl : baseUrlManager.getUrl();
+    boolean holdBaseUrl = !BaseUrlHolder.isSet() && baseUrl != null;
+    if (holdBaseUrl) {
+      BaseUrlHolder.set(baseUrl);
+    }
+    UnitOfWork.begin(getRepository().facet(StorageFacet.class).txSupplier());
+    try {
+      hostedFacet.rebuildProviderJson(pending.vendor, pending.project);
+      if (!pending.full && pending.versions.size() == 1) {
+        Map.Entry<String, Boolean> version = pending.versions.entrySet().iterator().next();
+        hostedFacet.patchPackageJson(pending.vendor, pending.project, version.getKey(), version.getValue());
+      }
+      else {
+        hostedFacet.rebuildPackageJson(pending.vendor, pending.project);
+      }
+      synchronized (packagesJsonLock) {
+        hostedFacet.updatePackagesJson(pending.vendor, pending.project);
+      }
+    }
+    finally {
+      UnitOfWork.end();
+      if (holdBaseUrl) {
+        BaseUrlHolder.unset();
       }
     }
   }
 
-  private void invalidateMetadata(final AssetEvent assetEvent) {
+  @VisibleForTesting
+  int getPendingRebuildCount() {
+    return pendingRebuilds.size();
+  }
+
+  @VisibleForTesting
+  int getHeldRebuildCount() {
+    return heldRebuilds.size();
+  }
+
+  @VisibleForTesting
+  long getCoalescedInvalidationCount() {
+    return coalescedInvalidationCount.get();
+  }
+
+  @VisibleForTesting
+  int getRebuildQueueDepth() {
+    ThreadPoolExecutor executor = rebuildExecutor;
+    return executor != null ? executor.getQueue().size() : 0;
+  }
+
+  @VisibleForTesting
+  long getRejectedRebuildCount() {
+    return rejectedRebuildCount.get();
+  }
+
+  private void invalidateMetadata(final AssetEvent assetEvent, final boolean deleted) {
     Asset asset = assetEvent.getAsset();
     String vendor = asset.formatAttributes().require(P_VENDOR, String.class);
     String project = asset.formatAttributes().require(P_PROJECT, String.class);
-    eventManager.post(new ComposerHostedMetadataInvalidationEvent(getRepository().getName(), vendor, project));
+    eventManager.post(new ComposerHostedMetadataInvalidationEvent(getRepository().getName(), vendor, project,
+        getVersion(asset), deleted));
+  }
+
+  /**
+   * Returns the version from the zipball path (vendor/project/version/project-version.zip), as the version format
+   * attribute may have been replaced by the one declared in the composer.json.
+   */
+  @Nullable
+  private String getVersion(final Asset asset) {
+    if (asset.name() == null) {
+      return null;
+    }
+    String[] parts = asset.name().split("/");
+    return parts.length == 4 ? parts[2] : null;
   }
 
   private boolean matchesRepository(final AssetEvent assetEvent) {
@@ -119,4 +441,40 @@ public class ComposerHostedMetadataFacetImpl
     DateTime oneMinuteAgo = now().minusMinutes(1);
     return blobUpdated == null || blobUpdated.isAfter(oneMinuteAgo);
   }
+
+  /**
+   * The invalidations collected for a single vendor/project while its rebuild is pending.
+   */
+  private static class PendingRebuild
+  {
+    private final String vendor;
+
+    private final String project;
+
+    private final Map<String, Boolean> versions = new LinkedHashMap<>();
+
+    private boolean full;
+
+    @Nullable
+    private String baseUrl;
+
+    PendingRebuild(final ComposerHostedMetadataInvalidationEvent event, @Nullable final String baseUrl) {
+      this.vendor = event.getVendor();
+      this.project = event.getProject();
+      merge(event, baseUrl);
+    }
+
+    PendingRebuild merge(final ComposerHostedMetadataInvalidationEvent event, @Nullable final String baseUrl) {
+      if (this.baseUrl == null) {
+        this.baseUrl = baseUrl;
+      }
+      if (event.getVersion() == null) {
+        full = true;
+      }
+      else {
+        versions.put(event.getVersion(), event.isDeleted());
+      }
+      return this;
+    }
+  }
 }
@@ -12,6 +12,8 @@
  */
 package org.sonatype.nexus.repository.composer.internal;
 
+import javax.annotation.Nullable;
+
 import static com.google.common.base.Preconditions.checkNotNull;
 
 /**
@@ -27,13 +29,33 @@ public class ComposerHostedMetadataInvalidationEvent
 
   private final String project;
 
+  @Nullable
+  private final String version;
+
+  private final boolean deleted;
+
   public ComposerHostedMetadataInvalidationEvent(final String repositoryName,
                                                  final String vendor,
                                                  final String project)
+  {
+    this(repositoryName, vendor, project, null, false);
+  }
+
+  /**
+   * Creates an event for a single changed version. If the version is {@code null} the metadata for every version of the
+   * vendor/project is rebuilt; otherwise only the entry for that version may be patched.
+   */
+  public ComposerHostedMetadataInvalidationEvent(final String repositoryName,
+                                                 final String vendor,
+                                                 final String project,
+                                                 @Nullable final String version,
+                                                 final boolean deleted)
   {
     this.repositoryName = checkNotNull(repositoryName);
     this.vendor = checkNotNull(vendor);
     this.project = checkNotNull(project);
+    this.version = version;
+    this.deleted = deleted;
   }
 
   public String getRepositoryName() {
@@ -47,4 +69,13 @@ public class ComposerHostedMetadataInvalidationEvent
   public String getProject() {
     return project;
   }
+
+  @Nullable
+  public String getVersion() {
+    return version;
+  }
+
+  public boolean isDeleted() {
+    return deleted;
+  }
 }
@@ -51,6 +51,9 @@ class ComposerHostedRecipe
   @Inject
   ComposerHostedUploadHandler uploadHandler
 
+  @Inject
+  ComposerHostedBulkUploadHandler bulkUploadHandler
+
   @Inject
   ComposerHostedDownloadHandler downloadHandler
 
@@ -143,6 +146,16 @@ class ComposerHostedRecipe
         .handler(uploadHandler)
         .create())
 
+    builder.route(bulkUploadMatcher()
+        .handler(timingHandler)
+        .handler(assetKindHandler.rcurry(ZIPBALL))
+        .handler(securityHandler)
+        .handler(exceptionHandler)
+        .handler(handlerContributor)
+        .handler(unitOfWorkHandler)
+        .handler(bulkUploadHandler)
+        .create())
+
     addBrowseUnsupportedRoute(builder)
 
     builder.defaultHandlers(HttpHandlers.notFound())
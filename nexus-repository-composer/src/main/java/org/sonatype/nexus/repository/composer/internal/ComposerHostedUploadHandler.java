@@ -17,17 +17,16 @@ import javax.inject.Named;
 import javax.inject.Singleton;
 
 import com.google.common.base.Preconditions;
-import com.google.common.io.ByteStreams;
 import com.google.common.io.CharStreams;
 import org.slf4j.Logger;
 import org.sonatype.goodies.common.Loggers;
+import org.sonatype.nexus.repository.InvalidContentException;
 import org.sonatype.nexus.repository.Repository;
 import org.sonatype.nexus.repository.http.HttpResponses;
 import org.sonatype.nexus.repository.view.*;
-import org.sonatype.nexus.repository.view.payloads.BytesPayload;
+import org.sonatype.nexus.repository.view.payloads.TempBlob;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.InputStreamReader;
 
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -57,58 +56,74 @@ public class ComposerHostedUploadHandler
     String sourceUrl = null;
     String sourceRef = null;
     Payload payload = null;
+    TempBlob tempBlob = null;
 
     Request request = checkNotNull(context.getRequest());
     Repository repository = context.getRepository();
-    // if we have also the source url and reference which have been sent in data
-    if (request.isMultipart() && request.getMultiparts() != null) {
-      for (PartPayload part : request.getMultiparts()) {
-        log.trace("Part with fieldName: {}, name: {}, type: {}, isFormField: {} and with type: {}",
-            part.getFieldName(),
-            part.getName(),
-            part.getContentType(),
-            part.isFormField(),
-            part.getClass().getName()
-        );
-        if (SOURCE_TYPE_FIELD_NAME.equals(part.getFieldName())) {
-          sourceType = checkNotNull(readPartStreamToString(part));
-        } else if (SOURCE_URL_FIELD_NAME.equals(part.getFieldName())) {
-          sourceUrl = checkNotNull(readPartStreamToString(part));
-        } else if (SOURCE_REFERENCE_FIELD_NAME.equals(part.getFieldName())) {
-          sourceRef = checkNotNull(readPartStreamToString(part));
-        } else if (PACKAGE_FIELD_NAME.equals(part.getFieldName())) {
-          payload = readPartStreamToBytePayload(part);
+    ComposerHostedFacet hostedFacet = repository.facet(ComposerHostedFacet.class);
+    try {
+      // if we have also the source url and reference which have been sent in data
+      if (request.isMultipart() && request.getMultiparts() != null) {
+        for (PartPayload part : request.getMultiparts()) {
+          log.trace("Part with fieldName: {}, name: {}, type: {}, isFormField: {} and with type: {}",
+              part.getFieldName(),
+              part.getName(),
+              part.getContentType(),
+              part.isFormField(),
+              part.getClass().getName()
+          );
+          if (SOURCE_TYPE_FIELD_NAME.equals(part.getFieldName())) {
+            sourceType = checkNotNull(readPartStreamToString(part));
+          } else if (SOURCE_URL_FIELD_NAME.equals(part.getFieldName())) {
+            sourceUrl = checkNotNull(readPartStreamToString(part));
+          } else if (SOURCE_REFERENCE_FIELD_NAME.equals(part.getFieldName())) {
+            sourceRef = checkNotNull(readPartStreamToString(part));
+          } else if (PACKAGE_FIELD_NAME.equals(part.getFieldName())) {
+            if (tempBlob != null) {
+              part.close();
+              throw new InvalidContentException("Upload contains more than one package part");
+            }
+            // the parts are read in order, so the package is streamed to the blob store before the source fields
+            // that may follow it are read
+            payload = part;
+            tempBlob = readPartStreamToTempBlob(hostedFacet, part);
+          }
         }
+        log.trace("Upload with source data: {} with url {} and reference {} and data exists: {}",
+            sourceType,
+            sourceUrl,
+            sourceRef,
+            tempBlob != null
+        );
+        hostedFacet.upload(vendor, project, version, sourceType, sourceUrl, sourceRef,
+            checkNotNull(tempBlob, "Missing package part"), payload);
+      } else {
+        payload = checkNotNull(request.getPayload());
+        log.trace("Payload for single file is of type: {} with content type: {}",
+            payload.getClass().getName(),
+            payload.getContentType()
+        );
+        hostedFacet.upload(vendor, project, version, sourceType, sourceUrl, sourceRef, payload);
+      }
+    } finally {
+      if (tempBlob != null) {
+        tempBlob.close();
       }
-      log.trace("Upload with source data: {} with url {} and reference {} and data exists: {}",
-          sourceType,
-          sourceUrl,
-          sourceRef,
-          payload != null
-      );
-    } else {
-      payload = checkNotNull(request.getPayload());
-      log.trace("Payload for single file is of type: {} with content type: {}",
-          payload.getClass().getName(),
-          payload.getContentType()
-      );
     }
-
-    ComposerHostedFacet hostedFacet = repository.facet(ComposerHostedFacet.class);
-
-    hostedFacet.upload(vendor, project, version, sourceType, sourceUrl, sourceRef, payload);
     return HttpResponses.ok();
   }
 
-  private BytesPayload readPartStreamToBytePayload(final PartPayload in) throws IOException {
-    try (InputStream is = in.openInputStream()) {
-      return new BytesPayload(ByteStreams.toByteArray(is), in.getContentType());
+  private TempBlob readPartStreamToTempBlob(final ComposerHostedFacet hostedFacet, final PartPayload in)
+      throws IOException
+  {
+    try {
+      return hostedFacet.createUploadBlob(in);
     } finally {
       in.close();
     }
   }
 
-  private String readPartStreamToString(final PartPayload in) throws IOException {
+  static String readPartStreamToString(final PartPayload in) throws IOException {
     try {
       return CharStreams.toString(new InputStreamReader(in.openInputStream(), UTF_8));
     } finally {
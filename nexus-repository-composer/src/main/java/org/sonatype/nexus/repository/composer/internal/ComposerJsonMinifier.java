@@ -42,16 +42,8 @@ public class ComposerJsonMinifier {
                         continue;
                     }
 
-                    for (Map.Entry<String, Object> versionData : version.entrySet()) {
-                        if (versionData.getValue() instanceof String && versionData.getValue().equals(UNSET_VALUE)) {
-                            expandedVersion.remove(versionData.getKey());
-                        } else {
-                            expandedVersion.put(versionData.getKey(), versionData.getValue());
-                        }
-                    }
-
+                    expandedVersion = expandVersion(expandedVersion, version);
                     expandedVersions.add(expandedVersion);
-                    expandedVersion = new LinkedHashMap<>(expandedVersion);
                 }
 
                 packages.put(packageName, expandedVersions);
@@ -62,6 +54,22 @@ public class ComposerJsonMinifier {
         json.remove(MINIFIED_KEY);
     }
 
+    /**
+     * Expands a single minified version against the expanded version listed before it, returning a new map. Allows
+     * versions to be expanded one at a time while they are being read.
+     */
+    public Map<String, Object> expandVersion(Map<String, Object> previousVersion, Map<String, Object> version) {
+        Map<String, Object> expandedVersion = new LinkedHashMap<>(previousVersion);
+        for (Map.Entry<String, Object> versionData : version.entrySet()) {
+            if (versionData.getValue() instanceof String && versionData.getValue().equals(UNSET_VALUE)) {
+                expandedVersion.remove(versionData.getKey());
+            } else {
+                expandedVersion.put(versionData.getKey(), versionData.getValue());
+            }
+        }
+        return expandedVersion;
+    }
+
     public void minify(Map<String, Object> json) {
         Map<String, List<Object>> packages = new LinkedHashMap<>();
 
@@ -86,29 +94,7 @@ public class ComposerJsonMinifier {
                         continue;
                     }
 
-                    Map<String, Object> minifiedVersion = new LinkedHashMap<>();
-
-                    for (Map.Entry<String, Object> versionData : version.entrySet()) {
-                        boolean lastContains = lastKnownVersionData.containsKey(versionData.getKey());
-                        Object lastData = lastKnownVersionData.get(versionData.getKey());
-                        Object currentData = versionData.getValue();
-
-                        if (!lastContains || !Objects.equals(lastData, currentData)) {
-                            minifiedVersion.put(versionData.getKey(), currentData);
-                            lastKnownVersionData.put(versionData.getKey(), currentData);
-                        }
-                    }
-
-                    Iterator<Map.Entry<String, Object>> it = lastKnownVersionData.entrySet().iterator();
-                    while (it.hasNext()) {
-                        Map.Entry<String, Object> lastData = it.next();
-                        if (!version.containsKey(lastData.getKey())) {
-                            minifiedVersion.put(lastData.getKey(), UNSET_VALUE);
-                            it.remove();
-                        }
-                    }
-
-                    minifiedVersions.add(minifiedVersion);
+                    minifiedVersions.add(minifyVersion(lastKnownVersionData, version));
                 }
 
                 packages.put(packageName, minifiedVersions);
@@ -118,4 +104,41 @@ public class ComposerJsonMinifier {
         json.put(PACKAGES_KEY, packages);
         json.put(MINIFIED_KEY, V2_FORMAT);
     }
+
+    /**
+     * Minifies a single version against the accumulated data of the versions listed before it, and updates that data
+     * with the version. Allows versions to be minified one at a time while they are being written.
+     */
+    public Map<String, Object> minifyVersion(Map<String, Object> lastKnownVersionData, Map<String, Object> version) {
+        Map<String, Object> minifiedVersion = new LinkedHashMap<>();
+
+        for (Map.Entry<String, Object> versionData : version.entrySet()) {
+            boolean lastContains = lastKnownVersionData.containsKey(versionData.getKey());
+            Object lastData = lastKnownVersionData.get(versionData.getKey());
+            Object currentData = versionData.getValue();
+
+            if (!lastContains || !Objects.equals(lastData, currentData)) {
+                minifiedVersion.put(versionData.getKey(), currentData);
+                lastKnownVersionData.put(versionData.getKey(), currentData);
+            }
+        }
+
+        Iterator<Map.Entry<String, Object>> it = lastKnownVersionData.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Object> lastData = it.next();
+            if (!version.containsKey(lastData.getKey())) {
+                minifiedVersion.put(lastData.getKey(), UNSET_VALUE);
+                it.remove();
+            }
+        }
+
+        return minifiedVersion;
+    }
+
+    /**
+     * Returns the value of the {@code minified} key for documents in the minified format.
+     */
+    public String getMinifiedFormat() {
+        return V2_FORMAT;
+    }
 }
@@ -12,13 +12,16 @@
  */
 package org.sonatype.nexus.repository.composer.internal;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.stream.Collectors;
 import java.util.stream.StreamSupport;
 
+import javax.annotation.Nullable;
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.inject.Singleton;
@@ -34,10 +37,18 @@ import org.sonatype.nexus.repository.storage.StorageTx;
 import org.sonatype.nexus.repository.view.Content;
 import org.sonatype.nexus.repository.view.ContentTypes;
 import org.sonatype.nexus.repository.view.Payload;
+import org.sonatype.nexus.repository.view.payloads.BytesPayload;
 import org.sonatype.nexus.repository.view.payloads.StringPayload;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.hash.Hashing;
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
@@ -45,7 +56,8 @@ import org.joda.time.format.DateTimeFormat;
 import org.joda.time.format.DateTimeFormatter;
 
 import static com.google.common.base.Preconditions.checkNotNull;
-import static java.util.Collections.singletonMap;
+import static org.sonatype.nexus.repository.composer.internal.ComposerAttributes.P_COMPOSER_JSON;
+import static org.sonatype.nexus.repository.composer.internal.ComposerAttributes.P_COMPOSER_METADATA;
 import static org.sonatype.nexus.repository.composer.internal.ComposerPathUtils.buildZipballPath;
 import static org.sonatype.nexus.repository.composer.internal.ComposerRecipeSupport.*;
 
@@ -61,6 +73,8 @@ public class ComposerJsonProcessor
 
   private static final String PACKAGE_V2_JSON_PATH = "/p2/%package%.json";
 
+  private static final String LIST_JSON_PATH = "/packages/list.json";
+
   private static final String VENDOR_AND_PROJECT = "%s/%s";
 
   private static final String AUTOLOAD_KEY = "autoload";
@@ -97,6 +111,17 @@ public class ComposerJsonProcessor
 
   private static final String PACKAGE_NAMES_KEY = "packageNames";
 
+  private static final String LIST_KEY = "list";
+
+  /**
+   * Upstream packages.json entries that point at endpoints a proxy does not serve (hashed provider includes, search,
+   * download notifications and the like). They are dropped when passing the upstream document through.
+   */
+  private static final Set<String> UPSTREAM_ONLY_KEYS = ImmutableSet.of("provider-includes", "providers-lazy-url",
+      "providers-api", "metadata-changes-url", "notify", "notify-batch", "search", "security-advisories");
+
+  private static final String MINIFIED_KEY = "minified";
+
   private static final String PROVIDE_KEY = "provide";
 
   private static final String REPLACE_KEY = "replace";
@@ -133,10 +158,26 @@ public class ComposerJsonProcessor
 
   private static final String UID_KEY = "uid";
 
+  /**
+   * The composer.json fields copied into a version entry of the generated metadata, in the order they are written.
+   */
+  private static final List<String> VERSION_INFO_KEYS = ImmutableList.of(
+      AUTOLOAD_KEY, AUTOLOAD_DEV_KEY, REQUIRE_KEY, REPLACE_KEY,
+      REQUIRE_DEV_KEY, SUGGEST_KEY, AUTHORS_KEY, BIN_KEY,
+      CONFLICT_KEY, DESCRIPTION_KEY, EXTRA_KEY, HOMEPAGE_KEY,
+      INCLUDE_PATH_KEY, KEYWORDS_KEY, LICENSE_KEY, PROVIDE_KEY,
+      TARGET_DIR_KEY, SCRIPTS_KEY, SUPPORT_KEY, TYPE_KEY);
+
   private static final String ZIP_TYPE = "zip";
 
   private static final ObjectMapper mapper = new ObjectMapper();
 
+  private static final ObjectWriter entryWriter = mapper.writer()
+      .without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+
+  private static final TypeReference<Map<String, Object>> mapTypeReference =
+      new TypeReference<Map<String, Object>>() { };
+
   private static final DateTimeFormatter timeFormatter = DateTimeFormat.forPattern("yyyy-MM-dd'T'HH:mm:ssZZ");
 
   private ComposerJsonExtractor composerJsonExtractor;
@@ -154,33 +195,216 @@ public class ComposerJsonProcessor
    * the packages.json for the client to use.
    */
   public Content generatePackagesFromList(final Repository repository, final Payload payload) throws IOException {
-    // TODO: Parse using JSON tokens rather than loading all this into memory, it "should" work but I'd be careful.
-    Map<String, Object> listJson = parseJson(payload);
-    return buildPackagesJson(repository, new LinkedHashSet<>((Collection<String>) listJson.get(PACKAGE_NAMES_KEY)));
+    return toContent(out -> {
+      try (InputStream in = payload.openInputStream()) {
+        writePackagesFromList(repository, in, out);
+      }
+    });
+  }
+
+  /**
+   * Writes a packages.json file based on the list.json read from the input stream (see
+   * {@link #generatePackagesFromList}). The package names are copied into the providers as they are read, so memory
+   * use does not depend on the number of packages listed. Upstream list.json files contain each name only once, and
+   * unlike the in-memory version no further deduplication is done.
+   */
+  public void writePackagesFromList(final Repository repository, final InputStream in, final OutputStream out)
+      throws IOException
+  {
+    try (JsonParser parser = mapper.getFactory().createParser(in);
+         JsonGenerator generator = createGenerator(out)) {
+      parser.disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+      if (parser.nextToken() != JsonToken.START_OBJECT) {
+        throw new IOException("List JSON must be an object");
+      }
+      writePackagesJsonStart(repository, generator);
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String fieldName = parser.getCurrentName();
+        JsonToken token = parser.nextToken();
+        if (PACKAGE_NAMES_KEY.equals(fieldName) && token == JsonToken.START_ARRAY) {
+          while (parser.nextToken() != JsonToken.END_ARRAY) {
+            if (parser.getCurrentToken() == JsonToken.VALUE_STRING) {
+              writeProviderEntry(generator, parser.getText());
+            }
+            else {
+              parser.skipChildren();
+            }
+          }
+        }
+        else {
+          parser.skipChildren();
+        }
+      }
+      writePackagesJsonEnd(generator);
+    }
   }
 
   /**
-   * Generates a packages.json file (inclusive of all projects) based on the components provided. Expected usage is
-   * for a hosted repository to be queried for its components, which are then provided to this method to build the
-   * packages.json for the client to use.
+   * Rewrites the upstream packages.json read from the input stream into the output stream, so a proxy can serve it
+   * without generating one from the upstream list.json. The metadata, provider and list URLs are pointed back to
+   * Nexus, entries referring to endpoints Nexus does not serve are dropped and packages inlined into the document are
+   * rewritten like those of a provider or package JSON, so that their dist URLs point back to Nexus too. Everything
+   * else is copied as is. A metadata URL is always written so that v2 clients can resolve packages through the proxy.
    */
-  public Content generatePackagesFromComponents(final Repository repository, final Iterable<Component> components)
+  public void rewritePackagesJson(final Repository repository, final InputStream in, final OutputStream out)
       throws IOException
   {
-    return buildPackagesJson(repository, StreamSupport.stream(components.spliterator(), false)
-        .map(component -> component.group() + "/" + component.name()).collect(Collectors.toSet()));
+    try (JsonParser parser = mapper.getFactory().createParser(in);
+         JsonGenerator generator = createGenerator(out)) {
+      parser.disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+      if (parser.nextToken() != JsonToken.START_OBJECT) {
+        throw new IOException("Packages JSON must be an object");
+      }
+      boolean metadataUrl = false;
+      generator.writeStartObject();
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String fieldName = parser.getCurrentName();
+        parser.nextToken();
+        if (METADATA_URL_KEY.equals(fieldName)) {
+          generator.writeStringField(METADATA_URL_KEY, repository.getUrl() + PACKAGE_V2_JSON_PATH);
+          metadataUrl = true;
+          parser.skipChildren();
+        }
+        else if (PROVIDERS_URL_KEY.equals(fieldName)) {
+          generator.writeStringField(PROVIDERS_URL_KEY, repository.getUrl() + PACKAGE_JSON_PATH);
+          parser.skipChildren();
+        }
+        else if (LIST_KEY.equals(fieldName)) {
+          generator.writeStringField(LIST_KEY, repository.getUrl() + LIST_JSON_PATH);
+          parser.skipChildren();
+        }
+        else if (UPSTREAM_ONLY_KEYS.contains(fieldName)) {
+          parser.skipChildren();
+        }
+        else if (PACKAGES_KEY.equals(fieldName) && parser.getCurrentToken() == JsonToken.START_OBJECT) {
+          generator.writeFieldName(fieldName);
+          rewritePackages(repository, parser, generator, false);
+        }
+        else {
+          generator.writeFieldName(fieldName);
+          generator.copyCurrentStructure(parser);
+        }
+      }
+      if (!metadataUrl) {
+        generator.writeStringField(METADATA_URL_KEY, repository.getUrl() + PACKAGE_V2_JSON_PATH);
+      }
+      generator.writeEndObject();
+    }
   }
 
   /**
-   * Builds a packages.json file as a {@code Content} instance containing the actual JSON for the given providers.
+   * Writes a packages.json file (inclusive of all projects) for the components provided to the stream. Only the
+   * package names are kept in memory while the document is written.
    */
-  private Content buildPackagesJson(final Repository repository, final Set<String> names) throws IOException {
-    Map<String, Object> packagesJson = new LinkedHashMap<>();
-    packagesJson.put(PROVIDERS_URL_KEY, repository.getUrl() + PACKAGE_JSON_PATH);
-    packagesJson.put(METADATA_URL_KEY, repository.getUrl() + PACKAGE_V2_JSON_PATH);
-    packagesJson.put(PROVIDERS_KEY, names.stream()
-        .collect(Collectors.toMap((each) -> each, (each) -> singletonMap(SHA256_KEY, null))));
-    return new Content(new StringPayload(mapper.writeValueAsString(packagesJson), ContentTypes.APPLICATION_JSON));
+  public void writePackagesFromComponents(final Repository repository,
+                                          final Iterable<Component> components,
+                                          final OutputStream out) throws IOException
+  {
+    writePackagesJson(repository, collectPackageNames(components), out);
+  }
+
+  private Set<String> collectPackageNames(final Iterable<Component> components) {
+    return StreamSupport.stream(components.spliterator(), false)
+        .map(component -> component.group() + "/" + component.name())
+        .collect(Collectors.toCollection(LinkedHashSet::new));
+  }
+
+  /**
+   * Copies an existing packages.json file from the input stream into the output stream, adding or removing a single
+   * package name on the way. The repository URLs it contains are left alone, they are rewritten whenever the file is
+   * served. A file that is already up to date is copied unchanged.
+   */
+  public void patchPackagesJson(final InputStream in,
+                                final OutputStream out,
+                                final String packageName,
+                                final boolean present) throws IOException
+  {
+    try (JsonParser parser = mapper.getFactory().createParser(in);
+         JsonGenerator generator = createGenerator(out)) {
+      parser.disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+      if (parser.nextToken() != JsonToken.START_OBJECT) {
+        throw new IOException("Packages JSON must be an object");
+      }
+      boolean providers = false;
+      generator.writeStartObject();
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String fieldName = parser.getCurrentName();
+        parser.nextToken();
+        generator.writeFieldName(fieldName);
+        if (PROVIDERS_KEY.equals(fieldName) && parser.getCurrentToken() == JsonToken.START_OBJECT) {
+          patchProviders(parser, generator, packageName, present);
+          providers = true;
+        }
+        else {
+          generator.copyCurrentStructure(parser);
+        }
+      }
+      if (!providers && present) {
+        generator.writeObjectFieldStart(PROVIDERS_KEY);
+        writeProviderEntry(generator, packageName);
+        generator.writeEndObject();
+      }
+      generator.writeEndObject();
+    }
+  }
+
+  private void patchProviders(final JsonParser parser,
+                              final JsonGenerator generator,
+                              final String packageName,
+                              final boolean present) throws IOException
+  {
+    boolean found = false;
+    generator.writeStartObject();
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String name = parser.getCurrentName();
+      parser.nextToken();
+      if (packageName.equals(name)) {
+        found = true;
+        if (!present) {
+          parser.skipChildren();
+          continue;
+        }
+      }
+      generator.writeFieldName(name);
+      generator.copyCurrentStructure(parser);
+    }
+    if (present && !found) {
+      writeProviderEntry(generator, packageName);
+    }
+    generator.writeEndObject();
+  }
+
+  /**
+   * Writes a packages.json file containing the actual JSON for the given providers to the stream.
+   */
+  public void writePackagesJson(final Repository repository, final Collection<String> names, final OutputStream out)
+      throws IOException
+  {
+    try (JsonGenerator generator = createGenerator(out)) {
+      writePackagesJsonStart(repository, generator);
+      for (String name : names) {
+        writeProviderEntry(generator, name);
+      }
+      writePackagesJsonEnd(generator);
+    }
+  }
+
+  private void writePackagesJsonStart(final Repository repository, final JsonGenerator generator) throws IOException {
+    generator.writeStartObject();
+    generator.writeStringField(PROVIDERS_URL_KEY, repository.getUrl() + PACKAGE_JSON_PATH);
+    generator.writeStringField(METADATA_URL_KEY, repository.getUrl() + PACKAGE_V2_JSON_PATH);
+    generator.writeObjectFieldStart(PROVIDERS_KEY);
+  }
+
+  private void writeProviderEntry(final JsonGenerator generator, final String name) throws IOException {
+    generator.writeObjectFieldStart(name);
+    generator.writeNullField(SHA256_KEY);
+    generator.writeEndObject();
+  }
+
+  private void writePackagesJsonEnd(final JsonGenerator generator) throws IOException {
+    generator.writeEndObject();
+    generator.writeEndObject();
   }
 
   /**
@@ -210,34 +434,130 @@ public class ComposerJsonProcessor
   }
 
   /**
-   * Rewrites the provider JSON so that source entries are removed and dist entries are pointed back to Nexus.
+   * Rewrites the package (v2) JSON of the payload into the output stream. Tokens are copied straight through, and only
+   * one version entry at a time is materialized so that its source can be dropped and its dist URL pointed back to
+   * Nexus. The minified layout of the document is preserved; in a minified document a version that inherits its dist
+   * from the previous entry gets an explicit dist since the rewritten URL differs per version. The payload is read
+   * twice, as the {@code minified} marker may follow the packages.
    */
-  public Payload rewritePackageJson(final Repository repository, final Payload payload) throws IOException {
-    Map<String, Object> json = parseJson(payload);
+  public void rewritePackageJson(final Repository repository, final Payload payload, final OutputStream out)
+      throws IOException
+  {
+    boolean minified = summarizePackageJson(payload).minified;
+    try (InputStream in = payload.openInputStream();
+         JsonParser parser = mapper.getFactory().createParser(in);
+         JsonGenerator generator = createGenerator(out)) {
+      if (parser.nextToken() != JsonToken.START_OBJECT) {
+        throw new IOException("Package JSON must be an object");
+      }
+      generator.writeStartObject();
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String fieldName = parser.getCurrentName();
+        JsonToken token = parser.nextToken();
+        generator.writeFieldName(fieldName);
+        if (PACKAGES_KEY.equals(fieldName) && token == JsonToken.START_OBJECT) {
+          rewritePackages(repository, parser, generator, minified);
+        }
+        else {
+          generator.copyCurrentStructure(parser);
+        }
+      }
+      generator.writeEndObject();
+    }
+  }
 
-    this.composerJsonMinifier.expand(json);
+  private void rewritePackages(final Repository repository,
+                               final JsonParser parser,
+                               final JsonGenerator generator,
+                               final boolean minified) throws IOException
+  {
+    generator.writeStartObject();
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String packageName = parser.getCurrentName();
+      JsonToken token = parser.nextToken();
+      generator.writeFieldName(packageName);
+      if (token == JsonToken.START_ARRAY) {
+        rewritePackageVersions(repository, packageName, parser, generator, minified);
+      }
+      else if (token == JsonToken.START_OBJECT) {
+        rewriteProviderVersions(repository, packageName, parser, generator);
+      }
+      else {
+        generator.copyCurrentStructure(parser);
+      }
+    }
+    generator.writeEndObject();
+  }
 
-    if (json.get(PACKAGES_KEY) instanceof Map) {
-      Map<String, Object> packagesMap = (Map<String, Object>) json.get(PACKAGES_KEY);
-      for (String packageName : packagesMap.keySet()) {
-        List<Map<String, Object>> packageVersions = (List<Map<String, Object>>) packagesMap.get(packageName);
-        for (Map<String, Object> versionInfo : packageVersions) {
-          // TODO: Make this more robust, right now it makes a lot of assumptions and doesn't deal with bad things well
-          versionInfo.remove(SOURCE_KEY); // TODO: For now don't allow sources, probably should make this configurable?
+  private void rewritePackageVersions(final Repository repository,
+                                      final String packageName,
+                                      final JsonParser parser,
+                                      final JsonGenerator generator,
+                                      final boolean minified) throws IOException
+  {
+    Map<String, Object> inheritedDistInfo = null;
+    generator.writeStartArray();
+    while (parser.nextToken() != JsonToken.END_ARRAY) {
+      if (parser.getCurrentToken() != JsonToken.START_OBJECT) {
+        generator.copyCurrentStructure(parser);
+        continue;
+      }
+      Map<String, Object> versionInfo = mapper.readValue(parser, mapTypeReference);
+      // source entries would let clients bypass Nexus, so only the rewritten dist is published
+      versionInfo.remove(SOURCE_KEY);
+
+      Object version = versionInfo.get(VERSION_KEY);
+      Object dist = versionInfo.get(DIST_KEY);
+      if (dist instanceof Map) {
+        Map<String, Object> distInfo = (Map<String, Object>) dist;
+        inheritedDistInfo = ZIP_TYPE.equals(distInfo.get(TYPE_KEY)) ? distInfo : null;
+      }
+      else if (dist != null || !minified) {
+        // only a minified document leaves out a dist that is the same as the one of the entry before
+        inheritedDistInfo = null;
+      }
 
-          Map<String, Object> distInfo = (Map<String, Object>) versionInfo.get(DIST_KEY);
-          if (distInfo != null && ZIP_TYPE.equals(distInfo.get(TYPE_KEY))) {
-            versionInfo.put(DIST_KEY,
-                    buildDistInfo(repository, packageName, (String) versionInfo.get(VERSION_KEY), (String) distInfo.get(REFERENCE_KEY),
-                            (String) distInfo.get(SHASUM_KEY), ZIP_TYPE));
-          }
-        }
+      if (inheritedDistInfo != null && version instanceof String) {
+        versionInfo.put(DIST_KEY,
+            buildDistInfo(repository, packageName, (String) version, (String) inheritedDistInfo.get(REFERENCE_KEY),
+                (String) inheritedDistInfo.get(SHASUM_KEY), ZIP_TYPE));
       }
+      entryWriter.writeValue(generator, versionInfo);
     }
+    generator.writeEndArray();
+  }
 
-    this.composerJsonMinifier.minify(json);
-
-    return new StringPayload(mapper.writeValueAsString(json), payload.getContentType());
+  /**
+   * Rewrites the versions of a package listed in the provider (v1) layout, an object keyed by version, one version
+   * entry at a time.
+   */
+  private void rewriteProviderVersions(final Repository repository,
+                                       final String packageName,
+                                       final JsonParser parser,
+                                       final JsonGenerator generator) throws IOException
+  {
+    generator.writeStartObject();
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String packageVersion = parser.getCurrentName();
+      JsonToken token = parser.nextToken();
+      generator.writeFieldName(packageVersion);
+      if (token != JsonToken.START_OBJECT) {
+        generator.copyCurrentStructure(parser);
+        continue;
+      }
+      Map<String, Object> versionInfo = mapper.readValue(parser, mapTypeReference);
+      versionInfo.remove(SOURCE_KEY);
+
+      Object dist = versionInfo.get(DIST_KEY);
+      if (dist instanceof Map && ZIP_TYPE.equals(((Map<String, Object>) dist).get(TYPE_KEY)) &&
+          packageName.indexOf('/') > 0) {
+        Map<String, Object> distInfo = (Map<String, Object>) dist;
+        versionInfo.put(DIST_KEY, buildDistInfo(repository, packageName, packageVersion,
+            (String) distInfo.get(REFERENCE_KEY), (String) distInfo.get(SHASUM_KEY), ZIP_TYPE));
+      }
+      entryWriter.writeValue(generator, versionInfo);
+    }
+    generator.writeEndObject();
   }
 
   private String getAttributeFromAsset(Asset asset, String name) {
@@ -245,6 +565,21 @@ public class ComposerJsonProcessor
         asset.formatAttributes().require(name, String.class) : null;
   }
 
+  /**
+   * Returns the composer.json of a zipball asset, preferring the copy kept in the metadata attributes at upload time
+   * and only opening the archive for assets stored before that copy was kept.
+   */
+  private Map<String, Object> readComposerJson(final StorageTx storageTx, final Asset asset) throws IOException {
+    String composerJson = asset.attributes() != null && asset.attributes().contains(P_COMPOSER_METADATA) ?
+        asset.attributes().child(P_COMPOSER_METADATA).get(P_COMPOSER_JSON, String.class) : null;
+    if (composerJson != null) {
+      return mapper.readValue(composerJson, mapTypeReference);
+    }
+    BlobRef blobRef = asset.requireBlobRef();
+    Blob blob = storageTx.requireBlob(blobRef);
+    return composerJsonExtractor.extractFromZip(blob);
+  }
+
   /**
    * Builds a provider JSON file for a list of components. This minimal subset will contain the packages entries with
    * the name, version, and dist information for each component. A timestamp derived from the component's last updated
@@ -254,42 +589,32 @@ public class ComposerJsonProcessor
                                    final StorageTx storageTx,
                                    final Iterable<Component> components) throws IOException
   {
-    Map<String, Map<String, Object>> packages = new LinkedHashMap<>();
-    for (Component component : components) {
-      Asset asset = storageTx.firstAsset(component);
-      BlobRef blobRef = asset.requireBlobRef();
-      Blob blob = storageTx.requireBlob(blobRef);
-      Map<String, Object> composerJson = composerJsonExtractor.extractFromZip(blob);
-
-      String vendor = component.group();
-      String project = component.name();
-      String version = component.version();
-
-      String name = vendor + "/" + project;
-      String time = component.requireLastUpdated().withZone(DateTimeZone.UTC).toString(timeFormatter);
-
-      if (!packages.containsKey(name)) {
-        packages.put(name, new LinkedHashMap<>());
-      }
+    return toContent(out -> writeProviderJson(repository, storageTx, components, out));
+  }
 
-      String sha1 = asset.getChecksum(HashAlgorithm.SHA1).toString();
-      Map<String, Object> sourceInfo = null;
-      String sourceType = getAttributeFromAsset(asset, SOURCE_TYPE_FIELD_NAME);
-      String sourceUrl = getAttributeFromAsset(asset, SOURCE_URL_FIELD_NAME);
-      String sourceReference = getAttributeFromAsset(asset, SOURCE_REFERENCE_FIELD_NAME);
-      if (StringUtils.isNotBlank(sourceType) && StringUtils.isNotBlank(sourceUrl) && StringUtils.isNotBlank(sourceReference)) {
-        sourceInfo = new LinkedHashMap<>();
-        sourceInfo.put(TYPE_KEY, sourceType);
-        sourceInfo.put(URL_KEY, sourceUrl);
-        sourceInfo.put(REFERENCE_KEY, sourceReference);
+  /**
+   * Writes the provider JSON file for a list of components (see {@link #buildProviderJson}) to the stream, building
+   * one package entry at a time.
+   */
+  public void writeProviderJson(final Repository repository,
+                                final StorageTx storageTx,
+                                final Iterable<Component> components,
+                                final OutputStream out) throws IOException
+  {
+    try (JsonGenerator generator = createGenerator(out)) {
+      generator.writeStartObject();
+      generator.writeObjectFieldStart(PACKAGES_KEY);
+      for (Map.Entry<String, List<Component>> entry : groupByPackageName(components).entrySet()) {
+        generator.writeObjectFieldStart(entry.getKey());
+        for (Component component : entry.getValue()) {
+          generator.writeFieldName(component.version());
+          entryWriter.writeValue(generator, buildPackageInfo(repository, storageTx, component));
+        }
+        generator.writeEndObject();
       }
-      Map<String, Object> packagesForName = packages.get(name);
-      packagesForName
-          .put(version, buildPackageInfo(repository, name, version, sha1, sha1, ZIP_TYPE, time, composerJson, sourceInfo));
+      generator.writeEndObject();
+      generator.writeEndObject();
     }
-
-    return new Content(new StringPayload(mapper.writeValueAsString(singletonMap(PACKAGES_KEY, packages)),
-        ContentTypes.APPLICATION_JSON));
   }
 
   /**
@@ -301,171 +626,565 @@ public class ComposerJsonProcessor
                                    final StorageTx storageTx,
                                    final Iterable<Component> components) throws IOException
   {
-    Map<String, List<Object>> packages = new LinkedHashMap<>();
-    for (Component component : components) {
-      Asset asset = storageTx.firstAsset(component);
-      BlobRef blobRef = asset.requireBlobRef();
-      Blob blob = storageTx.requireBlob(blobRef);
-      Map<String, Object> composerJson = composerJsonExtractor.extractFromZip(blob);
+    return toContent(out -> writePackageJson(repository, storageTx, components, out));
+  }
 
-      String vendor = component.group();
-      String project = component.name();
-      String version = component.version();
+  /**
+   * Writes the minified package JSON file for a list of components (see {@link #buildPackageJson}) to the stream,
+   * building and minifying one package entry at a time.
+   */
+  public void writePackageJson(final Repository repository,
+                               final StorageTx storageTx,
+                               final Iterable<Component> components,
+                               final OutputStream out) throws IOException
+  {
+    try (JsonGenerator generator = createGenerator(out)) {
+      generator.writeStartObject();
+      generator.writeObjectFieldStart(PACKAGES_KEY);
+      for (Map.Entry<String, List<Component>> entry : groupByPackageName(components).entrySet()) {
+        generator.writeArrayFieldStart(entry.getKey());
+        Map<String, Object> lastKnownVersionData = null;
+        for (Component component : entry.getValue()) {
+          Map<String, Object> packageInfo = buildPackageInfo(repository, storageTx, component);
+          if (lastKnownVersionData == null) {
+            lastKnownVersionData = new LinkedHashMap<>(packageInfo);
+            entryWriter.writeValue(generator, packageInfo);
+          }
+          else {
+            entryWriter.writeValue(generator, composerJsonMinifier.minifyVersion(lastKnownVersionData, packageInfo));
+          }
+        }
+        generator.writeEndArray();
+      }
+      generator.writeEndObject();
+      generator.writeStringField(MINIFIED_KEY, composerJsonMinifier.getMinifiedFormat());
+      generator.writeEndObject();
+    }
+  }
 
-      String name = vendor + "/" + project;
-      String time = component.requireLastUpdated().withZone(DateTimeZone.UTC).toString(timeFormatter);
+  /**
+   * Groups components by package name, keeping only the component references so entries can be built one at a time.
+   */
+  private Map<String, List<Component>> groupByPackageName(final Iterable<Component> components) {
+    Map<String, List<Component>> packages = new LinkedHashMap<>();
+    for (Component component : components) {
+      packages.computeIfAbsent(component.group() + "/" + component.name(), name -> new ArrayList<>()).add(component);
+    }
+    return packages;
+  }
 
-      if (!packages.containsKey(name)) {
-        packages.put(name, new ArrayList<>());
+  /**
+   * Patches an existing (minified) package JSON file for a single version of a package into the output stream, leaving
+   * all other versions as they are. The entry for the version is dropped and, if a component is provided, replaced by a
+   * newly built entry placed first in the list. The file is streamed one version entry at a time: entries are copied as
+   * they are, and only the entries following a dropped or inserted one are minified again, against the entry now
+   * listed before them. This avoids querying and processing every other version of the package for each upload or
+   * delete; {@link #writePackageJson(Repository, StorageTx, Iterable, OutputStream)} remains the way to rebuild the
+   * file in full. The payload is read twice, as the {@code minified} marker follows the packages.
+   */
+  public void patchPackageJson(final Repository repository,
+                               final StorageTx storageTx,
+                               final Payload payload,
+                               final String packageName,
+                               final String packageVersion,
+                               @Nullable final Component component,
+                               final OutputStream out) throws IOException
+  {
+    PackageJsonSummary summary = summarizePackageJson(payload);
+    Map<String, Object> packageInfo = component != null ? buildPackageInfo(repository, storageTx, component) : null;
+    try (InputStream in = payload.openInputStream();
+         JsonParser parser = mapper.getFactory().createParser(in);
+         JsonGenerator generator = createGenerator(out)) {
+      if (parser.nextToken() != JsonToken.START_OBJECT) {
+        throw new IOException("Package JSON must be an object");
       }
-
-      String sha1 = asset.getChecksum(HashAlgorithm.SHA1).toString();
-      Map<String, Object> sourceInfo = null;
-      String sourceType = getAttributeFromAsset(asset, SOURCE_TYPE_FIELD_NAME);
-      String sourceUrl = getAttributeFromAsset(asset, SOURCE_URL_FIELD_NAME);
-      String sourceReference = getAttributeFromAsset(asset, SOURCE_REFERENCE_FIELD_NAME);
-      if (StringUtils.isNotBlank(sourceType) && StringUtils.isNotBlank(sourceUrl) && StringUtils.isNotBlank(sourceReference)) {
-        sourceInfo = new LinkedHashMap<>();
-        sourceInfo.put(TYPE_KEY, sourceType);
-        sourceInfo.put(URL_KEY, sourceUrl);
-        sourceInfo.put(REFERENCE_KEY, sourceReference);
+      boolean packages = false;
+      generator.writeStartObject();
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String fieldName = parser.getCurrentName();
+        JsonToken token = parser.nextToken();
+        if (PACKAGES_KEY.equals(fieldName) && token == JsonToken.START_OBJECT) {
+          generator.writeObjectFieldStart(PACKAGES_KEY);
+          while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            if (parser.nextToken() == JsonToken.START_ARRAY && packageName.equals(name)) {
+              patchPackageVersions(parser, generator, packageName, packageVersion, packageInfo, summary.minified);
+            }
+            else {
+              generator.writeFieldName(name);
+              generator.copyCurrentStructure(parser);
+            }
+          }
+          if (packageInfo != null && !summary.packageNames.contains(packageName)) {
+            generator.writeArrayFieldStart(packageName);
+            entryWriter.writeValue(generator, packageInfo);
+            generator.writeEndArray();
+          }
+          generator.writeEndObject();
+          packages = true;
+        }
+        else {
+          generator.writeFieldName(fieldName);
+          generator.copyCurrentStructure(parser);
+        }
+      }
+      if (!packages && packageInfo != null) {
+        generator.writeObjectFieldStart(PACKAGES_KEY);
+        generator.writeArrayFieldStart(packageName);
+        entryWriter.writeValue(generator, packageInfo);
+        generator.writeEndArray();
+        generator.writeEndObject();
       }
-      List<Object> packagesForName = packages.get(name);
-      packagesForName
-              .add(buildPackageInfo(repository, name, version, sha1, sha1, ZIP_TYPE, time, composerJson, sourceInfo));
+      generator.writeEndObject();
     }
+  }
 
-    Map<String, Object> json = new LinkedHashMap<>();
-    json.put(PACKAGES_KEY, packages);
-    this.composerJsonMinifier.minify(json);
+  /**
+   * Streams the version list of the patched package, dropping the entry of the patched version and placing the new
+   * entry, if any, first. The versions of a minified list are expanded one at a time while they are read; as long as
+   * the entry written last is the same as the one read last, the entries read are copied as they are, otherwise the
+   * entry is minified against the one written last. The package is left out entirely if no version remains.
+   */
+  private void patchPackageVersions(final JsonParser parser,
+                                    final JsonGenerator generator,
+                                    final String packageName,
+                                    final String packageVersion,
+                                    @Nullable final Map<String, Object> packageInfo,
+                                    final boolean minified) throws IOException
+  {
+    boolean started = false;
+    // the expanded entry read last, and the expanded entry written last while it differs from the one read last
+    Map<String, Object> expanded = null;
+    Map<String, Object> lastKnownVersionData = null;
+    boolean inSync = true;
+    if (packageInfo != null) {
+      generator.writeArrayFieldStart(packageName);
+      started = true;
+      entryWriter.writeValue(generator, packageInfo);
+      lastKnownVersionData = new LinkedHashMap<>(packageInfo);
+      inSync = false;
+    }
+    while (parser.nextToken() != JsonToken.END_ARRAY) {
+      if (parser.getCurrentToken() != JsonToken.START_OBJECT) {
+        parser.skipChildren();
+        continue;
+      }
+      Map<String, Object> versionInfo = mapper.readValue(parser, mapTypeReference);
+      Map<String, Object> previous = expanded;
+      if (minified) {
+        expanded = previous == null ? new LinkedHashMap<>(versionInfo) :
+            composerJsonMinifier.expandVersion(previous, versionInfo);
+      }
+      else {
+        expanded = versionInfo;
+      }
+      if (packageVersion.equals(expanded.get(VERSION_KEY))) {
+        if (inSync) {
+          lastKnownVersionData = previous != null ? new LinkedHashMap<>(previous) : null;
+          inSync = false;
+        }
+        continue;
+      }
+      if (!started) {
+        generator.writeArrayFieldStart(packageName);
+        started = true;
+      }
+      if (inSync || !minified) {
+        entryWriter.writeValue(generator, versionInfo);
+      }
+      else if (lastKnownVersionData == null) {
+        entryWriter.writeValue(generator, expanded);
+      }
+      else {
+        entryWriter.writeValue(generator, composerJsonMinifier.minifyVersion(lastKnownVersionData, expanded));
+      }
+      inSync = true;
+    }
+    if (started) {
+      generator.writeEndArray();
+    }
+  }
 
-    return new Content(new StringPayload(mapper.writeValueAsString(json),
-            ContentTypes.APPLICATION_JSON));
+  /**
+   * Builds the package entry for a single component from its zipball asset, including the dist information pointing
+   * back to this repository and any source information recorded at upload time.
+   */
+  private Map<String, Object> buildPackageInfo(final Repository repository,
+                                               final StorageTx storageTx,
+                                               final Component component) throws IOException
+  {
+    Asset asset = storageTx.firstAsset(component);
+    Map<String, Object> composerJson = readComposerJson(storageTx, asset);
+
+    String vendor = component.group();
+    String project = component.name();
+    String version = component.version();
+
+    String name = vendor + "/" + project;
+    String time = component.requireLastUpdated().withZone(DateTimeZone.UTC).toString(timeFormatter);
+
+    String sha1 = asset.getChecksum(HashAlgorithm.SHA1).toString();
+    Map<String, Object> sourceInfo = null;
+    String sourceType = getAttributeFromAsset(asset, SOURCE_TYPE_FIELD_NAME);
+    String sourceUrl = getAttributeFromAsset(asset, SOURCE_URL_FIELD_NAME);
+    String sourceReference = getAttributeFromAsset(asset, SOURCE_REFERENCE_FIELD_NAME);
+    if (StringUtils.isNotBlank(sourceType) && StringUtils.isNotBlank(sourceUrl) && StringUtils.isNotBlank(sourceReference)) {
+      sourceInfo = new LinkedHashMap<>();
+      sourceInfo.put(TYPE_KEY, sourceType);
+      sourceInfo.put(URL_KEY, sourceUrl);
+      sourceInfo.put(REFERENCE_KEY, sourceReference);
+    }
+    return buildPackageInfo(repository, name, version, sha1, sha1, ZIP_TYPE, time, composerJson, sourceInfo);
   }
 
+
   /**
    * Merges an incoming set of packages.json files.
    */
   public Content mergePackagesJson(final Repository repository, final List<Payload> payloads) throws IOException {
-    Set<String> names = new HashSet<>();
+    return toContent(out -> writeMergedPackagesJson(repository, payloads, out));
+  }
+
+  /**
+   * Merges incoming packages.json files into a packages.json written to the output stream. Only the provider names are
+   * read from the payloads, one at a time, and kept to leave out duplicates.
+   */
+  public void writeMergedPackagesJson(final Repository repository,
+                                      final List<Payload> payloads,
+                                      final OutputStream out) throws IOException
+  {
+    Set<String> names = new LinkedHashSet<>();
     for (Payload payload : payloads) {
-      Map<String, Object> json = parseJson(payload);
-      Map<String, Object> providers = (Map<String, Object>) json.get(PROVIDERS_KEY);
-      names.addAll(providers.keySet());
+      names.addAll(readFieldNames(payload, PROVIDERS_KEY));
     }
-    return buildPackagesJson(repository, names);
+    writePackagesJson(repository, names, out);
   }
 
   /**
    * Merges incoming provider JSON files, producing a merged file containing only the minimal subset of fields that we
-   * need to download artifacts.
+   * need to download artifacts. See {@link #writeMergedProviderJson} for details.
    */
   public Content mergeProviderJson(final Repository repository, final List<Payload> payloads, final DateTime now)
       throws IOException
+  {
+    return toContent(out -> writeMergedProviderJson(repository, payloads, now, out));
+  }
+
+  /**
+   * Merges incoming provider JSON files into a provider JSON file written to the output stream. The first payload
+   * listing a version of a package wins and versions without a dist are left out. As for
+   * {@link #writeMergedPackageJson} the payloads are read one version entry at a time, once to find their package
+   * names and then once per package they list, so only the versions written for the current package are held in
+   * memory.
+   */
+  public void writeMergedProviderJson(final Repository repository,
+                                      final List<Payload> payloads,
+                                      final DateTime now,
+                                      final OutputStream out) throws IOException
   {
     String currentTime = now.withZone(DateTimeZone.UTC).toString(timeFormatter);
 
-    // TODO: Make this more robust, right now it makes a lot of assumptions and doesn't deal with bad things well,
-    // can probably consolidate this with the handling for rewrites for proxy (or at least make it more rational).
-    Map<String, Map<String, Object>> packages = new LinkedHashMap<>();
+    List<Set<String>> payloadPackageNames = new ArrayList<>();
+    Set<String> packageNames = new LinkedHashSet<>();
     for (Payload payload : payloads) {
-      Map<String, Object> json = parseJson(payload);
-      if (json.get(PACKAGES_KEY) instanceof Map) {
-
-        Map<String, Object> packagesMap = (Map<String, Object>) json.get(PACKAGES_KEY);
-        for (String packageName : packagesMap.keySet()) {
+      Set<String> names = readFieldNames(payload, PACKAGES_KEY);
+      payloadPackageNames.add(names);
+      packageNames.addAll(names);
+    }
 
-          Map<String, Object> packageVersions = (Map<String, Object>) packagesMap.get(packageName);
-          for (String packageVersion : packageVersions.keySet()) {
+    try (JsonGenerator generator = createGenerator(out)) {
+      generator.writeStartObject();
+      generator.writeObjectFieldStart(PACKAGES_KEY);
+      for (String packageName : packageNames) {
+        Set<String> versions = new HashSet<>();
+        for (int i = 0; i < payloads.size(); i++) {
+          if (payloadPackageNames.get(i).contains(packageName)) {
+            mergeProviderVersions(repository, payloads.get(i), packageName, currentTime, versions, generator);
+          }
+        }
+        if (!versions.isEmpty()) {
+          generator.writeEndObject();
+        }
+      }
+      generator.writeEndObject();
+      generator.writeEndObject();
+    }
+  }
 
-            Map<String, Object> versionInfo = (Map<String, Object>) packageVersions.get(packageVersion);
-            Map<String, Object> distInfo = (Map<String, Object>) versionInfo.get(DIST_KEY);
-            if (distInfo == null) {
+  /**
+   * Streams the versions of one package from a provider JSON file into the merged file, opening the package object
+   * when its first version is written.
+   */
+  private void mergeProviderVersions(final Repository repository,
+                                     final Payload payload,
+                                     final String packageName,
+                                     final String currentTime,
+                                     final Set<String> versions,
+                                     final JsonGenerator generator) throws IOException
+  {
+    try (InputStream in = payload.openInputStream();
+         JsonParser parser = mapper.getFactory().createParser(in)) {
+      parser.nextToken();
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String fieldName = parser.getCurrentName();
+        JsonToken token = parser.nextToken();
+        if (!PACKAGES_KEY.equals(fieldName) || token != JsonToken.START_OBJECT) {
+          parser.skipChildren();
+          continue;
+        }
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+          String name = parser.getCurrentName();
+          if (parser.nextToken() != JsonToken.START_OBJECT || !packageName.equals(name)) {
+            parser.skipChildren();
+            continue;
+          }
+          while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String packageVersion = parser.getCurrentName();
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+              parser.skipChildren();
               continue;
             }
-            Map<String, Object> sourceInfo = (Map<String, Object>) versionInfo.get(SOURCE_KEY);
-
-            if (!packages.containsKey(packageName)) {
-              packages.put(packageName, new LinkedHashMap<>());
+            Map<String, Object> versionInfo = mapper.readValue(parser, mapTypeReference);
+            Object dist = versionInfo.get(DIST_KEY);
+            if (!(dist instanceof Map) || versions.contains(packageVersion)) {
+              continue;
             }
-
-            String time = (String) versionInfo.get(TIME_KEY);
-            if (time == null) {
-              time = currentTime;
+            if (versions.isEmpty()) {
+              generator.writeObjectFieldStart(packageName);
             }
-
-            Map<String, Object> packagesForName = packages.get(packageName);
-            packagesForName.putIfAbsent(packageVersion, buildPackageInfo(repository, packageName, packageVersion,
+            versions.add(packageVersion);
+
+            Map<String, Object> distInfo = (Map<String, Object>) dist;
+            Object sourceInfo = versionInfo.get(SOURCE_KEY);
+            String time = versionInfo.get(TIME_KEY) instanceof String ?
+                (String) versionInfo.get(TIME_KEY) : currentTime;
+            generator.writeFieldName(packageVersion);
+            entryWriter.writeValue(generator, buildPackageInfo(repository, packageName, packageVersion,
                 (String) distInfo.get(REFERENCE_KEY), (String) distInfo.get(SHASUM_KEY),
-                (String) distInfo.get(TYPE_KEY), time, versionInfo, sourceInfo));
+                (String) distInfo.get(TYPE_KEY), time, versionInfo,
+                sourceInfo instanceof Map ? (Map<String, Object>) sourceInfo : null));
           }
+          return;
         }
+        return;
       }
     }
+  }
 
-    return new Content(new StringPayload(mapper.writeValueAsString(singletonMap(PACKAGES_KEY, packages)),
-        ContentTypes.APPLICATION_JSON));
+  /**
+   * Reads the field names of the object held by a top-level field of a JSON file without materializing their values.
+   */
+  private Set<String> readFieldNames(final Payload payload, final String key) throws IOException {
+    Set<String> names = new LinkedHashSet<>();
+    try (InputStream in = payload.openInputStream();
+         JsonParser parser = mapper.getFactory().createParser(in)) {
+      if (parser.nextToken() != JsonToken.START_OBJECT) {
+        throw new IOException("JSON must be an object");
+      }
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String fieldName = parser.getCurrentName();
+        JsonToken token = parser.nextToken();
+        if (key.equals(fieldName) && token == JsonToken.START_OBJECT) {
+          while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            names.add(parser.getCurrentName());
+            parser.nextToken();
+            parser.skipChildren();
+          }
+        }
+        else {
+          parser.skipChildren();
+        }
+      }
+    }
+    return names;
   }
 
   /**
-   * Merges incoming provider JSON files, producing a merged file containing only the minimal subset of fields that we
-   * need to download artifacts.
+   * Merges incoming package (v2) JSON files, producing a merged file containing only the minimal subset of fields that
+   * we need to download artifacts. See {@link #writeMergedPackageJson} for details.
    */
   public Content mergePackageJson(final Repository repository, final List<Payload> payloads, final DateTime now)
           throws IOException
+  {
+    return toContent(out -> writeMergedPackageJson(repository, payloads, now, out));
+  }
+
+  /**
+   * Merges incoming package (v2) JSON files into a minified package JSON file written to the output stream. The first
+   * payload listing a version wins; the versions of each package are written in payload order. The payloads are read
+   * incrementally, one version entry at a time, and the merged entries are minified as they are written, so only the
+   * current entry, the last written entry and the versions seen so far are held in memory. Each payload is opened once
+   * to find its package names and format, then once per package it lists, so payloads must be re-readable (as stored
+   * content is).
+   */
+  public void writeMergedPackageJson(final Repository repository,
+                                     final List<Payload> payloads,
+                                     final DateTime now,
+                                     final OutputStream out) throws IOException
   {
     String currentTime = now.withZone(DateTimeZone.UTC).toString(timeFormatter);
 
-    // TODO: Make this more robust, right now it makes a lot of assumptions and doesn't deal with bad things well,
-    // can probably consolidate this with the handling for rewrites for proxy (or at least make it more rational).
-    Map<String, Map<String, Object>> packages = new LinkedHashMap<>();
+    List<PackageJsonSummary> summaries = new ArrayList<>();
+    Set<String> packageNames = new LinkedHashSet<>();
     for (Payload payload : payloads) {
-      Map<String, Object> json = parseJson(payload);
-      this.composerJsonMinifier.expand(json);
-      if (json.get(PACKAGES_KEY) instanceof Map) {
-
-        Map<String, Object> packagesMap = (Map<String, Object>) json.get(PACKAGES_KEY);
-        for (String packageName : packagesMap.keySet()) {
-
-          List<Map<String, Object>> packageVersions = (List<Map<String, Object>>) packagesMap.get(packageName);
-          for (Map<String, Object> versionInfo : packageVersions) {
-            String packageVersion = (String) versionInfo.get(VERSION_KEY);
+      PackageJsonSummary summary = summarizePackageJson(payload);
+      summaries.add(summary);
+      packageNames.addAll(summary.packageNames);
+    }
 
-            Map<String, Object> distInfo = (Map<String, Object>) versionInfo.get(DIST_KEY);
-            if (distInfo == null) {
-              continue;
-            }
-            Map<String, Object> sourceInfo = (Map<String, Object>) versionInfo.get(SOURCE_KEY);
+    try (JsonGenerator generator = createGenerator(out)) {
+      generator.writeStartObject();
+      generator.writeObjectFieldStart(PACKAGES_KEY);
+      for (String packageName : packageNames) {
+        MergedPackageWriter writer = new MergedPackageWriter(generator, packageName);
+        for (int i = 0; i < payloads.size(); i++) {
+          if (summaries.get(i).packageNames.contains(packageName)) {
+            mergeVersions(repository, payloads.get(i), summaries.get(i).minified, currentTime, writer);
+          }
+        }
+        writer.finish();
+      }
+      generator.writeEndObject();
+      generator.writeStringField(MINIFIED_KEY, composerJsonMinifier.getMinifiedFormat());
+      generator.writeEndObject();
+    }
+  }
 
-            if (!packages.containsKey(packageName)) {
-              packages.put(packageName, new LinkedHashMap<>());
+  /**
+   * Reads the package names and format of a package JSON file without materializing any of its entries.
+   */
+  private PackageJsonSummary summarizePackageJson(final Payload payload) throws IOException {
+    PackageJsonSummary summary = new PackageJsonSummary();
+    try (InputStream in = payload.openInputStream();
+         JsonParser parser = mapper.getFactory().createParser(in)) {
+      if (parser.nextToken() != JsonToken.START_OBJECT) {
+        throw new IOException("Package JSON must be an object");
+      }
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String fieldName = parser.getCurrentName();
+        JsonToken token = parser.nextToken();
+        if (PACKAGES_KEY.equals(fieldName) && token == JsonToken.START_OBJECT) {
+          while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String packageName = parser.getCurrentName();
+            if (parser.nextToken() == JsonToken.START_ARRAY) {
+              summary.packageNames.add(packageName);
             }
+            parser.skipChildren();
+          }
+        }
+        else if (MINIFIED_KEY.equals(fieldName) && token == JsonToken.VALUE_STRING) {
+          summary.minified = composerJsonMinifier.getMinifiedFormat().equals(parser.getText());
+        }
+        else {
+          parser.skipChildren();
+        }
+      }
+    }
+    return summary;
+  }
 
-            String time = (String) versionInfo.get(TIME_KEY);
-            if (time == null) {
-              time = currentTime;
+  /**
+   * Streams the versions of one package from a package JSON file into the merged file, expanding minified entries
+   * against the previous one as they are read.
+   */
+  private void mergeVersions(final Repository repository,
+                             final Payload payload,
+                             final boolean minified,
+                             final String currentTime,
+                             final MergedPackageWriter writer) throws IOException
+  {
+    try (InputStream in = payload.openInputStream();
+         JsonParser parser = mapper.getFactory().createParser(in)) {
+      parser.nextToken();
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String fieldName = parser.getCurrentName();
+        JsonToken token = parser.nextToken();
+        if (!PACKAGES_KEY.equals(fieldName) || token != JsonToken.START_OBJECT) {
+          parser.skipChildren();
+          continue;
+        }
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+          String packageName = parser.getCurrentName();
+          if (parser.nextToken() != JsonToken.START_ARRAY || !writer.packageName.equals(packageName)) {
+            parser.skipChildren();
+            continue;
+          }
+          Map<String, Object> expanded = null;
+          while (parser.nextToken() != JsonToken.END_ARRAY) {
+            if (parser.getCurrentToken() != JsonToken.START_OBJECT) {
+              parser.skipChildren();
+              continue;
             }
-
-            Map<String, Object> packagesForName = packages.get(packageName);
-            packagesForName.putIfAbsent(packageVersion, buildPackageInfo(repository, packageName, packageVersion,
-                    (String) distInfo.get(REFERENCE_KEY), (String) distInfo.get(SHASUM_KEY),
-                    (String) distInfo.get(TYPE_KEY), time, versionInfo, sourceInfo));
+            Map<String, Object> versionInfo = mapper.readValue(parser, mapTypeReference);
+            expanded = minified && expanded != null ? composerJsonMinifier.expandVersion(expanded, versionInfo) :
+                versionInfo;
+            writer.write(repository, expanded, currentTime);
           }
+          return;
         }
+        return;
       }
     }
+  }
 
-    Map<String, List<Object>> packagesNormalized = new LinkedHashMap<>();
-    for (Map.Entry<String, Map<String, Object>> pkg : packages.entrySet()) {
-      packagesNormalized.put(pkg.getKey(), new ArrayList<>(pkg.getValue().values()));
+  /**
+   * Package names and format of a package JSON file taking part in a merge.
+   */
+  private static class PackageJsonSummary
+  {
+    private final Set<String> packageNames = new LinkedHashSet<>();
+
+    private boolean minified;
+  }
+
+  /**
+   * Writes the merged, minified version list of one package, skipping versions already written.
+   */
+  private class MergedPackageWriter
+  {
+    private final JsonGenerator generator;
+
+    private final String packageName;
+
+    private final Set<String> versions = new HashSet<>();
+
+    private Map<String, Object> lastKnownVersionData;
+
+    MergedPackageWriter(final JsonGenerator generator, final String packageName) {
+      this.generator = generator;
+      this.packageName = packageName;
     }
 
-    Map<String, Object> json = new LinkedHashMap<>();
-    json.put(PACKAGES_KEY, packagesNormalized);
-    this.composerJsonMinifier.minify(json);
+    void write(final Repository repository, final Map<String, Object> versionInfo, final String currentTime)
+        throws IOException
+    {
+      Object packageVersion = versionInfo.get(VERSION_KEY);
+      Object dist = versionInfo.get(DIST_KEY);
+      if (!(packageVersion instanceof String) || !(dist instanceof Map) || !versions.add((String) packageVersion)) {
+        return;
+      }
+      Map<String, Object> distInfo = (Map<String, Object>) dist;
+      Object sourceInfo = versionInfo.get(SOURCE_KEY);
+      String time = versionInfo.get(TIME_KEY) instanceof String ? (String) versionInfo.get(TIME_KEY) : currentTime;
+
+      Map<String, Object> packageInfo = buildPackageInfo(repository, packageName, (String) packageVersion,
+          (String) distInfo.get(REFERENCE_KEY), (String) distInfo.get(SHASUM_KEY), (String) distInfo.get(TYPE_KEY),
+          time, versionInfo, sourceInfo instanceof Map ? (Map<String, Object>) sourceInfo : null);
+      if (lastKnownVersionData == null) {
+        generator.writeArrayFieldStart(packageName);
+        lastKnownVersionData = new LinkedHashMap<>(packageInfo);
+        entryWriter.writeValue(generator, packageInfo);
+      }
+      else {
+        entryWriter.writeValue(generator, composerJsonMinifier.minifyVersion(lastKnownVersionData, packageInfo));
+      }
+    }
 
-    return new Content(new StringPayload(mapper.writeValueAsString(json),
-            ContentTypes.APPLICATION_JSON));
+    void finish() throws IOException {
+      if (lastKnownVersionData != null) {
+        generator.writeEndArray();
+      }
+    }
   }
 
   private Map<String, Object> buildPackageInfo(final Repository repository,
@@ -494,71 +1213,25 @@ public class ComposerJsonProcessor
             .hash()
             .asInt()));
 
-    if (versionInfo.containsKey(AUTOLOAD_KEY)) {
-      newPackageInfo.put(AUTOLOAD_KEY, versionInfo.get(AUTOLOAD_KEY));
-    }
-    if (versionInfo.containsKey(AUTOLOAD_DEV_KEY)) {
-      newPackageInfo.put(AUTOLOAD_DEV_KEY, versionInfo.get(AUTOLOAD_DEV_KEY));
-    }
-    if (versionInfo.containsKey(REQUIRE_KEY)) {
-      newPackageInfo.put(REQUIRE_KEY, versionInfo.get(REQUIRE_KEY));
-    }
-    if (versionInfo.containsKey(REPLACE_KEY)) {
-      newPackageInfo.put(REPLACE_KEY, versionInfo.get(REPLACE_KEY));
-    }
-    if (versionInfo.containsKey(REQUIRE_DEV_KEY)) {
-      newPackageInfo.put(REQUIRE_DEV_KEY, versionInfo.get(REQUIRE_DEV_KEY));
-    }
-    if (versionInfo.containsKey(SUGGEST_KEY)) {
-      newPackageInfo.put(SUGGEST_KEY, versionInfo.get(SUGGEST_KEY));
-    }
-
-    if (versionInfo.containsKey(AUTHORS_KEY)) {
-      newPackageInfo.put(AUTHORS_KEY, versionInfo.get(AUTHORS_KEY));
-    }
-    if (versionInfo.containsKey(BIN_KEY)) {
-      newPackageInfo.put(BIN_KEY, versionInfo.get(BIN_KEY));
-    }
-    if (versionInfo.containsKey(CONFLICT_KEY)) {
-      newPackageInfo.put(CONFLICT_KEY, versionInfo.get(CONFLICT_KEY));
-    }
-    if (versionInfo.containsKey(DESCRIPTION_KEY)) {
-      newPackageInfo.put(DESCRIPTION_KEY, versionInfo.get(DESCRIPTION_KEY));
-    }
-    if (versionInfo.containsKey(EXTRA_KEY)) {
-      newPackageInfo.put(EXTRA_KEY, versionInfo.get(EXTRA_KEY));
-    }
-    if (versionInfo.containsKey(HOMEPAGE_KEY)) {
-      newPackageInfo.put(HOMEPAGE_KEY, versionInfo.get(HOMEPAGE_KEY));
-    }
-    if (versionInfo.containsKey(INCLUDE_PATH_KEY)) {
-      newPackageInfo.put(INCLUDE_PATH_KEY, versionInfo.get(INCLUDE_PATH_KEY));
-    }
-    if (versionInfo.containsKey(KEYWORDS_KEY)) {
-      newPackageInfo.put(KEYWORDS_KEY, versionInfo.get(KEYWORDS_KEY));
-    }
-    if (versionInfo.containsKey(LICENSE_KEY)) {
-      newPackageInfo.put(LICENSE_KEY, versionInfo.get(LICENSE_KEY));
-    }
-    if (versionInfo.containsKey(PROVIDE_KEY)) {
-      newPackageInfo.put(PROVIDE_KEY, versionInfo.get(PROVIDE_KEY));
-    }
-    if (versionInfo.containsKey(TARGET_DIR_KEY)) {
-      newPackageInfo.put(TARGET_DIR_KEY, versionInfo.get(TARGET_DIR_KEY));
-    }
-    if (versionInfo.containsKey(SCRIPTS_KEY)) {
-      newPackageInfo.put(SCRIPTS_KEY, versionInfo.get(SCRIPTS_KEY));
-    }
-    if (versionInfo.containsKey(SUPPORT_KEY)) {
-      newPackageInfo.put(SUPPORT_KEY, versionInfo.get(SUPPORT_KEY));
-    }
-    if (versionInfo.containsKey(TYPE_KEY)) {
-      newPackageInfo.put(TYPE_KEY, versionInfo.get(TYPE_KEY));
-    }
+    newPackageInfo.putAll(extractVersionInfo(versionInfo));
 
     return newPackageInfo;
   }
 
+  /**
+   * Returns the subset of a composer.json (or of an upstream version entry) that is carried over into a version entry
+   * of the generated metadata. Name, version, dist, source, time and uid are always rebuilt by this repository.
+   */
+  public static Map<String, Object> extractVersionInfo(final Map<String, Object> composerJson) {
+    Map<String, Object> versionInfo = new LinkedHashMap<>();
+    for (String key : VERSION_INFO_KEYS) {
+      if (composerJson.containsKey(key)) {
+        versionInfo.put(key, composerJson.get(key));
+      }
+    }
+    return versionInfo;
+  }
+
   private Map<String, Object> buildDistInfo(final Repository repository,
                                             final String packageName,
                                             final String packageVersion,
@@ -594,25 +1267,169 @@ public class ComposerJsonProcessor
   }
 
   /**
-   * Obtains the dist URL for a particular vendor/project and version within a provider JSON payload.
+   * Obtains the dist URL for a particular vendor/project and version within a package (v2) JSON payload. The document
+   * is read token by token up to the requested version, so only one version entry at a time is held in memory and the
+   * rest of the document is not read at all. The dist of a minified entry is inherited from the entries before it.
    */
   public String getDistUrlFromPackage(final String vendor, final String project, final String version, final Payload payload)
           throws IOException
   {
     String vendorAndProject = String.format(VENDOR_AND_PROJECT, vendor, project);
-    Map<String, Object> json = parseJson(payload);
-    composerJsonMinifier.expand(json);
-    Map<String, Object> packagesMap = (Map<String, Object>) json.get(PACKAGES_KEY);
-    List<Map<String, Object>> packageInfo = (List<Map<String, Object>>) packagesMap.get(vendorAndProject);
+    try (InputStream in = payload.openInputStream(); JsonParser parser = mapper.getFactory().createParser(in)) {
+      if (parser.nextToken() != JsonToken.START_OBJECT) {
+        throw new IOException("Package JSON must be an object");
+      }
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String fieldName = parser.getCurrentName();
+        JsonToken token = parser.nextToken();
+        if (PACKAGES_KEY.equals(fieldName) && token == JsonToken.START_OBJECT) {
+          while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String packageName = parser.getCurrentName();
+            if (parser.nextToken() == JsonToken.START_ARRAY && vendorAndProject.equals(packageName)) {
+              return findDistUrl(parser, version);
+            }
+            parser.skipChildren();
+          }
+        }
+        else {
+          parser.skipChildren();
+        }
+      }
+    }
+    throw new IOException("version not found");
+  }
+
+  private String findDistUrl(final JsonParser parser, final String version) throws IOException {
+    Object dist = null;
+    while (parser.nextToken() != JsonToken.END_ARRAY) {
+      if (parser.getCurrentToken() != JsonToken.START_OBJECT) {
+        parser.skipChildren();
+        continue;
+      }
+      Map<String, Object> versionInfo = mapper.readValue(parser, mapTypeReference);
+      if (versionInfo.containsKey(DIST_KEY)) {
+        dist = versionInfo.get(DIST_KEY);
+      }
+      if (version.equals(versionInfo.get(VERSION_KEY))) {
+        if (dist instanceof Map && ((Map<String, Object>) dist).get(URL_KEY) instanceof String) {
+          return (String) ((Map<String, Object>) dist).get(URL_KEY);
+        }
+        break;
+      }
+    }
+    throw new IOException("version not found");
+  }
 
-    Map<String, Object> versionInfo = packageInfo
-            .stream()
-            .filter((v) -> version.equals(v.get(VERSION_KEY)))
-            .findFirst()
-            .orElseThrow(() -> new IOException("version not found"));
+  /**
+   * Reads the dist URL of every version listed in a provider (v1) or package (v2) JSON document, keyed by package name
+   * and version, so that zipball downloads can later be resolved without reading the document again. Version entries
+   * are read one at a time. A version entry without a dist only inherits the one before it if the document is minified.
+   */
+  public Map<String, Map<String, String>> readDistUrls(final InputStream in) throws IOException {
+    Map<String, Map<String, String>> distUrls = new LinkedHashMap<>();
+    Map<String, Map<String, String>> inheritedDistUrls = new LinkedHashMap<>();
+    boolean minified = false;
+    try (JsonParser parser = mapper.getFactory().createParser(in)) {
+      parser.disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+      if (parser.nextToken() != JsonToken.START_OBJECT) {
+        throw new IOException("Package JSON must be an object");
+      }
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String fieldName = parser.getCurrentName();
+        JsonToken token = parser.nextToken();
+        if (PACKAGES_KEY.equals(fieldName) && token == JsonToken.START_OBJECT) {
+          while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String packageName = parser.getCurrentName();
+            JsonToken packageToken = parser.nextToken();
+            if (packageToken == JsonToken.START_OBJECT) {
+              readDistUrls(parser, distUrls.computeIfAbsent(packageName, name -> new LinkedHashMap<>()));
+            }
+            else if (packageToken == JsonToken.START_ARRAY) {
+              readDistUrls(parser, distUrls.computeIfAbsent(packageName, name -> new LinkedHashMap<>()),
+                  inheritedDistUrls.computeIfAbsent(packageName, name -> new LinkedHashMap<>()));
+            }
+            else {
+              parser.skipChildren();
+            }
+          }
+        }
+        else if (MINIFIED_KEY.equals(fieldName) && token == JsonToken.VALUE_STRING) {
+          minified = composerJsonMinifier.getMinifiedFormat().equals(parser.getText());
+        }
+        else {
+          parser.skipChildren();
+        }
+      }
+    }
+    if (minified) {
+      inheritedDistUrls.forEach((packageName, urls) -> distUrls.get(packageName).putAll(urls));
+    }
+    distUrls.values().removeIf(Map::isEmpty);
+    return distUrls;
+  }
 
-    Map<String, Object> distInfo = (Map<String, Object>) versionInfo.get(DIST_KEY);
-    return (String) distInfo.get(URL_KEY);
+  /**
+   * Reads the dist URLs of the versions of one package listed as an object keyed by version (v1).
+   */
+  private void readDistUrls(final JsonParser parser, final Map<String, String> distUrls) throws IOException {
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String version = parser.getCurrentName();
+      if (parser.nextToken() != JsonToken.START_OBJECT) {
+        parser.skipChildren();
+        continue;
+      }
+      String url = extractDistUrl(mapper.readValue(parser, mapTypeReference));
+      if (url != null) {
+        distUrls.put(version, url);
+      }
+    }
+  }
+
+  /**
+   * Reads the dist URLs of the versions of one package listed as an array (v2). Versions without a dist of their own
+   * are collected separately with the dist URL of the entry before them, they only apply to minified documents.
+   */
+  private void readDistUrls(final JsonParser parser,
+                            final Map<String, String> distUrls,
+                            final Map<String, String> inheritedDistUrls) throws IOException
+  {
+    String previousUrl = null;
+    while (parser.nextToken() != JsonToken.END_ARRAY) {
+      if (parser.getCurrentToken() != JsonToken.START_OBJECT) {
+        parser.skipChildren();
+        continue;
+      }
+      Map<String, Object> versionInfo = mapper.readValue(parser, mapTypeReference);
+      Object version = versionInfo.get(VERSION_KEY);
+      if (versionInfo.containsKey(DIST_KEY)) {
+        previousUrl = extractDistUrl(versionInfo);
+        if (version instanceof String && previousUrl != null) {
+          distUrls.put((String) version, previousUrl);
+        }
+      }
+      else if (version instanceof String && previousUrl != null) {
+        inheritedDistUrls.put((String) version, previousUrl);
+      }
+    }
+  }
+
+  @Nullable
+  private String extractDistUrl(final Map<String, Object> versionInfo) {
+    Object dist = versionInfo.get(DIST_KEY);
+    Object url = dist instanceof Map ? ((Map<String, Object>) dist).get(URL_KEY) : null;
+    return url instanceof String ? (String) url : null;
+  }
+
+  private Content toContent(final ComposerJsonWriter writer) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    writer.writeTo(out);
+    return new Content(new BytesPayload(out.toByteArray(), ContentTypes.APPLICATION_JSON));
+  }
+
+  private JsonGenerator createGenerator(final OutputStream out) throws IOException {
+    JsonGenerator generator = mapper.getFactory().createGenerator(out);
+    generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+    return generator;
   }
 
   private Map<String, Object> parseJson(final Payload payload) throws IOException {
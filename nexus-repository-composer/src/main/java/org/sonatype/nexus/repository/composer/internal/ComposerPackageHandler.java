@@ -1,20 +1,21 @@
 package org.sonatype.nexus.repository.composer.internal;
 
-import org.sonatype.nexus.repository.http.HttpResponses;
-import org.sonatype.nexus.repository.http.HttpStatus;
-import org.sonatype.nexus.repository.view.Context;
-import org.sonatype.nexus.repository.view.Handler;
-import org.sonatype.nexus.repository.view.Response;
+import java.io.IOException;
+import java.io.OutputStream;
 
-import javax.annotation.Nonnull;
 import javax.inject.Inject;
 
+import org.sonatype.nexus.repository.Repository;
+import org.sonatype.nexus.repository.view.Context;
+import org.sonatype.nexus.repository.view.Payload;
+
 import static com.google.common.base.Preconditions.checkNotNull;
+import static org.sonatype.nexus.repository.composer.internal.ComposerPathUtils.buildPackagePath;
 
 public class ComposerPackageHandler
-        implements Handler
+        extends ComposerRewriteHandlerSupport
 {
-    public static final String DO_NOT_REWRITE = "ComposerProviderHandler.doNotRewrite";
+    public static final String DO_NOT_REWRITE = ComposerProviderHandler.DO_NOT_REWRITE;
 
     private final ComposerJsonProcessor composerJsonProcessor;
 
@@ -23,16 +24,15 @@ public class ComposerPackageHandler
         this.composerJsonProcessor = checkNotNull(composerJsonProcessor);
     }
 
-    @Nonnull
     @Override
-    public Response handle(@Nonnull final Context context) throws Exception {
-        Response response = context.proceed();
-        if (!Boolean.parseBoolean(context.getRequest().getAttributes().get(DO_NOT_REWRITE, String.class))) {
-            if (response.getStatus().getCode() == HttpStatus.OK && response.getPayload() != null) {
-                response = HttpResponses
-                        .ok(composerJsonProcessor.rewritePackageJson(context.getRepository(), response.getPayload()));
-            }
-        }
-        return response;
+    protected String getPath(final Context context) {
+        return buildPackagePath(context);
+    }
+
+    @Override
+    protected void doRewrite(final Repository repository, final Payload payload, final OutputStream out)
+        throws IOException
+    {
+        composerJsonProcessor.rewritePackageJson(repository, payload, out);
     }
 }
@@ -40,6 +40,8 @@ public final class ComposerPathUtils
 
   private static final String NAME_PATTERN = "%s-%s-%s";
 
+  private static final String REWRITTEN_PATH = "%s.rewritten";
+
   /**
    * Returns the vendor token from a path in a context. The vendor token must be present or the operation will fail.
    */
@@ -144,6 +146,14 @@ public final class ComposerPathUtils
     return String.format(PACKAGE_JSON_PATH_DEV_VERSIONS, vendor, project);
   }
 
+  /**
+   * Builds the path of the rewritten variant stored next to a proxied metadata file.
+   */
+  public static String buildRewrittenPath(final String path) {
+    checkNotNull(path);
+    return String.format(REWRITTEN_PATH, path);
+  }
+
   private ComposerPathUtils() {
     // empty
   }
@@ -12,23 +12,27 @@
  */
 package org.sonatype.nexus.repository.composer.internal;
 
-import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
 import javax.inject.Inject;
 
-import org.sonatype.nexus.repository.http.HttpResponses;
-import org.sonatype.nexus.repository.http.HttpStatus;
+import org.sonatype.nexus.repository.Repository;
 import org.sonatype.nexus.repository.view.Context;
-import org.sonatype.nexus.repository.view.Handler;
-import org.sonatype.nexus.repository.view.Response;
+import org.sonatype.nexus.repository.view.Payload;
+
+import com.google.common.io.ByteStreams;
 
 import static com.google.common.base.Preconditions.checkNotNull;
+import static org.sonatype.nexus.repository.composer.internal.ComposerPathUtils.buildProviderPath;
 
 /**
  * Handler that rewrites the content of responses containing Composer provider JSON files so that they point to the
  * proxy repository rather than the repository being proxied.
  */
 public class ComposerProviderHandler
-    implements Handler
+    extends ComposerRewriteHandlerSupport
 {
   public static final String DO_NOT_REWRITE = "ComposerProviderHandler.doNotRewrite";
 
@@ -39,16 +43,17 @@ public class ComposerProviderHandler
     this.composerJsonProcessor = checkNotNull(composerJsonProcessor);
   }
 
-  @Nonnull
   @Override
-  public Response handle(@Nonnull final Context context) throws Exception {
-    Response response = context.proceed();
-    if (!Boolean.parseBoolean(context.getRequest().getAttributes().get(DO_NOT_REWRITE, String.class))) {
-      if (response.getStatus().getCode() == HttpStatus.OK && response.getPayload() != null) {
-        response = HttpResponses
-            .ok(composerJsonProcessor.rewriteProviderJson(context.getRepository(), response.getPayload()));
-      }
+  protected String getPath(final Context context) {
+    return buildProviderPath(context);
+  }
+
+  @Override
+  protected void doRewrite(final Repository repository, final Payload payload, final OutputStream out)
+      throws IOException
+  {
+    try (InputStream in = composerJsonProcessor.rewriteProviderJson(repository, payload).openInputStream()) {
+      ByteStreams.copy(in, out);
     }
-    return response;
   }
 }
@@ -13,18 +13,36 @@
 package org.sonatype.nexus.repository.composer.internal;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UncheckedIOException;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.inject.Inject;
 import javax.inject.Named;
 
+import org.sonatype.nexus.common.app.BaseUrlHolder;
+import org.sonatype.nexus.common.stateguard.Guarded;
 import org.sonatype.nexus.repository.cache.CacheController;
 import org.sonatype.nexus.repository.cache.CacheInfo;
 import org.sonatype.nexus.repository.config.Configuration;
+import org.sonatype.nexus.repository.config.ConfigurationFacet;
 import org.sonatype.nexus.repository.proxy.ProxyFacetSupport;
+import org.sonatype.nexus.repository.storage.Asset;
+import org.sonatype.nexus.repository.storage.AssetCreatedEvent;
+import org.sonatype.nexus.repository.storage.AssetEvent;
+import org.sonatype.nexus.repository.storage.AssetUpdatedEvent;
+import org.sonatype.nexus.repository.storage.StorageFacet;
 import org.sonatype.nexus.repository.view.Content;
 import org.sonatype.nexus.repository.view.Context;
 import org.sonatype.nexus.repository.view.Payload;
@@ -32,11 +50,20 @@ import org.sonatype.nexus.repository.view.Request;
 import org.sonatype.nexus.repository.view.Response;
 import org.sonatype.nexus.repository.view.ViewFacet;
 import org.sonatype.nexus.repository.view.matchers.token.TokenMatcher;
+import org.sonatype.nexus.transaction.UnitOfWork;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Throwables;
+import com.google.common.eventbus.AllowConcurrentEvents;
+import com.google.common.eventbus.Subscribe;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.shiro.SecurityUtils;
 
 import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.Arrays.asList;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.sonatype.nexus.common.stateguard.StateGuardLifecycleSupport.State.STARTED;
+import static org.sonatype.nexus.repository.cache.CacheControllerHolder.METADATA;
 import static org.sonatype.nexus.repository.composer.internal.ComposerPathUtils.*;
 import static org.sonatype.nexus.repository.composer.internal.ComposerRecipeSupport.PROJECT_TOKEN;
 import static org.sonatype.nexus.repository.composer.internal.ComposerRecipeSupport.VENDOR_TOKEN;
@@ -50,17 +77,311 @@ import static org.sonatype.nexus.repository.http.HttpMethods.GET;
 public class ComposerProxyFacetImpl
     extends ProxyFacetSupport
 {
+  /**
+   * Context attribute marking a background revalidation, which must not be answered from the stale content itself.
+   */
+  public static final String REVALIDATE = "ComposerProxyFacetImpl.revalidate";
+
+  @VisibleForTesting
+  static final String COMPOSER_CONFIG_KEY = "composer";
+
+  /**
+   * Composer specific proxy configuration.
+   */
+  @VisibleForTesting
+  static class ComposerConfig
+  {
+    /**
+     * Minutes past expiry during which metadata of an asset kind (keyed by name) is still served while it is
+     * revalidated in the background. Asset kinds without an entry are revalidated before responding.
+     */
+    public Map<String, Integer> staleWhileRevalidate = new HashMap<>();
+
+    /**
+     * Whether to serve the upstream packages.json with its URLs rewritten instead of generating one from the upstream
+     * list.json. Composer v2 clients only need the metadata URL, so this avoids downloading the full package list.
+     */
+    public boolean passThroughPackages;
+  }
+
   private static final String PACKAGES_JSON = "packages.json";
 
+  /**
+   * Rewrite keys recording how the stored packages.json was produced, so that it is fetched again rather than served
+   * from storage once {@link ComposerConfig#passThroughPackages} is changed.
+   */
+  private static final String PASS_THROUGH_PACKAGES_KEY = "passThrough";
+
+  private static final String GENERATED_PACKAGES_KEY = "generated";
+
   private static final String LIST_JSON = "packages/list.json";
 
+  private static final String PROXY_CONFIG_KEY = "proxy";
+
+  private static final String METADATA_MAX_AGE = "metadataMaxAge";
+
+  private static final int DEFAULT_METADATA_MAX_AGE = 1440;
+
+  private static final int REVALIDATION_THREADS = 2;
+
+  private static final int REVALIDATION_QUEUE_SIZE = 100;
+
+  private static final int EXTRACTION_THREADS = 2;
+
+  private static final int EXTRACTION_QUEUE_SIZE = 1000;
+
   private final ComposerJsonProcessor composerJsonProcessor;
 
+  private final Set<String> revalidationsInFlight = ConcurrentHashMap.newKeySet();
+
+  @VisibleForTesting
+  ComposerConfig composerConfig = new ComposerConfig();
+
+  private int metadataMaxAge = DEFAULT_METADATA_MAX_AGE;
+
+  private ThreadPoolExecutor revalidationExecutor;
+
+  private ThreadPoolExecutor extractionExecutor;
+
   @Inject
   public ComposerProxyFacetImpl(final ComposerJsonProcessor composerJsonProcessor) {
     this.composerJsonProcessor = checkNotNull(composerJsonProcessor);
   }
 
+  @Override
+  protected void doConfigure(final Configuration configuration) throws Exception {
+    super.doConfigure(configuration);
+    ComposerConfig config = facet(ConfigurationFacet.class)
+        .readSection(configuration, COMPOSER_CONFIG_KEY, ComposerConfig.class);
+    composerConfig = config != null ? config : new ComposerConfig();
+    if (composerConfig.staleWhileRevalidate == null) {
+      composerConfig.staleWhileRevalidate = new HashMap<>();
+    }
+    Number maxAge = configuration.attributes(PROXY_CONFIG_KEY).get(METADATA_MAX_AGE, Number.class);
+    metadataMaxAge = maxAge != null ? maxAge.intValue() : DEFAULT_METADATA_MAX_AGE;
+  }
+
+  @Override
+  protected void doStart() throws Exception {
+    super.doStart();
+    revalidationExecutor = new ThreadPoolExecutor(REVALIDATION_THREADS, REVALIDATION_THREADS, 60L, SECONDS,
+        new ArrayBlockingQueue<>(REVALIDATION_QUEUE_SIZE),
+        new ThreadFactoryBuilder().setDaemon(true)
+            .setNameFormat("composer-revalidate-" + getRepository().getName() + "-%d").build());
+    revalidationExecutor.allowCoreThreadTimeOut(true);
+    extractionExecutor = new ThreadPoolExecutor(EXTRACTION_THREADS, EXTRACTION_THREADS, 60L, SECONDS,
+        new ArrayBlockingQueue<>(EXTRACTION_QUEUE_SIZE),
+        new ThreadFactoryBuilder().setDaemon(true)
+            .setNameFormat("composer-attributes-" + getRepository().getName() + "-%d").build());
+    extractionExecutor.allowCoreThreadTimeOut(true);
+    extractionExecutor.execute(this::extractPending);
+  }
+
+  @Override
+  protected void doStop() throws Exception {
+    if (revalidationExecutor != null) {
+      revalidationExecutor.shutdownNow();
+      revalidationExecutor = null;
+    }
+    if (extractionExecutor != null) {
+      // zipballs still queued keep their pending flag and are extracted on the next start
+      extractionExecutor.shutdownNow();
+      extractionExecutor = null;
+    }
+    super.doStop();
+  }
+
+  @Subscribe
+  @Guarded(by = STARTED)
+  @AllowConcurrentEvents
+  public void on(final AssetCreatedEvent created) {
+    scheduleExtraction(created);
+  }
+
+  @Subscribe
+  @Guarded(by = STARTED)
+  @AllowConcurrentEvents
+  public void on(final AssetUpdatedEvent updated) {
+    scheduleExtraction(updated);
+  }
+
+  /**
+   * Extracts the format attributes of a zipball stored by this repository in the background. The extraction is
+   * deferred when the zipball is stored so that the client which caused the download is served without waiting for
+   * the archive to be read.
+   */
+  private void scheduleExtraction(final AssetEvent event) {
+    Asset asset = event.getAsset();
+    if (!event.isLocal() || !getRepository().getName().equals(event.getRepositoryName()) ||
+        !ComposerContentFacetImpl.isExtractionPending(asset)) {
+      return;
+    }
+    submitExtraction(asset.name());
+  }
+
+  /**
+   * Queues the extraction for a zipball. When the workers are saturated or stopped the zipball keeps its pending flag
+   * rather than being extracted on the event thread, and is extracted the next time the repository starts.
+   */
+  private void submitExtraction(final String path) {
+    ThreadPoolExecutor executor = extractionExecutor;
+    if (executor == null) {
+      return;
+    }
+    try {
+      executor.execute(() -> extract(path));
+    }
+    catch (RejectedExecutionException e) {
+      log.debug("Deferring format attribute extraction for {} in repository {} to the next start", path,
+          getRepository().getName());
+    }
+  }
+
+  private void extract(final String path) {
+    UnitOfWork.begin(facet(StorageFacet.class).txSupplier());
+    try {
+      content().extractFormatAttributes(path);
+    }
+    catch (Exception e) {
+      log.warn("Unable to extract format attributes for {} in repository {}", path, getRepository().getName(), e);
+    }
+    finally {
+      UnitOfWork.end();
+    }
+  }
+
+  /**
+   * Extracts the zipballs left with a pending extraction by an earlier stop or by saturated workers. They are worked
+   * through on this worker rather than queued, so that a backlog larger than the queue is not rejected again, and the
+   * rest is left pending once the repository stops.
+   */
+  private void extractPending() {
+    List<String> paths;
+    UnitOfWork.begin(facet(StorageFacet.class).txSupplier());
+    try {
+      paths = content().findPendingExtractions();
+    }
+    catch (Exception e) {
+      log.warn("Unable to find the zipballs awaiting format attribute extraction in repository {}",
+          getRepository().getName(), e);
+      return;
+    }
+    finally {
+      UnitOfWork.end();
+    }
+    for (String path : paths) {
+      if (Thread.currentThread().isInterrupted()) {
+        return;
+      }
+      extract(path);
+    }
+  }
+
+  @Nullable
+  @Override
+  public Content get(final Context context) throws IOException {
+    Content content = getStaleWhileRevalidate(context);
+    return content != null ? content : super.get(context);
+  }
+
+  /**
+   * Returns the cached content if stale-while-revalidate is enabled for the asset kind and the content is either fresh
+   * or expired for less than the configured window, scheduling a background revalidation in the latter case. Only
+   * content that expired by age is served stale; content invalidated explicitly, e.g. through "invalidate cache", is
+   * fetched again right away. Returns {@code null} when the request should go through the regular proxy path.
+   */
+  @Nullable
+  private Content getStaleWhileRevalidate(final Context context) throws IOException {
+    AssetKind assetKind = context.getAttributes().require(AssetKind.class);
+    Integer window = composerConfig.staleWhileRevalidate.get(assetKind.name());
+    if (window == null || window <= 0 || metadataMaxAge < 0 || assetKind.getCacheType() != METADATA ||
+        Boolean.TRUE.equals(context.getAttributes().get(REVALIDATE, Boolean.class))) {
+      return null;
+    }
+
+    Content content = getCachedContent(context);
+    CacheInfo cacheInfo = content != null ? content.getAttributes().get(CacheInfo.class) : null;
+    if (cacheInfo == null) {
+      return null;
+    }
+    CacheController cacheController = getCacheController(context);
+    if (!Objects.equals(cacheInfo.getCacheToken(), cacheController.current().getCacheToken())) {
+      // invalidated explicitly, through the repository's cache or the asset, rather than expired by age
+      return null;
+    }
+    if (!cacheController.isStale(cacheInfo)) {
+      return content;
+    }
+    if (cacheInfo.getLastVerified().plusMinutes(metadataMaxAge + window).isBeforeNow()) {
+      return null;
+    }
+    scheduleRevalidation(context);
+    return content;
+  }
+
+  private void scheduleRevalidation(final Context context) {
+    ThreadPoolExecutor executor = revalidationExecutor;
+    String path = context.getRequest().getPath();
+    if (executor == null || !revalidationsInFlight.add(path)) {
+      return;
+    }
+    try {
+      executor.execute(SecurityUtils.getSubject().associateWith(newRevalidation(context)));
+    }
+    catch (RejectedExecutionException e) {
+      revalidationsInFlight.remove(path);
+      log.debug("Background revalidation of {} rejected, will revalidate on a later request", path);
+    }
+  }
+
+  /**
+   * Returns the task revalidating the content requested by the context. The task goes through fetch and store directly
+   * on its own copy of the context rather than dispatching a request through the view, and runs with the base URL of
+   * the request that scheduled it so that stored metadata is rewritten for the same URL.
+   */
+  @VisibleForTesting
+  Runnable newRevalidation(final Context context) {
+    String path = context.getRequest().getPath();
+    Context revalidation = new Context(getRepository(), new Request.Builder().action(GET).path(path).build());
+    revalidation.getAttributes().set(AssetKind.class, context.getAttributes().require(AssetKind.class));
+    TokenMatcher.State state = context.getAttributes().get(TokenMatcher.State.class);
+    if (state != null) {
+      revalidation.getAttributes().set(TokenMatcher.State.class, state);
+    }
+    revalidation.getAttributes().set(REVALIDATE, Boolean.TRUE);
+    String baseUrl = BaseUrlHolder.isSet() ? BaseUrlHolder.get() : null;
+    return () -> {
+      if (baseUrl != null) {
+        BaseUrlHolder.set(baseUrl);
+      }
+      try {
+        revalidate(revalidation);
+      }
+      catch (Exception e) {
+        log.debug("Background revalidation of {} failed", path, e);
+      }
+      finally {
+        if (baseUrl != null) {
+          BaseUrlHolder.unset();
+        }
+        revalidationsInFlight.remove(path);
+      }
+    };
+  }
+
+  private void revalidate(final Context context) throws IOException {
+    UnitOfWork.begin(facet(StorageFacet.class).txSupplier());
+    try {
+      Content remote = fetch(context, getCachedContent(context));
+      if (remote != null) {
+        store(context, remote);
+      }
+    }
+    finally {
+      UnitOfWork.end();
+    }
+  }
+
   @Nullable
   @Override
   protected Content fetch(Context context, Content stale) throws IOException {
@@ -85,7 +406,7 @@ public class ComposerProxyFacetImpl
     AssetKind assetKind = context.getAttributes().require(AssetKind.class);
     switch (assetKind) {
       case PACKAGES:
-        return content().get(PACKAGES_JSON);
+        return content().getRewritten(PACKAGES_JSON, getPackagesRewriteKey());
       case LIST:
         return content().get(LIST_JSON);
       case PROVIDER:
@@ -104,7 +425,14 @@ public class ComposerProxyFacetImpl
     AssetKind assetKind = context.getAttributes().require(AssetKind.class);
     switch (assetKind) {
       case PACKAGES:
-        return content().put(PACKAGES_JSON, generatePackagesJson(context), assetKind);
+        // stored without the upstream validators: the document also depends on list.json (or on the URL of this
+        // repository), so a 304 for the upstream packages.json does not mean that the stored document is current
+        if (composerConfig.passThroughPackages) {
+          return content().putRewritten(PACKAGES_JSON, out -> rewritePackagesJson(content, out), assetKind,
+              PASS_THROUGH_PACKAGES_KEY);
+        }
+        return content().putRewritten(PACKAGES_JSON, out -> generatePackagesJson(context, out), assetKind,
+            GENERATED_PACKAGES_KEY);
       case LIST:
         return content().put(LIST_JSON, content, assetKind);
       case PROVIDER:
@@ -162,23 +490,46 @@ public class ComposerProxyFacetImpl
     return cacheControllerHolder.require(assetKind.getCacheType());
   }
 
-  private Content generatePackagesJson(final Context context) throws IOException {
-    try {
-      // TODO: Better logging and error checking on failure/non-200 scenarios
-      Request request = new Request.Builder().action(GET).path("/" + LIST_JSON).build();
-      Response response = getRepository().facet(ViewFacet.class).dispatch(request, context);
-      Payload payload = checkNotNull(response.getPayload());
-      return composerJsonProcessor.generatePackagesFromList(getRepository(), payload);
+  private String getPackagesRewriteKey() {
+    return composerConfig.passThroughPackages ? PASS_THROUGH_PACKAGES_KEY : GENERATED_PACKAGES_KEY;
+  }
+
+  private void rewritePackagesJson(final Content content, final OutputStream out) throws IOException {
+    try (InputStream in = content.openInputStream()) {
+      composerJsonProcessor.rewritePackagesJson(getRepository(), in, out);
     }
-    catch (IOException e) {
-      throw new UncheckedIOException(e);
+  }
+
+  /**
+   * Writes packages.json to the stream while reading the upstream list.json, so that neither document is held in
+   * memory regardless of how many packages the upstream lists.
+   */
+  private void generatePackagesJson(final Context context, final OutputStream out) throws IOException {
+    Request request = new Request.Builder().action(GET).path("/" + LIST_JSON).build();
+    Response response;
+    try {
+      response = getRepository().facet(ViewFacet.class).dispatch(request, context);
     }
     catch (Exception e) {
+      Throwables.throwIfInstanceOf(e, IOException.class);
       Throwables.throwIfUnchecked(e);
-      throw new RuntimeException(e);
+      throw new IOException(e);
+    }
+    Payload payload = response.getPayload();
+    if (!response.getStatus().isSuccessful() || payload == null) {
+      throw new IOException(String.format("Unable to generate packages.json for repository %s, list.json returned %s",
+          getRepository().getName(), response.getStatus().getCode()));
+    }
+    try (InputStream in = payload.openInputStream()) {
+      composerJsonProcessor.writePackagesFromList(getRepository(), in, out);
     }
   }
 
+  /**
+   * Resolves the upstream URL of a zipball from the dist URLs recorded with the stored package or provider JSON. Only
+   * when none of them lists the version are the documents themselves requested (and fetched if not cached yet) and
+   * searched for it.
+   */
   private String getZipballUrl(final Context context) {
     try {
       TokenMatcher.State state = context.getAttributes().require(TokenMatcher.State.class);
@@ -187,6 +538,16 @@ public class ComposerProxyFacetImpl
       String project = tokens.get(PROJECT_TOKEN);
       String version = tokens.get(VERSION_TOKEN);
 
+      // dist URLs recorded when the package or provider JSON was stored
+      String packageName = vendor + "/" + project;
+      for (String path : asList(buildPackagePath(vendor, project), buildPackagePathForDevVersions(vendor, project),
+          buildProviderPath(vendor, project))) {
+        String distUrl = content().getDistUrl(path, packageName, version);
+        if (distUrl != null) {
+          return distUrl;
+        }
+      }
+
       // try v2 package
       try {
         String path = "/" + buildPackagePath(vendor, project);
@@ -203,7 +564,6 @@ public class ComposerProxyFacetImpl
       try {
         String path = "/" + buildPackagePathForDevVersions(vendor, project);
         Payload payload = getPackagePayload(context, path);
-        String url = composerJsonProcessor.getDistUrlFromPackage(vendor, project, version, payload);
         if (payload != null) {
           return composerJsonProcessor.getDistUrlFromPackage(vendor, project, version, payload);
         }
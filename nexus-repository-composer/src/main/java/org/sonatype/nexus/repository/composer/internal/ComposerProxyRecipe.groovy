@@ -127,8 +127,8 @@ class ComposerProxyRecipe
         .handler(conditionalRequestHandler)
         .handler(partialFetchHandler)
         .handler(contentHeadersHandler)
-        .handler(composerProviderHandler)
         .handler(unitOfWorkHandler)
+        .handler(composerProviderHandler)
         .handler(proxyHandler)
         .create())
 
@@ -142,8 +142,8 @@ class ComposerProxyRecipe
             .handler(conditionalRequestHandler)
             .handler(partialFetchHandler)
             .handler(contentHeadersHandler)
-            .handler(composerPackageHandler)
             .handler(unitOfWorkHandler)
+            .handler(composerPackageHandler)
             .handler(proxyHandler)
             .create())
 
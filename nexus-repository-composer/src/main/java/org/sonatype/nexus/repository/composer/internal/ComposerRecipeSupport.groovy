@@ -42,6 +42,7 @@ import org.sonatype.nexus.repository.view.matchers.token.TokenMatcher
 
 import static org.sonatype.nexus.repository.http.HttpMethods.GET
 import static org.sonatype.nexus.repository.http.HttpMethods.HEAD
+import static org.sonatype.nexus.repository.http.HttpMethods.POST
 import static org.sonatype.nexus.repository.http.HttpMethods.PUT
 
 /**
@@ -167,4 +168,12 @@ abstract class ComposerRecipeSupport
             new TokenMatcher('/packages/upload/{vendor:.+}/{project:.+}/{version:.+}')
         ))
   }
+
+  static Builder bulkUploadMatcher() {
+    new Builder().matcher(
+        LogicMatchers.and(
+            new ActionMatcher(POST),
+            new TokenMatcher('/packages/upload')
+        ))
+  }
 }
@@ -0,0 +1,101 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2018-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.repository.composer.internal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.sonatype.nexus.common.hash.HashAlgorithm;
+import org.sonatype.nexus.repository.Repository;
+import org.sonatype.nexus.repository.http.HttpResponses;
+import org.sonatype.nexus.repository.http.HttpStatus;
+import org.sonatype.nexus.repository.view.Content;
+import org.sonatype.nexus.repository.view.Context;
+import org.sonatype.nexus.repository.view.Handler;
+import org.sonatype.nexus.repository.view.Payload;
+import org.sonatype.nexus.repository.view.Response;
+import org.sonatype.nexus.repository.view.payloads.BytesPayload;
+
+import static org.sonatype.nexus.repository.composer.internal.ComposerPathUtils.buildRewrittenPath;
+
+/**
+ * Support for handlers that rewrite proxied Composer metadata so that it points to the proxy repository rather than
+ * the repository being proxied. The rewritten variant is stored next to the raw asset, keyed by the repository URL and
+ * the checksum of the raw content, so cache hits serve the stored blob without any JSON processing. A change of either
+ * results in the variant being rendered again on the next request.
+ */
+public abstract class ComposerRewriteHandlerSupport
+    implements Handler
+{
+  @Nonnull
+  @Override
+  public Response handle(@Nonnull final Context context) throws Exception {
+    Response response = context.proceed();
+    if (!Boolean.parseBoolean(
+        context.getRequest().getAttributes().get(ComposerProviderHandler.DO_NOT_REWRITE, String.class))) {
+      if (response.getStatus().getCode() == HttpStatus.OK && response.getPayload() != null) {
+        response = HttpResponses.ok(rewrite(context, response.getPayload()));
+      }
+    }
+    return response;
+  }
+
+  private Payload rewrite(final Context context, final Payload payload) throws IOException {
+    Repository repository = context.getRepository();
+    String rewriteKey = payload instanceof Content ? buildRewriteKey(repository, (Content) payload) : null;
+    if (rewriteKey == null) {
+      // nothing identifies the raw content to store a rewritten variant under, so it is rewritten in memory
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      doRewrite(repository, payload, out);
+      return new BytesPayload(out.toByteArray(), payload.getContentType());
+    }
+
+    ComposerContentFacet content = repository.facet(ComposerContentFacet.class);
+    String path = buildRewrittenPath(getPath(context));
+    Content rewritten = content.getRewritten(path, rewriteKey);
+    if (rewritten == null) {
+      AssetKind assetKind = context.getAttributes().require(AssetKind.class);
+      rewritten = content.putRewritten(path, out -> doRewrite(repository, payload, out), assetKind, rewriteKey);
+    }
+    return rewritten;
+  }
+
+  /**
+   * Builds the key a rewritten variant of the raw content is stored under, or returns {@code null} if the content
+   * carries neither a checksum nor an etag to identify it by.
+   */
+  @Nullable
+  static String buildRewriteKey(final Repository repository, final Content content) {
+    Map<?, ?> hashCodes = content.getAttributes().get(Content.CONTENT_HASH_CODES_MAP, Map.class);
+    Object sourceKey = hashCodes != null ? hashCodes.get(HashAlgorithm.SHA1) : null;
+    if (sourceKey == null) {
+      sourceKey = content.getAttributes().get(Content.CONTENT_ETAG, String.class);
+    }
+    return sourceKey != null ? repository.getUrl() + "@" + sourceKey : null;
+  }
+
+  /**
+   * Returns the path of the raw asset the response was served from.
+   */
+  protected abstract String getPath(Context context);
+
+  /**
+   * Rewrites the raw payload for the given repository into the output stream.
+   */
+  protected abstract void doRewrite(Repository repository, Payload payload, OutputStream out) throws IOException;
+}
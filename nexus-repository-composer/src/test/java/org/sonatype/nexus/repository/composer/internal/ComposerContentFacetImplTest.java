@@ -13,9 +13,11 @@
 package org.sonatype.nexus.repository.composer.internal;
 
 import com.google.common.hash.HashCode;
+import com.google.common.io.ByteStreams;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.sonatype.goodies.testsupport.TestSupport;
 import org.sonatype.nexus.blobstore.api.Blob;
@@ -23,26 +25,37 @@ import org.sonatype.nexus.blobstore.api.BlobRef;
 import org.sonatype.nexus.common.collect.NestedAttributesMap;
 import org.sonatype.nexus.common.hash.HashAlgorithm;
 import org.sonatype.nexus.repository.Format;
+import org.sonatype.nexus.repository.InvalidContentException;
 import org.sonatype.nexus.repository.Repository;
+import org.sonatype.nexus.repository.config.Configuration;
 import org.sonatype.nexus.repository.storage.*;
+import org.sonatype.nexus.repository.types.ProxyType;
 import org.sonatype.nexus.repository.view.Content;
+import org.sonatype.nexus.repository.view.ContentTypes;
 import org.sonatype.nexus.transaction.UnitOfWork;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static java.util.Arrays.asList;
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.Collections.*;
 import static org.hamcrest.Matchers.*;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.*;
 import static org.sonatype.nexus.common.hash.HashAlgorithm.*;
 import static org.sonatype.nexus.repository.composer.internal.AssetKind.*;
 import static org.sonatype.nexus.repository.composer.internal.ComposerAttributes.*;
+import static org.sonatype.nexus.repository.storage.AssetEntityAdapter.P_ASSET_KIND;
 import static org.sonatype.nexus.repository.storage.MetadataNodeEntityAdapter.P_NAME;
 
 public class ComposerContentFacetImplTest
@@ -68,6 +81,8 @@ public class ComposerContentFacetImplTest
 
   private static final String PROVIDER_PATH = "p/vendor/project.json";
 
+  private static final String PACKAGE_PATH = "p2/vendor/project.json";
+
   private static final String ZIPBALL_PATH = "vendor/project/version/project-version.zip";
 
   @Mock
@@ -112,6 +127,9 @@ public class ComposerContentFacetImplTest
   @Mock
   private NestedAttributesMap formatAttributes;
 
+  @Mock
+  private NestedAttributesMap metadataAttributes;
+
   @Mock
   private AssetBlob assetBlob;
 
@@ -121,11 +139,18 @@ public class ComposerContentFacetImplTest
   @Mock
   private ComposerFormatAttributesExtractor composerFormatAttributesExtractor;
 
+  @Mock
+  private ComposerJsonProcessor composerJsonProcessor;
+
+  @Mock
+  private Configuration configuration;
+
   private ComposerContentFacetImpl underTest;
 
   @Before
   public void setUp() throws Exception {
-    underTest = new ComposerContentFacetImpl(COMPOSER_FORMAT, composerFormatAttributesExtractor);
+    underTest = new ComposerContentFacetImpl(COMPOSER_FORMAT, composerFormatAttributesExtractor,
+        composerJsonProcessor);
     underTest.attach(repository);
 
     when(tx.findBucket(repository)).thenReturn(bucket);
@@ -146,6 +171,7 @@ public class ComposerContentFacetImplTest
     when(assetAttributes.child("cache")).thenReturn(cacheAttributes);
     when(assetAttributes.child("composer")).thenReturn(formatAttributes);
     when(assetAttributes.child("content")).thenReturn(contentAttributes);
+    when(assetAttributes.child(P_COMPOSER_METADATA)).thenReturn(metadataAttributes);
 
     when(assetBlob.getBlob()).thenReturn(blob);
     when(assetBlob.getBlobRef()).thenReturn(blobRef);
@@ -166,7 +192,7 @@ public class ComposerContentFacetImplTest
     when(component.version(any(String.class))).thenReturn(component);
 
     doThrow(new RuntimeException("Test")).when(composerFormatAttributesExtractor)
-        .extractFromZip(tempBlob, formatAttributes);
+        .extractFromZip(tempBlob, formatAttributes, metadataAttributes);
 
     UnitOfWork.beginBatch(tx);
   }
@@ -231,6 +257,59 @@ public class ComposerContentFacetImplTest
     testPutOrUpdate(ZIPBALL, ZIPBALL_PATH, true);
   }
 
+  @Test
+  public void updateUnchangedPackageJsonSkipsBlobWrite() throws Exception {
+    when(tx.findAssetWithProperty(P_NAME, PACKAGE_PATH, bucket)).thenReturn(asset);
+    when(asset.blobRef()).thenReturn(blobRef);
+    when(asset.contentType()).thenReturn(CONTENT_TYPE);
+    when(asset.getChecksum(SHA256)).thenReturn(CHECKSUMS.get(SHA256));
+    when(tempBlob.getHashes()).thenReturn(CHECKSUMS);
+
+    Content content = underTest.put(PACKAGE_PATH, upload, PACKAGE);
+    assertThat(content, is(notNullValue()));
+    assertThat(content.openInputStream(), is(blobInputStream));
+
+    verify(tx, never()).setBlob(asset, PACKAGE_PATH, tempBlob, null, CONTENT_TYPE, false);
+    verify(tx).saveAsset(asset);
+    assertThat(underTest.getSkippedMetadataWriteCount(), is(1L));
+  }
+
+  @Test
+  public void putProxiedPackageJsonRecordsDistUrls() throws Exception {
+    Map<String, Map<String, String>> distUrls = singletonMap("vendor/project", singletonMap("1.0.0", "distUrl"));
+    InputStream in = mock(InputStream.class);
+    when(repository.getType()).thenReturn(new ProxyType());
+    when(tempBlob.get()).thenReturn(in);
+    when(composerJsonProcessor.readDistUrls(in)).thenReturn(distUrls);
+    when(tx.setBlob(asset, PACKAGE_PATH, tempBlob, null, CONTENT_TYPE, false)).thenReturn(assetBlob);
+
+    underTest.put(PACKAGE_PATH, upload, PACKAGE);
+
+    verify(metadataAttributes).set(P_DIST_URLS, distUrls);
+    verify(tx).saveAsset(asset);
+  }
+
+  @Test
+  public void putHostedPackageJsonDoesNotRecordDistUrls() throws Exception {
+    when(tx.setBlob(asset, PACKAGE_PATH, tempBlob, null, CONTENT_TYPE, false)).thenReturn(assetBlob);
+
+    underTest.put(PACKAGE_PATH, upload, PACKAGE);
+
+    verify(composerJsonProcessor, never()).readDistUrls(any(InputStream.class));
+  }
+
+  @Test
+  public void getDistUrl() throws Exception {
+    when(tx.findAssetWithProperty(P_NAME, PACKAGE_PATH, bucket)).thenReturn(asset);
+    when(assetAttributes.contains(P_COMPOSER_METADATA)).thenReturn(true);
+    when(metadataAttributes.get(P_DIST_URLS, Map.class))
+        .thenReturn(singletonMap("vendor/project", singletonMap("1.0.0", "distUrl")));
+
+    assertThat(underTest.getDistUrl(PACKAGE_PATH, "vendor/project", "1.0.0"), is("distUrl"));
+    assertThat(underTest.getDistUrl(PACKAGE_PATH, "vendor/project", "2.0.0"), is(nullValue()));
+    assertThat(underTest.getDistUrl(PACKAGE_PATH, "vendor/other", "1.0.0"), is(nullValue()));
+  }
+
   private void testGet(final String path, final boolean markAsDownloaded) throws Exception {
     when(tx.findAssetWithProperty(P_NAME, path, bucket)).thenReturn(asset);
     when(asset.markAsDownloaded()).thenReturn(markAsDownloaded);
@@ -262,10 +341,11 @@ public class ComposerContentFacetImplTest
 
     if (ZIPBALL.equals(assetKind)) {
       verify(formatAttributes).clear();
+      verify(assetAttributes).remove(P_COMPOSER_METADATA);
       verify(formatAttributes).set(P_VENDOR, "vendor");
       verify(formatAttributes).set(P_PROJECT, "project");
       verify(formatAttributes).set(P_VERSION, "version");
-      verify(composerFormatAttributesExtractor).extractFromZip(tempBlob, formatAttributes);
+      verify(composerFormatAttributesExtractor).extractFromZip(tempBlob, formatAttributes, metadataAttributes);
     }
 
     verify(tx).saveAsset(asset);
@@ -275,4 +355,184 @@ public class ComposerContentFacetImplTest
       verify(component).version("version");
     }
   }
+
+  @Test
+  public void putJsonWriterStreamsIntoTempBlob() throws Exception {
+    AtomicReference<String> written = new AtomicReference<>();
+    when(storageFacet.createTempBlob(any(InputStream.class), eq(HASH_ALGORITHMS))).thenAnswer(invocation -> {
+      written.set(new String(ByteStreams.toByteArray(invocation.<InputStream>getArgument(0)), UTF_8));
+      return tempBlob;
+    });
+    when(tempBlob.getBlob()).thenReturn(blob);
+    when(tx.setBlob(asset, PACKAGES_PATH, tempBlob, null, ContentTypes.APPLICATION_JSON, false)).thenReturn(assetBlob);
+
+    underTest.doStart();
+    try {
+      Content content = underTest.put(PACKAGES_PATH, out -> out.write("{\"packages\":{}}".getBytes(UTF_8)), PACKAGES);
+      assertThat(content, is(notNullValue()));
+    }
+    finally {
+      underTest.doStop();
+    }
+
+    assertThat(written.get(), is("{\"packages\":{}}"));
+    verify(tx).saveAsset(asset);
+    verify(tempBlob).close();
+  }
+
+  @Test
+  public void putJsonWriterFailureStoresNothing() throws Exception {
+    when(storageFacet.createTempBlob(any(InputStream.class), eq(HASH_ALGORITHMS))).thenAnswer(invocation -> {
+      ByteStreams.exhaust(invocation.<InputStream>getArgument(0));
+      return tempBlob;
+    });
+
+    underTest.doStart();
+    try {
+      underTest.put(PACKAGES_PATH, out -> {
+        out.write('{');
+        throw new IOException("Test");
+      }, PACKAGES);
+      fail("Expected the write to fail");
+    }
+    catch (IOException e) {
+      assertThat(e.getMessage(), is("Test"));
+    }
+    finally {
+      underTest.doStop();
+    }
+
+    verify(tx, never()).saveAsset(asset);
+  }
+
+  @Test
+  public void putZipballInProxyDefersAttributeExtraction() throws Exception {
+    when(repository.getType()).thenReturn(new ProxyType());
+    when(tx.setBlob(asset, ZIPBALL_PATH, tempBlob, null, CONTENT_TYPE, false)).thenReturn(assetBlob);
+
+    Content content = underTest.put(ZIPBALL_PATH, upload, ZIPBALL);
+    assertThat(content, is(notNullValue()));
+
+    verify(metadataAttributes).set(P_EXTRACTION_PENDING, true);
+    verify(formatAttributes, never()).set(P_EXTRACTION_PENDING, true);
+    verify(composerFormatAttributesExtractor, never()).extractFromZip(tempBlob, formatAttributes, metadataAttributes);
+    verify(tx).saveAsset(asset);
+  }
+
+  @Test
+  public void extractDeferredFormatAttributes() throws Exception {
+    when(tx.findAssetWithProperty(P_NAME, ZIPBALL_PATH, bucket)).thenReturn(asset);
+    when(asset.blobRef()).thenReturn(blobRef);
+    when(assetAttributes.contains(P_COMPOSER_METADATA)).thenReturn(true);
+    when(metadataAttributes.get(P_EXTRACTION_PENDING)).thenReturn(true);
+
+    assertThat(underTest.extractFormatAttributes(ZIPBALL_PATH), is(true));
+
+    verify(metadataAttributes).remove(P_EXTRACTION_PENDING);
+    verify(composerFormatAttributesExtractor).extractFromZip(blob, formatAttributes, metadataAttributes);
+    verify(tx).saveAsset(asset);
+  }
+
+  @Test
+  public void extractFormatAttributesWhenNotPending() throws Exception {
+    when(tx.findAssetWithProperty(P_NAME, ZIPBALL_PATH, bucket)).thenReturn(asset);
+    when(asset.blobRef()).thenReturn(blobRef);
+
+    assertThat(underTest.extractFormatAttributes(ZIPBALL_PATH), is(false));
+
+    verify(composerFormatAttributesExtractor, never()).extractFromZip(blob, formatAttributes, metadataAttributes);
+    verify(tx, never()).saveAsset(asset);
+  }
+
+  @Test
+  public void findPendingExtractionsQueriesTheFlag() throws Exception {
+    ArgumentCaptor<Query> query = ArgumentCaptor.forClass(Query.class);
+    when(asset.name()).thenReturn(ZIPBALL_PATH);
+    when(tx.findAssets(query.capture(), eq(singletonList(repository)))).thenReturn(singletonList(asset));
+
+    assertThat(underTest.findPendingExtractions(), is(singletonList(ZIPBALL_PATH)));
+
+    assertThat(query.getValue().getWhere(), containsString("attributes.composer_metadata.extraction_pending"));
+    verify(tx, never()).browseAssets(bucket);
+  }
+
+  @Test
+  public void deleteRewritten() throws Exception {
+    when(tx.findAssetWithProperty(P_NAME, PACKAGE_PATH + ".rewritten", bucket)).thenReturn(asset);
+
+    assertThat(underTest.deleteRewritten(PACKAGE_PATH + ".rewritten"), is(true));
+
+    verify(tx).deleteAsset(asset);
+  }
+
+  @Test
+  public void deleteRewrittenWhenMissing() throws Exception {
+    assertThat(underTest.deleteRewritten(PACKAGE_PATH + ".rewritten"), is(false));
+
+    verify(tx, never()).deleteAsset(any(Asset.class));
+  }
+
+  @Test
+  public void assetDeletedEventForRewrittenAssetIsIgnored() throws Exception {
+    AssetDeletedEvent deleted = mockAssetDeletedEvent("test-repository", PACKAGE_PATH + ".rewritten", PACKAGE);
+    when(formatAttributes.contains(P_REWRITE_KEY)).thenReturn(true);
+
+    underTest.on(deleted);
+
+    verify(storageFacet, never()).txSupplier();
+  }
+
+  @Test
+  public void assetDeletedEventForZipballIsIgnored() throws Exception {
+    underTest.on(mockAssetDeletedEvent("test-repository", ZIPBALL_PATH, ZIPBALL));
+
+    verify(storageFacet, never()).txSupplier();
+  }
+
+  @Test
+  public void assetDeletedEventForOtherRepositoryIsIgnored() throws Exception {
+    underTest.on(mockAssetDeletedEvent("other-repository", PACKAGE_PATH, PACKAGE));
+
+    verify(storageFacet, never()).txSupplier();
+  }
+
+  private AssetDeletedEvent mockAssetDeletedEvent(final String repositoryName,
+                                                  final String path,
+                                                  final AssetKind assetKind)
+  {
+    AssetDeletedEvent deleted = mock(AssetDeletedEvent.class);
+    when(repository.getName()).thenReturn("test-repository");
+    when(deleted.isLocal()).thenReturn(true);
+    when(deleted.getRepositoryName()).thenReturn(repositoryName);
+    when(deleted.getAsset()).thenReturn(asset);
+    when(asset.name()).thenReturn(path);
+    when(formatAttributes.get(P_ASSET_KIND, String.class)).thenReturn(assetKind.name());
+    return deleted;
+  }
+
+  @Test
+  public void createUploadBlobWithinMaxUploadSize() throws Exception {
+    configureMaxUploadSize(10);
+    when(upload.openInputStream()).thenReturn(new ByteArrayInputStream(new byte[10]));
+
+    assertThat(underTest.createUploadBlob(upload), is(tempBlob));
+  }
+
+  @Test(expected = InvalidContentException.class)
+  public void createUploadBlobExceedingMaxUploadSize() throws Exception {
+    configureMaxUploadSize(4);
+    when(upload.openInputStream()).thenReturn(new ByteArrayInputStream(new byte[10]));
+
+    underTest.createUploadBlob(upload);
+  }
+
+  private void configureMaxUploadSize(final long maxUploadSize) {
+    when(repository.getConfiguration()).thenReturn(configuration);
+    when(configuration.attributes("composer")).thenReturn(
+        new NestedAttributesMap("composer", new HashMap<>(singletonMap("maxUploadSize", maxUploadSize))));
+    when(storageFacet.createTempBlob(any(InputStream.class), eq(HASH_ALGORITHMS))).thenAnswer(invocation -> {
+      ByteStreams.exhaust(invocation.<InputStream>getArgument(0));
+      return tempBlob;
+    });
+  }
 }
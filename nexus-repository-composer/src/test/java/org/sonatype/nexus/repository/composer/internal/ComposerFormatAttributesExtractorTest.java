@@ -80,7 +80,8 @@ public class ComposerFormatAttributesExtractorTest
     when(composerJsonExtractor.extractFromZip(blob)).thenReturn(contents);
 
     NestedAttributesMap attributesMap = new NestedAttributesMap("composer", new LinkedHashMap<>());
-    underTest.extractFromZip(tempBlob, attributesMap);
+    NestedAttributesMap metadataMap = new NestedAttributesMap("composer_metadata", new LinkedHashMap<>());
+    underTest.extractFromZip(tempBlob, attributesMap, metadataMap);
 
     assertThat(attributesMap.keys(), containsInAnyOrder(EXPECTED_FIELDS));
     assertThat(attributesMap.get(P_NAME), is("vendor/project"));
@@ -102,6 +103,12 @@ public class ComposerFormatAttributesExtractorTest
     assertThat(attributesMap.get(P_SUPPORT_SOURCE), is("http://www.example.com/source"));
     assertThat(attributesMap.get(P_SUPPORT_DOCS), is("http://www.example.com/docs"));
     assertThat(attributesMap.get(P_SUPPORT_RSS), is("http://www.example.com/rss"));
+    assertThat(metadataMap.keys(), contains(P_COMPOSER_JSON));
+    Map<String, Object> versionInfo = new ObjectMapper().readValue(metadataMap.require(P_COMPOSER_JSON, String.class),
+        new TypeReference<Map<String, Object>>() { });
+    assertThat(versionInfo.keySet(), containsInAnyOrder("description", "keywords", "homepage", "type", "license",
+        "authors", "support", "require", "require-dev", "bin", "extra", "scripts"));
+    assertThat(versionInfo.get("require"), is(contents.get("require")));
   }
 
   @Test
@@ -110,9 +117,11 @@ public class ComposerFormatAttributesExtractorTest
       when(composerJsonExtractor.extractFromZip(blob)).thenReturn(Collections.emptyMap());
 
       NestedAttributesMap attributesMap = new NestedAttributesMap("composer", new LinkedHashMap<>());
-      underTest.extractFromZip(tempBlob, attributesMap);
+      NestedAttributesMap metadataMap = new NestedAttributesMap("composer_metadata", new LinkedHashMap<>());
+      underTest.extractFromZip(tempBlob, attributesMap, metadataMap);
 
       assertThat(attributesMap.keys(), is(empty()));
+      assertThat(metadataMap.keys(), is(empty()));
   }
 
   @Test
@@ -12,23 +12,45 @@
  */
 package org.sonatype.nexus.repository.composer.internal;
 
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+
+import com.google.common.base.Supplier;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mock;
 import org.sonatype.goodies.testsupport.TestSupport;
+import org.sonatype.nexus.common.app.BaseUrlHolder;
 import org.sonatype.nexus.common.collect.AttributesMap;
+import org.sonatype.nexus.common.collect.NestedAttributesMap;
+import org.sonatype.nexus.common.hash.HashAlgorithm;
 import org.sonatype.nexus.repository.Repository;
+import org.sonatype.nexus.repository.config.Configuration;
 import org.sonatype.nexus.repository.group.GroupFacet;
+import org.sonatype.nexus.repository.storage.StorageFacet;
+import org.sonatype.nexus.repository.storage.StorageTx;
 import org.sonatype.nexus.repository.view.*;
+import org.sonatype.nexus.repository.view.payloads.StringPayload;
 
 import static java.util.Arrays.asList;
 import static java.util.Collections.singletonList;
+import static java.util.Collections.singletonMap;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.hamcrest.Matchers.contains;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
 import static org.hamcrest.Matchers.notNullValue;
 import static org.junit.Assert.assertThat;
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
+import static org.sonatype.nexus.repository.composer.internal.ComposerGroupMergingHandler.COMPOSER_CONFIG_KEY;
+import static org.sonatype.nexus.repository.composer.internal.ComposerGroupMergingHandler.MEMBER_TIMEOUT;
 import static org.sonatype.nexus.repository.http.HttpMethods.GET;
 import static org.sonatype.nexus.repository.http.HttpStatus.INTERNAL_SERVER_ERROR;
 import static org.sonatype.nexus.repository.http.HttpStatus.OK;
@@ -36,6 +58,10 @@ import static org.sonatype.nexus.repository.http.HttpStatus.OK;
 public class ComposerGroupPackagesJsonHandlerTest
     extends TestSupport
 {
+  private static final String PACKAGES_PATH = "packages.json";
+
+  private static final String MERGE_KEY = "http://nexus.repo/base/group@member1=sha1-1@member2=sha1-2";
+
   @Mock
   private Content content;
 
@@ -87,6 +113,25 @@ public class ComposerGroupPackagesJsonHandlerTest
   @Mock
   private ComposerJsonProcessor composerJsonProcessor;
 
+  @Mock
+  private Configuration configuration;
+
+  @Mock
+  private ComposerContentFacet composerContentFacet;
+
+  @Mock
+  private StorageFacet storageFacet;
+
+  @Mock
+  private Supplier<StorageTx> txSupplier;
+
+  @Mock
+  private Content merged;
+
+  private final AttributesMap contextAttributes = new AttributesMap();
+
+  private final ComposerGroupMemberExecutor memberExecutor = new ComposerGroupMemberExecutor();
+
   private ComposerGroupPackagesJsonHandler underTest;
 
   @Before
@@ -96,6 +141,8 @@ public class ComposerGroupPackagesJsonHandlerTest
     when(context.getAttributes()).thenReturn(new AttributesMap());
 
     when(request.getAction()).thenReturn(GET);
+    when(request.getPath()).thenReturn("/" + PACKAGES_PATH);
+    when(request.getParameters()).thenReturn(new Parameters());
     when(request.getAttributes()).thenReturn(new AttributesMap());
     when(request.getHeaders()).thenReturn(new Headers());
 
@@ -108,8 +155,8 @@ public class ComposerGroupPackagesJsonHandlerTest
     when(memberRepository2.getName()).thenReturn("member2");
     when(memberRepository2.facet(ViewFacet.class)).thenReturn(memberRepository2ViewFacet);
 
-    when(memberRepository1ViewFacet.dispatch(request, context)).thenReturn(response1);
-    when(memberRepository2ViewFacet.dispatch(request, context)).thenReturn(response2);
+    when(memberRepository1ViewFacet.dispatch(any(Request.class), any(Context.class))).thenReturn(response1);
+    when(memberRepository2ViewFacet.dispatch(any(Request.class), any(Context.class))).thenReturn(response2);
 
     when(response1.getStatus()).thenReturn(status1);
     when(response1.getPayload()).thenReturn(payload1);
@@ -120,7 +167,13 @@ public class ComposerGroupPackagesJsonHandlerTest
     when(status1.getCode()).thenReturn(OK);
     when(status2.getCode()).thenReturn(OK);
 
-    underTest = new ComposerGroupPackagesJsonHandler(composerJsonProcessor);
+    memberExecutor.start();
+    underTest = new ComposerGroupPackagesJsonHandler(composerJsonProcessor, memberExecutor);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    memberExecutor.stop();
   }
 
   @Test
@@ -156,4 +209,116 @@ public class ComposerGroupPackagesJsonHandlerTest
 
     verify(composerJsonProcessor).mergePackagesJson(eq(repository), eq(singletonList(payload2)));
   }
+
+  @Test
+  public void mergeInMemberOrderWhenFirstMemberIsSlower() throws Exception {
+    CountDownLatch member2Responded = new CountDownLatch(1);
+    when(memberRepository1ViewFacet.dispatch(any(Request.class), any(Context.class))).thenAnswer(invocation -> {
+      assertThat(member2Responded.await(5, SECONDS), is(true));
+      return response1;
+    });
+    when(memberRepository2ViewFacet.dispatch(any(Request.class), any(Context.class))).thenAnswer(invocation -> {
+      member2Responded.countDown();
+      return response2;
+    });
+
+    underTest.handle(context);
+
+    verify(composerJsonProcessor).mergePackagesJson(eq(repository), eq(asList(payload1, payload2)));
+  }
+
+  @Test
+  public void ignoreMemberThatTimesOut() throws Exception {
+    when(repository.getConfiguration()).thenReturn(configuration);
+    when(configuration.attributes(COMPOSER_CONFIG_KEY)).thenReturn(
+        new NestedAttributesMap(COMPOSER_CONFIG_KEY, new HashMap<>(singletonMap(MEMBER_TIMEOUT, 1))));
+    CountDownLatch released = new CountDownLatch(1);
+    when(memberRepository1ViewFacet.dispatch(any(Request.class), any(Context.class))).thenAnswer(invocation -> {
+      released.await();
+      return response1;
+    });
+
+    try {
+      Response result = underTest.handle(context);
+
+      assertThat(result.getStatus().getCode(), is(OK));
+      verify(composerJsonProcessor).mergePackagesJson(eq(repository), eq(singletonList(payload2)));
+    }
+    finally {
+      released.countDown();
+    }
+  }
+
+  @Test
+  public void dispatchMembersOnTheirOwnContextWithTheBaseUrl() throws Exception {
+    List<Context> memberContexts = new CopyOnWriteArrayList<>();
+    List<String> baseUrls = new CopyOnWriteArrayList<>();
+    when(memberRepository1ViewFacet.dispatch(any(Request.class), any(Context.class))).thenAnswer(invocation -> {
+      memberContexts.add(invocation.getArgument(1));
+      baseUrls.add(BaseUrlHolder.get());
+      return response1;
+    });
+    when(memberRepository2ViewFacet.dispatch(any(Request.class), any(Context.class))).thenAnswer(invocation -> {
+      memberContexts.add(invocation.getArgument(1));
+      baseUrls.add(BaseUrlHolder.get());
+      return response2;
+    });
+
+    BaseUrlHolder.set("http://nexus.example/base");
+    try {
+      underTest.handle(context);
+    }
+    finally {
+      BaseUrlHolder.unset();
+    }
+
+    assertThat(baseUrls, contains("http://nexus.example/base", "http://nexus.example/base"));
+    assertThat(memberContexts.get(0), is(not(context)));
+    assertThat(memberContexts.get(1), is(not(memberContexts.get(0))));
+    assertThat(memberContexts.get(0).getRequest(), is(not(request)));
+  }
+
+  @Test
+  public void serveStoredMergeWhenMembersUnchanged() throws Exception {
+    Content member1 = memberContent("sha1-1");
+    Content member2 = memberContent("sha1-2");
+    when(response1.getPayload()).thenReturn(member1);
+    when(response2.getPayload()).thenReturn(member2);
+    when(repository.getUrl()).thenReturn("http://nexus.repo/base/group");
+    when(repository.facet(ComposerContentFacet.class)).thenReturn(composerContentFacet);
+    when(repository.facet(StorageFacet.class)).thenReturn(storageFacet);
+    when(storageFacet.txSupplier()).thenReturn(txSupplier);
+    when(composerContentFacet.getRewritten(PACKAGES_PATH, MERGE_KEY)).thenReturn(content);
+
+    Response result = underTest.handle(context);
+
+    assertThat(result.getPayload(), is(content));
+    verify(composerJsonProcessor, never()).mergePackagesJson(any(), any());
+  }
+
+  @Test
+  public void storeMergeWhenMembersChanged() throws Exception {
+    Content member1 = memberContent("sha1-1");
+    Content member2 = memberContent("sha1-2");
+    when(response1.getPayload()).thenReturn(member1);
+    when(response2.getPayload()).thenReturn(member2);
+    when(repository.getUrl()).thenReturn("http://nexus.repo/base/group");
+    when(repository.facet(ComposerContentFacet.class)).thenReturn(composerContentFacet);
+    when(repository.facet(StorageFacet.class)).thenReturn(storageFacet);
+    when(storageFacet.txSupplier()).thenReturn(txSupplier);
+    when(context.getAttributes()).thenReturn(contextAttributes);
+    contextAttributes.set(AssetKind.class, AssetKind.PACKAGES);
+    when(composerJsonProcessor.mergePackagesJson(repository, asList(member1, member2))).thenReturn(merged);
+    when(composerContentFacet.putRewritten(PACKAGES_PATH, merged, AssetKind.PACKAGES, MERGE_KEY)).thenReturn(content);
+
+    Response result = underTest.handle(context);
+
+    assertThat(result.getPayload(), is(content));
+  }
+
+  private Content memberContent(final String sha1) {
+    Content memberContent = new Content(new StringPayload("{}", ContentTypes.APPLICATION_JSON));
+    memberContent.getAttributes().set(Content.CONTENT_HASH_CODES_MAP, singletonMap(HashAlgorithm.SHA1, sha1));
+    return memberContent;
+  }
 }
@@ -12,27 +12,39 @@ package org.sonatype.nexus.repository.composer.internal;
  * Eclipse Foundation. All other trademarks are the property of their respective owners.
  */
 
+import java.io.ByteArrayInputStream;
+import java.util.HashMap;
+
 import org.joda.time.DateTime;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mock;
 import org.sonatype.goodies.testsupport.TestSupport;
 import org.sonatype.nexus.common.collect.AttributesMap;
+import org.sonatype.nexus.common.collect.NestedAttributesMap;
 import org.sonatype.nexus.repository.Repository;
+import org.sonatype.nexus.repository.config.Configuration;
 import org.sonatype.nexus.repository.group.GroupFacet;
 import org.sonatype.nexus.repository.view.*;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.Arrays.asList;
 import static java.util.Collections.singletonList;
+import static java.util.Collections.singletonMap;
 import static org.hamcrest.Matchers.is;
 import static org.hamcrest.Matchers.notNullValue;
 import static org.junit.Assert.assertThat;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
+import static org.sonatype.nexus.repository.composer.internal.ComposerGroupMergingHandler.COMPOSER_CONFIG_KEY;
+import static org.sonatype.nexus.repository.composer.internal.ComposerGroupMergingHandler.FIRST_MATCH;
+import static org.sonatype.nexus.repository.composer.internal.ComposerGroupMergingHandler.MERGE_POLICY;
 import static org.sonatype.nexus.repository.http.HttpMethods.GET;
 import static org.sonatype.nexus.repository.http.HttpStatus.INTERNAL_SERVER_ERROR;
+import static org.sonatype.nexus.repository.http.HttpStatus.NOT_FOUND;
 import static org.sonatype.nexus.repository.http.HttpStatus.OK;
 
 public class ComposerGroupProviderJsonHandlerTest
@@ -89,6 +101,12 @@ public class ComposerGroupProviderJsonHandlerTest
   @Mock
   private ComposerJsonProcessor composerJsonProcessor;
 
+  @Mock
+  private Configuration configuration;
+
+  @Mock
+  private ComposerGroupMemberIndex memberIndex;
+
   private ComposerGroupProviderJsonHandler underTest;
 
   @Before
@@ -98,6 +116,8 @@ public class ComposerGroupProviderJsonHandlerTest
     when(context.getAttributes()).thenReturn(new AttributesMap());
 
     when(request.getAction()).thenReturn(GET);
+    when(request.getPath()).thenReturn("/p/vendor/project.json");
+    when(request.getParameters()).thenReturn(new Parameters());
     when(request.getAttributes()).thenReturn(new AttributesMap());
     when(request.getHeaders()).thenReturn(new Headers());
 
@@ -110,8 +130,8 @@ public class ComposerGroupProviderJsonHandlerTest
     when(memberRepository2.getName()).thenReturn("member2");
     when(memberRepository2.facet(ViewFacet.class)).thenReturn(memberRepository2ViewFacet);
 
-    when(memberRepository1ViewFacet.dispatch(request, context)).thenReturn(response1);
-    when(memberRepository2ViewFacet.dispatch(request, context)).thenReturn(response2);
+    when(memberRepository1ViewFacet.dispatch(any(Request.class), any(Context.class))).thenReturn(response1);
+    when(memberRepository2ViewFacet.dispatch(any(Request.class), any(Context.class))).thenReturn(response2);
 
     when(response1.getStatus()).thenReturn(status1);
     when(response1.getPayload()).thenReturn(payload1);
@@ -122,7 +142,8 @@ public class ComposerGroupProviderJsonHandlerTest
     when(status1.getCode()).thenReturn(OK);
     when(status2.getCode()).thenReturn(OK);
 
-    underTest = new ComposerGroupProviderJsonHandler(composerJsonProcessor);
+    underTest = new ComposerGroupProviderJsonHandler(composerJsonProcessor, new ComposerGroupMemberExecutor(),
+        memberIndex);
   }
 
   @Test
@@ -146,6 +167,7 @@ public class ComposerGroupProviderJsonHandlerTest
     assertThat(result.getStatus().getCode(), is(OK));
 
     verify(composerJsonProcessor).mergeProviderJson(eq(repository), eq(singletonList(payload2)), any(DateTime.class));
+    verify(memberIndex).invalidate(context);
   }
 
   @Test
@@ -159,4 +181,34 @@ public class ComposerGroupProviderJsonHandlerTest
 
     verify(composerJsonProcessor).mergeProviderJson(eq(repository), eq(singletonList(payload2)), any(DateTime.class));
   }
+
+  @Test
+  public void firstMatchServesFirstMemberOnly() throws Exception {
+    when(repository.getConfiguration()).thenReturn(configuration);
+    when(configuration.attributes(COMPOSER_CONFIG_KEY)).thenReturn(
+        new NestedAttributesMap(COMPOSER_CONFIG_KEY, new HashMap<>(singletonMap(MERGE_POLICY, FIRST_MATCH))));
+    when(composerJsonProcessor.rewriteProviderJson(repository, payload1)).thenReturn(payload1);
+    when(payload1.openInputStream()).thenReturn(new ByteArrayInputStream("{}".getBytes(UTF_8)));
+
+    Response result = underTest.handle(context);
+
+    assertThat(result.getStatus().getCode(), is(OK));
+    verify(composerJsonProcessor).rewriteProviderJson(repository, payload1);
+    verify(composerJsonProcessor, never()).mergeProviderJson(any(), any(), any());
+    verify(memberRepository2ViewFacet, never()).dispatch(any(Request.class), any(Context.class));
+  }
+
+  @Test
+  public void firstMatchSkipsMemberWithoutDocument() throws Exception {
+    when(repository.getConfiguration()).thenReturn(configuration);
+    when(configuration.attributes(COMPOSER_CONFIG_KEY)).thenReturn(
+        new NestedAttributesMap(COMPOSER_CONFIG_KEY, new HashMap<>(singletonMap(MERGE_POLICY, FIRST_MATCH))));
+    when(status1.getCode()).thenReturn(NOT_FOUND);
+    when(composerJsonProcessor.rewriteProviderJson(repository, payload2)).thenReturn(payload2);
+    when(payload2.openInputStream()).thenReturn(new ByteArrayInputStream("{}".getBytes(UTF_8)));
+
+    underTest.handle(context);
+
+    verify(composerJsonProcessor).rewriteProviderJson(repository, payload2);
+  }
 }
@@ -0,0 +1,166 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2018-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.repository.composer.internal;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.sonatype.goodies.testsupport.TestSupport;
+import org.sonatype.nexus.common.collect.AttributesMap;
+import org.sonatype.nexus.repository.Repository;
+import org.sonatype.nexus.repository.group.GroupFacet;
+import org.sonatype.nexus.repository.view.*;
+import org.sonatype.nexus.repository.view.matchers.token.TokenMatcher;
+
+import com.google.common.collect.ImmutableMap;
+
+import static java.util.Arrays.asList;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.sonatype.nexus.repository.http.HttpMethods.GET;
+import static org.sonatype.nexus.repository.http.HttpStatus.NOT_FOUND;
+import static org.sonatype.nexus.repository.http.HttpStatus.OK;
+
+public class ComposerGroupZipballHandlerTest
+    extends TestSupport
+{
+  @Mock
+  private Request request;
+
+  @Mock
+  private Context context;
+
+  @Mock
+  private Repository repository;
+
+  @Mock
+  private GroupFacet groupFacet;
+
+  @Mock
+  private TokenMatcher.State state;
+
+  @Mock
+  private Repository memberRepository1;
+
+  @Mock
+  private Repository memberRepository2;
+
+  @Mock
+  private ViewFacet memberRepository1ViewFacet;
+
+  @Mock
+  private ViewFacet memberRepository2ViewFacet;
+
+  @Mock
+  private Response response1;
+
+  @Mock
+  private Response response2;
+
+  private final AttributesMap contextAttributes = new AttributesMap();
+
+  private ComposerGroupMemberIndex memberIndex;
+
+  private ComposerGroupZipballHandler underTest;
+
+  @Before
+  public void setUp() throws Exception {
+    when(context.getRepository()).thenReturn(repository);
+    when(context.getRequest()).thenReturn(request);
+    when(context.getAttributes()).thenReturn(contextAttributes);
+    contextAttributes.set(TokenMatcher.State.class, state);
+    when(state.getTokens()).thenReturn(ImmutableMap.of("vendor", "vendor", "project", "project", "version", "1.0.0"));
+
+    when(request.getAction()).thenReturn(GET);
+    when(request.getAttributes()).thenReturn(new AttributesMap());
+
+    when(repository.getName()).thenReturn("group");
+    when(repository.facet(GroupFacet.class)).thenReturn(groupFacet);
+    when(groupFacet.members()).thenReturn(asList(memberRepository1, memberRepository2));
+
+    when(memberRepository1.getName()).thenReturn("member1");
+    when(memberRepository1.facet(ViewFacet.class)).thenReturn(memberRepository1ViewFacet);
+
+    when(memberRepository2.getName()).thenReturn("member2");
+    when(memberRepository2.facet(ViewFacet.class)).thenReturn(memberRepository2ViewFacet);
+
+    when(memberRepository1ViewFacet.dispatch(request, context)).thenReturn(response1);
+    when(memberRepository2ViewFacet.dispatch(request, context)).thenReturn(response2);
+
+    when(response1.getStatus()).thenReturn(new Status(false, NOT_FOUND));
+    when(response2.getStatus()).thenReturn(new Status(true, OK));
+
+    memberIndex = new ComposerGroupMemberIndex();
+    underTest = new ComposerGroupZipballHandler(memberIndex);
+  }
+
+  @Test
+  public void probeMembersInOrderAndIndexServingMember() throws Exception {
+    assertThat(underTest.handle(context), is(response2));
+
+    verify(memberRepository1ViewFacet).dispatch(request, context);
+    assertThat(memberIndex.get(context), is(memberRepository2));
+    assertThat(underTest.getIndexHitCount(), is(0L));
+  }
+
+  @Test
+  public void tryIndexedMemberFirst() throws Exception {
+    memberIndex.put(context, memberRepository2);
+
+    assertThat(underTest.handle(context), is(response2));
+
+    verify(memberRepository1ViewFacet, never()).dispatch(request, context);
+    assertThat(underTest.getIndexHitCount(), is(1L));
+  }
+
+  @Test
+  public void fallBackToProbeOrderWhenIndexedMemberMisses() throws Exception {
+    memberIndex.put(context, memberRepository1);
+
+    assertThat(underTest.handle(context), is(response2));
+
+    verify(memberRepository1ViewFacet).dispatch(request, context);
+    assertThat(memberIndex.get(context), is(memberRepository2));
+  }
+
+  @Test
+  public void probeMembersInOrderForAnotherVersion() throws Exception {
+    memberIndex.put(context, memberRepository2);
+    when(state.getTokens()).thenReturn(ImmutableMap.of("vendor", "vendor", "project", "project", "version", "2.0.0"));
+
+    assertThat(underTest.handle(context), is(response2));
+
+    verify(memberRepository1ViewFacet).dispatch(request, context);
+    assertThat(underTest.getIndexHitCount(), is(0L));
+  }
+
+  @Test
+  public void ignoreIndexedMemberWhenGroupOrderChanges() throws Exception {
+    memberIndex.put(context, memberRepository2);
+    when(groupFacet.members()).thenReturn(asList(memberRepository2, memberRepository1));
+
+    assertThat(memberIndex.get(context), is(nullValue()));
+  }
+
+  @Test
+  public void forgetIndexedMembersWhenInvalidated() throws Exception {
+    memberIndex.put(context, memberRepository2);
+    memberIndex.invalidate(context);
+
+    assertThat(memberIndex.get(context), is(nullValue()));
+  }
+}
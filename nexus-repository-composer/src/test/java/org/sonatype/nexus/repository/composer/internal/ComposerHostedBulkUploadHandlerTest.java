@@ -0,0 +1,244 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2018-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.repository.composer.internal;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.sonatype.goodies.testsupport.TestSupport;
+import org.sonatype.nexus.repository.InvalidContentException;
+import org.sonatype.nexus.repository.Repository;
+import org.sonatype.nexus.repository.security.ContentPermissionChecker;
+import org.sonatype.nexus.repository.security.VariableResolverAdapter;
+import org.sonatype.nexus.repository.view.Context;
+import org.sonatype.nexus.repository.view.PartPayload;
+import org.sonatype.nexus.repository.view.Request;
+import org.sonatype.nexus.repository.view.Response;
+import org.sonatype.nexus.repository.view.payloads.TempBlob;
+import org.sonatype.nexus.selector.VariableSource;
+
+import org.apache.shiro.authz.AuthorizationException;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+import static org.sonatype.nexus.repository.composer.internal.ComposerRecipeSupport.*;
+import static org.sonatype.nexus.security.BreadActions.EDIT;
+
+public class ComposerHostedBulkUploadHandlerTest
+    extends TestSupport
+{
+  @Mock
+  private Context context;
+
+  @Mock
+  private Request request;
+
+  @Mock
+  private Repository repository;
+
+  @Mock
+  private ComposerHostedFacet hostedFacet;
+
+  @Mock
+  private ComposerHostedMetadataFacet metadataFacet;
+
+  @Mock
+  private ContentPermissionChecker contentPermissionChecker;
+
+  @Mock
+  private VariableResolverAdapter variableResolverAdapter;
+
+  @Mock
+  private VariableSource variableSource;
+
+  @Mock
+  private VariableSource deniedVariableSource;
+
+  @Mock
+  private TempBlob tempBlob1;
+
+  @Mock
+  private TempBlob tempBlob2;
+
+  private final List<PartPayload> parts = new ArrayList<>();
+
+  private final List<String> stored = new ArrayList<>();
+
+  private ComposerHostedBulkUploadHandler underTest;
+
+  @Before
+  public void setUp() throws Exception {
+    underTest = new ComposerHostedBulkUploadHandler(contentPermissionChecker, variableResolverAdapter);
+    when(repository.getName()).thenReturn("hosted");
+    when(variableResolverAdapter.fromPath(any(String.class), eq(ComposerFormat.NAME))).thenReturn(variableSource);
+    when(contentPermissionChecker.isPermitted("hosted", ComposerFormat.NAME, EDIT, variableSource)).thenReturn(true);
+    when(context.getRequest()).thenReturn(request);
+    when(context.getRepository()).thenReturn(repository);
+    when(repository.facet(ComposerHostedFacet.class)).thenReturn(hostedFacet);
+    when(repository.facet(ComposerHostedMetadataFacet.class)).thenReturn(metadataFacet);
+    when(request.isMultipart()).thenReturn(true);
+    when(request.getMultiparts()).thenReturn(parts);
+
+    // the batch is cleared once stored, so record what it held at the time of the call
+    doAnswer(invocation -> {
+      List<ComposerBulkUploadEntry> entries = invocation.getArgument(0);
+      for (ComposerBulkUploadEntry entry : entries) {
+        stored.add(entry.getVendor() + "/" + entry.getProject() + ":" + entry.getVersion() + ":" +
+            entry.getSourceType());
+      }
+      return null;
+    }).when(hostedFacet).upload(anyList());
+  }
+
+  @Test
+  public void storeAllPackagesAndRebuildOnce() throws Exception {
+    addField(VENDOR_TOKEN, "vendor1");
+    addField(PROJECT_TOKEN, "project1");
+    addField(VERSION_TOKEN, "1.0.0");
+    PartPayload package1 = addPackage(tempBlob1);
+    addField(VENDOR_TOKEN, "vendor1");
+    addField(PROJECT_TOKEN, "project1");
+    addField(VERSION_TOKEN, "2.0.0");
+    addField(SOURCE_TYPE_FIELD_NAME, "git");
+    PartPayload package2 = addPackage(tempBlob2);
+
+    Response response = underTest.handle(context);
+
+    assertThat(response.getStatus().getCode(), is(200));
+    assertThat(stored, contains("vendor1/project1:1.0.0:null", "vendor1/project1:2.0.0:git"));
+    verify(hostedFacet, times(1)).upload(anyList());
+    verify(package1).close();
+    verify(package2).close();
+    verify(tempBlob1).close();
+    verify(tempBlob2).close();
+
+    InOrder inOrder = inOrder(metadataFacet, hostedFacet);
+    inOrder.verify(metadataFacet).holdRebuild("vendor1", "project1");
+    inOrder.verify(hostedFacet).upload(anyList());
+    inOrder.verify(metadataFacet).releaseRebuild("vendor1", "project1");
+    verifyNoMoreInteractions(metadataFacet);
+  }
+
+  @Test
+  public void rejectPackageNotPermittedByContentSelectors() throws Exception {
+    when(variableResolverAdapter.fromPath("/vendor2/project2/1.0.0/vendor2-project2-1.0.0.zip", ComposerFormat.NAME))
+        .thenReturn(deniedVariableSource);
+    addField(VENDOR_TOKEN, "vendor1");
+    addField(PROJECT_TOKEN, "project1");
+    addField(VERSION_TOKEN, "1.0.0");
+    addPackage(tempBlob1);
+    addField(VENDOR_TOKEN, "vendor2");
+    addField(PROJECT_TOKEN, "project2");
+    addField(VERSION_TOKEN, "1.0.0");
+    PartPayload package2 = addPackage(tempBlob2);
+
+    try {
+      underTest.handle(context);
+      fail("Expected AuthorizationException");
+    }
+    catch (AuthorizationException e) {
+      // expected
+    }
+
+    verify(hostedFacet, never()).createUploadBlob(package2);
+    verify(hostedFacet, never()).upload(anyList());
+    verify(package2).close();
+    verify(tempBlob1).close();
+    verify(metadataFacet).releaseRebuild("vendor1", "project1");
+    verify(metadataFacet, never()).holdRebuild("vendor2", "project2");
+  }
+
+  @Test
+  public void rejectPackageWithoutCoordinates() throws Exception {
+    addField(VENDOR_TOKEN, "vendor1");
+    addField(PROJECT_TOKEN, "project1");
+    PartPayload package1 = addPackage(tempBlob1);
+
+    try {
+      underTest.handle(context);
+      fail("Expected InvalidContentException");
+    }
+    catch (InvalidContentException e) {
+      // expected
+    }
+
+    verify(hostedFacet, never()).createUploadBlob(any());
+    verify(hostedFacet, never()).upload(anyList());
+    verify(package1).close();
+    verifyNoMoreInteractions(metadataFacet);
+  }
+
+  @Test
+  public void reportZipballsStoredBeforeRejectedPackage() throws Exception {
+    for (int i = 0; i < ComposerHostedBulkUploadHandler.BATCH_SIZE; i++) {
+      addField(VENDOR_TOKEN, "vendor1");
+      addField(PROJECT_TOKEN, "project1");
+      addField(VERSION_TOKEN, "1.0." + i);
+      addPackage(mock(TempBlob.class));
+    }
+    addField(VENDOR_TOKEN, "vendor1");
+    addField(PROJECT_TOKEN, "project1");
+    addPackage(tempBlob1);
+
+    try {
+      underTest.handle(context);
+      fail("Expected InvalidContentException");
+    }
+    catch (InvalidContentException e) {
+      assertThat(e.getMessage(), containsString("the first 100 zipballs of the request were already stored"));
+    }
+
+    assertThat(stored.size(), is(ComposerHostedBulkUploadHandler.BATCH_SIZE));
+    verify(hostedFacet, times(1)).upload(anyList());
+    verify(metadataFacet).releaseRebuild("vendor1", "project1");
+  }
+
+  @Test
+  public void rejectNonMultipartRequest() throws Exception {
+    when(request.isMultipart()).thenReturn(false);
+
+    Response response = underTest.handle(context);
+
+    assertThat(response.getStatus().getCode(), is(400));
+    verify(hostedFacet, never()).upload(anyList());
+    verifyNoMoreInteractions(metadataFacet);
+  }
+
+  private void addField(final String fieldName, final String value) throws Exception {
+    PartPayload part = mock(PartPayload.class);
+    when(part.getFieldName()).thenReturn(fieldName);
+    when(part.openInputStream()).thenReturn(new ByteArrayInputStream(value.getBytes(UTF_8)));
+    parts.add(part);
+  }
+
+  private PartPayload addPackage(final TempBlob tempBlob) throws Exception {
+    PartPayload part = mock(PartPayload.class);
+    when(part.getFieldName()).thenReturn(PACKAGE_FIELD_NAME);
+    when(hostedFacet.createUploadBlob(part)).thenReturn(tempBlob);
+    parts.add(part);
+    return part;
+  }
+}
@@ -12,27 +12,48 @@
  */
 package org.sonatype.nexus.repository.composer.internal;
 
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.joda.time.DateTime;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.sonatype.goodies.testsupport.TestSupport;
+import org.sonatype.nexus.common.collect.AttributesMap;
+import org.sonatype.nexus.common.collect.NestedAttributesMap;
+import org.sonatype.nexus.common.hash.HashAlgorithm;
 import org.sonatype.nexus.repository.Repository;
+import org.sonatype.nexus.repository.storage.Asset;
 import org.sonatype.nexus.repository.storage.Bucket;
 import org.sonatype.nexus.repository.storage.Component;
 import org.sonatype.nexus.repository.storage.Query;
 import org.sonatype.nexus.repository.storage.StorageTx;
 import org.sonatype.nexus.repository.view.Content;
 import org.sonatype.nexus.repository.view.Payload;
+import org.sonatype.nexus.repository.view.payloads.TempBlob;
 import org.sonatype.nexus.transaction.UnitOfWork;
 
+import static java.util.Arrays.asList;
 import static java.util.Collections.singletonList;
+import static java.util.Collections.singletonMap;
+import static org.hamcrest.Matchers.contains;
 import static org.hamcrest.Matchers.hasEntry;
 import static org.hamcrest.Matchers.is;
 import static org.junit.Assert.assertThat;
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.*;
+import static org.sonatype.nexus.repository.composer.internal.AssetKind.PACKAGES;
 import static org.sonatype.nexus.repository.composer.internal.AssetKind.PROVIDER;
+import static org.sonatype.nexus.repository.composer.internal.AssetKind.ZIPBALL;
+import static org.sonatype.nexus.repository.composer.internal.ComposerAttributes.P_PROJECT;
+import static org.sonatype.nexus.repository.composer.internal.ComposerAttributes.P_VENDOR;
+import static org.sonatype.nexus.repository.storage.AssetEntityAdapter.P_ASSET_KIND;
 
 public class ComposerHostedFacetImplTest
     extends TestSupport
@@ -53,6 +74,16 @@ public class ComposerHostedFacetImplTest
 
   private static final String PROVIDER_PATH = "p/vendor/project.json";
 
+  private static final String PACKAGES_PATH = "packages.json";
+
+  private static final String REWRITTEN_PACKAGES_PATH = "packages.json.rewritten";
+
+  private static final String REPOSITORY_URL = "http://nexus.repo/base/repo";
+
+  private static final String SHA1 = "0123456789abcdef0123456789abcdef01234567";
+
+  private static final String REWRITE_KEY = REPOSITORY_URL + "@" + SHA1;
+
   @Mock
   private Repository repository;
 
@@ -68,9 +99,15 @@ public class ComposerHostedFacetImplTest
   @Mock
   private Payload payload;
 
+  @Mock
+  private TempBlob tempBlob;
+
   @Mock
   private Content content;
 
+  @Mock
+  private Content patched;
+
   @Mock
   private StorageTx tx;
 
@@ -80,6 +117,9 @@ public class ComposerHostedFacetImplTest
   @Mock
   private Query query;
 
+  @Mock
+  private OutputStream outputStream;
+
   private ComposerHostedFacetImpl underTest;
 
   @Before
@@ -104,6 +144,29 @@ public class ComposerHostedFacetImplTest
     verify(composerContentFacet).put(ZIPBALL_PATH, payload, SRC_TYPE, SRC_URL, SRC_REF);
   }
 
+  @Test
+  public void testUploadTempBlob() throws Exception {
+    underTest.upload(VENDOR, PROJECT, VERSION, SRC_TYPE, SRC_URL, SRC_REF, tempBlob, payload);
+    verify(composerContentFacet).put(ZIPBALL_PATH, tempBlob, payload, SRC_TYPE, SRC_URL, SRC_REF);
+  }
+
+  @Test
+  public void testUploadBatch() throws Exception {
+    underTest.upload(asList(
+        new ComposerBulkUploadEntry(VENDOR, PROJECT, VERSION, SRC_TYPE, SRC_URL, SRC_REF, tempBlob, payload),
+        new ComposerBulkUploadEntry(VENDOR, PROJECT, "other", null, null, null, tempBlob, payload)));
+
+    verify(composerContentFacet).put(ZIPBALL_PATH, tempBlob, payload, SRC_TYPE, SRC_URL, SRC_REF);
+    verify(composerContentFacet).put("vendor/project/other/vendor-project-other.zip", tempBlob, payload, null, null,
+        null);
+  }
+
+  @Test
+  public void testCreateUploadBlob() throws Exception {
+    when(composerContentFacet.createUploadBlob(payload)).thenReturn(tempBlob);
+    assertThat(underTest.createUploadBlob(payload), is(tempBlob));
+  }
+
   @Test
   public void testGetZipball() throws Exception {
     when(composerContentFacet.get(ZIPBALL_PATH)).thenReturn(content);
@@ -113,8 +176,72 @@ public class ComposerHostedFacetImplTest
   @Test
   public void testGetPackagesJson() throws Exception {
     when(tx.browseComponents(bucket)).thenReturn(components);
-    when(composerJsonProcessor.generatePackagesFromComponents(repository, components)).thenReturn(content);
-    assertThat(underTest.getPackagesJson(), is(content));
+    when(composerContentFacet.put(eq(PACKAGES_PATH), any(ComposerJsonWriter.class), eq(PACKAGES))).thenReturn(content);
+    mockRawContent();
+    when(composerContentFacet.getRewritten(REWRITTEN_PACKAGES_PATH, REWRITE_KEY)).thenReturn(patched);
+    assertThat(underTest.getPackagesJson(), is(patched));
+    verify(composerContentFacet).put(eq(PACKAGES_PATH), any(ComposerJsonWriter.class), eq(PACKAGES));
+  }
+
+  @Test
+  public void testGetPackagesJsonStored() throws Exception {
+    when(composerContentFacet.get(PACKAGES_PATH)).thenReturn(content);
+    mockRawContent();
+    when(composerContentFacet.getRewritten(REWRITTEN_PACKAGES_PATH, REWRITE_KEY)).thenReturn(patched);
+    assertThat(underTest.getPackagesJson(), is(patched));
+    verify(composerContentFacet, never())
+        .putRewritten(any(String.class), any(ComposerJsonWriter.class), any(AssetKind.class), any(String.class));
+    verify(tx, never()).browseComponents(bucket);
+  }
+
+  @Test
+  public void testGetPackagesJsonRewritesMissingVariant() throws Exception {
+    when(composerContentFacet.get(PACKAGES_PATH)).thenReturn(content);
+    mockRawContent();
+    InputStream in = mock(InputStream.class);
+    when(content.openInputStream()).thenReturn(in);
+    when(composerContentFacet.putRewritten(eq(REWRITTEN_PACKAGES_PATH), any(ComposerJsonWriter.class), eq(PACKAGES),
+        eq(REWRITE_KEY))).thenReturn(patched);
+    ArgumentCaptor<ComposerJsonWriter> writer = ArgumentCaptor.forClass(ComposerJsonWriter.class);
+
+    assertThat(underTest.getPackagesJson(), is(patched));
+
+    verify(composerContentFacet).putRewritten(eq(REWRITTEN_PACKAGES_PATH), writer.capture(), eq(PACKAGES),
+        eq(REWRITE_KEY));
+    writer.getValue().writeTo(outputStream);
+    verify(composerJsonProcessor).rewritePackagesJson(repository, in, outputStream);
+  }
+
+  private void mockRawContent() {
+    AttributesMap attributes = new AttributesMap();
+    attributes.set(Content.CONTENT_HASH_CODES_MAP, singletonMap(HashAlgorithm.SHA1, SHA1));
+    when(content.getAttributes()).thenReturn(attributes);
+    when(repository.getUrl()).thenReturn(REPOSITORY_URL);
+  }
+
+  @Test
+  public void testRebuildPackagesJson() throws Exception {
+    when(tx.browseComponents(bucket)).thenReturn(components);
+    ArgumentCaptor<ComposerJsonWriter> writer = ArgumentCaptor.forClass(ComposerJsonWriter.class);
+    underTest.rebuildPackagesJson();
+    verify(composerContentFacet).put(eq(PACKAGES_PATH), writer.capture(), eq(PACKAGES));
+    writer.getValue().writeTo(outputStream);
+    verify(composerJsonProcessor).writePackagesFromComponents(repository, components, outputStream);
+  }
+
+  @Test
+  public void testUpdatePackagesJson() throws Exception {
+    when(composerContentFacet.get(PACKAGES_PATH)).thenReturn(content);
+    when(underTest.buildQuery(VENDOR, PROJECT)).thenReturn(query);
+    when(tx.countComponents(eq(query), eq(singletonList(repository)))).thenReturn(1L);
+    InputStream in = mock(InputStream.class);
+    when(content.openInputStream()).thenReturn(in);
+    ArgumentCaptor<ComposerJsonWriter> writer = ArgumentCaptor.forClass(ComposerJsonWriter.class);
+    underTest.updatePackagesJson(VENDOR, PROJECT);
+    verify(composerContentFacet).put(eq(PACKAGES_PATH), writer.capture(), eq(PACKAGES));
+    writer.getValue().writeTo(outputStream);
+    verify(composerJsonProcessor).patchPackagesJson(in, outputStream, VENDOR + "/" + PROJECT, true);
+    verify(tx, never()).browseComponents(bucket);
   }
 
   @Test
@@ -127,9 +254,41 @@ public class ComposerHostedFacetImplTest
   public void testBuildProviderJson() throws Exception {
     when(underTest.buildQuery(VENDOR, PROJECT)).thenReturn(query);
     when(tx.findComponents(eq(query), eq(singletonList(repository)))).thenReturn(components);
-    when(composerJsonProcessor.buildProviderJson(repository, tx, components)).thenReturn(content);
     underTest.rebuildProviderJson(VENDOR, PROJECT);
-    verify(composerContentFacet).put(PROVIDER_PATH, content, PROVIDER);
+    ArgumentCaptor<ComposerJsonWriter> writer = ArgumentCaptor.forClass(ComposerJsonWriter.class);
+    verify(composerContentFacet).put(eq(PROVIDER_PATH), writer.capture(), eq(PROVIDER));
+    writer.getValue().writeTo(outputStream);
+    verify(composerJsonProcessor).writeProviderJson(repository, tx, components, outputStream);
+  }
+
+  @Test
+  public void testFindStaleMetadata() throws Exception {
+    DateTime before = new DateTime(1000L);
+    DateTime after = new DateTime(2000L);
+    when(tx.browseAssets(bucket)).thenReturn(asList(
+        mockAsset(ZIPBALL_PATH, ZIPBALL, "vendor", "current", before),
+        mockAsset("p/vendor/current.json", PROVIDER, null, null, after),
+        mockAsset(ZIPBALL_PATH, ZIPBALL, "vendor", "outdated", after),
+        mockAsset("p/vendor/outdated.json", PROVIDER, null, null, before),
+        mockAsset(ZIPBALL_PATH, ZIPBALL, "vendor", "missing", after),
+        mockAsset("p/vendor/deleted.json", PROVIDER, null, null, before),
+        mockAsset(PACKAGES_PATH, PACKAGES, null, null, before)));
+
+    assertThat(underTest.findStaleMetadata(), contains("vendor/deleted", "vendor/missing", "vendor/outdated"));
+  }
+
+  private Asset mockAsset(final String name, final AssetKind assetKind, final String vendor, final String project,
+                          final DateTime blobUpdated)
+  {
+    Map<String, Object> attributes = new HashMap<>();
+    attributes.put(P_ASSET_KIND, assetKind.name());
+    attributes.put(P_VENDOR, vendor);
+    attributes.put(P_PROJECT, project);
+    Asset asset = mock(Asset.class);
+    when(asset.name()).thenReturn(name);
+    when(asset.formatAttributes()).thenReturn(new NestedAttributesMap("composer", attributes));
+    when(asset.blobUpdated()).thenReturn(blobUpdated);
+    return asset;
   }
 
   @Test
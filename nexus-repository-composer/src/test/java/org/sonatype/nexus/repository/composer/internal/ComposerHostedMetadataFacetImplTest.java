@@ -12,18 +12,30 @@
  */
 package org.sonatype.nexus.repository.composer.internal;
 
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
 import com.google.common.base.Supplier;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.sonatype.goodies.testsupport.TestSupport;
+import org.sonatype.nexus.common.app.BaseUrlHolder;
+import org.sonatype.nexus.common.app.BaseUrlManager;
 import org.sonatype.nexus.common.collect.NestedAttributesMap;
 import org.sonatype.nexus.common.event.EventManager;
 import org.sonatype.nexus.repository.Repository;
+import org.sonatype.nexus.repository.config.Configuration;
 import org.sonatype.nexus.repository.storage.*;
 
+import static java.util.Collections.singleton;
+import static java.util.Collections.singletonMap;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static org.junit.Assert.assertThat;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.*;
@@ -48,6 +60,9 @@ public class ComposerHostedMetadataFacetImplTest
   @Mock
   private EventManager eventManager;
 
+  @Mock
+  private BaseUrlManager baseUrlManager;
+
   @Mock
   private ComposerHostedFacet hostedFacet;
 
@@ -111,7 +126,7 @@ public class ComposerHostedMetadataFacetImplTest
     when(storageFacet.txSupplier()).thenReturn(txSupplier);
     when(txSupplier.get()).thenReturn(storageTx);
 
-    underTest = new ComposerHostedMetadataFacetImpl(eventManager);
+    underTest = new ComposerHostedMetadataFacetImpl(eventManager, baseUrlManager);
     underTest.attach(repository);
   }
 
@@ -255,8 +270,252 @@ public class ComposerHostedMetadataFacetImplTest
 
   @Test
   public void testComposerHostedMetadataInvalidationEvent() throws Exception {
-    underTest.on(composerHostedMetadataInvalidationEvent);
+    underTest.doStart();
+    try {
+      underTest.on(composerHostedMetadataInvalidationEvent);
+
+      verify(hostedFacet, timeout(5000)).rebuildProviderJson(VENDOR, PROJECT);
+    }
+    finally {
+      underTest.doStop();
+    }
+  }
+
+  @Test
+  public void testComposerHostedMetadataInvalidationEventForVersion() throws Exception {
+    when(composerHostedMetadataInvalidationEvent.getVersion()).thenReturn("1.0.0");
+    when(composerHostedMetadataInvalidationEvent.isDeleted()).thenReturn(true);
+
+    underTest.doStart();
+    try {
+      underTest.on(composerHostedMetadataInvalidationEvent);
+
+      verify(hostedFacet, timeout(5000)).updatePackagesJson(VENDOR, PROJECT);
+      verify(hostedFacet).rebuildProviderJson(VENDOR, PROJECT);
+      verify(hostedFacet).patchPackageJson(VENDOR, PROJECT, "1.0.0", true);
+      verify(hostedFacet, never()).rebuildPackageJson(any(String.class), any(String.class));
+    }
+    finally {
+      underTest.doStop();
+    }
+  }
+
+  @Test
+  public void testAssetDeletedEventWithVersion() {
+    when(asset.name()).thenReturn("vendor/project/1.0.0/project-1.0.0.zip");
+
+    underTest.on(assetDeletedEvent);
+
+    ArgumentCaptor<ComposerHostedMetadataInvalidationEvent> captor = ArgumentCaptor
+        .forClass(ComposerHostedMetadataInvalidationEvent.class);
+
+    verify(eventManager).post(captor.capture());
+
+    ComposerHostedMetadataInvalidationEvent event = captor.getValue();
+
+    assertThat(event.getVersion(), is("1.0.0"));
+    assertThat(event.isDeleted(), is(true));
+  }
+
+  @Test
+  public void testComposerHostedMetadataInvalidationEventsAreCoalesced() throws Exception {
+    ComposerHostedMetadataInvalidationEvent first =
+        new ComposerHostedMetadataInvalidationEvent(REPOSITORY_NAME, VENDOR, PROJECT, "1.0.0", false);
+    ComposerHostedMetadataInvalidationEvent second =
+        new ComposerHostedMetadataInvalidationEvent(REPOSITORY_NAME, VENDOR, PROJECT, "2.0.0", false);
+
+    underTest.doStart();
+    try {
+      underTest.on(first);
+      underTest.on(second);
+
+      assertThat(underTest.getPendingRebuildCount(), is(1));
+      assertThat(underTest.getCoalescedInvalidationCount(), is(1L));
+      verify(hostedFacet, timeout(5000)).rebuildPackageJson(VENDOR, PROJECT);
+      verify(hostedFacet).rebuildProviderJson(VENDOR, PROJECT);
+      verify(hostedFacet, never()).patchPackageJson(any(String.class), any(String.class), any(String.class),
+          any(Boolean.class));
+    }
+    finally {
+      underTest.doStop();
+    }
+  }
 
+  @Test
+  public void testRebuildsAreHeldWhilePackageIsHeld() throws Exception {
+    ComposerHostedMetadataInvalidationEvent first =
+        new ComposerHostedMetadataInvalidationEvent(REPOSITORY_NAME, VENDOR, PROJECT, "1.0.0", false);
+    ComposerHostedMetadataInvalidationEvent second =
+        new ComposerHostedMetadataInvalidationEvent(REPOSITORY_NAME, VENDOR, PROJECT, "2.0.0", false);
+
+    underTest.doStart();
+    try {
+      underTest.holdRebuild(VENDOR, PROJECT);
+      underTest.holdRebuild(VENDOR, PROJECT);
+      underTest.on(first);
+      underTest.on(second);
+
+      assertThat(underTest.getHeldRebuildCount(), is(1));
+      assertThat(underTest.getPendingRebuildCount(), is(1));
+
+      underTest.releaseRebuild(VENDOR, PROJECT);
+
+      assertThat(underTest.getHeldRebuildCount(), is(1));
+      verify(hostedFacet, never()).rebuildPackageJson(VENDOR, PROJECT);
+
+      underTest.releaseRebuild(VENDOR, PROJECT);
+
+      assertThat(underTest.getHeldRebuildCount(), is(0));
+      verify(hostedFacet, timeout(5000)).rebuildPackageJson(VENDOR, PROJECT);
+      verify(hostedFacet).rebuildProviderJson(VENDOR, PROJECT);
+      verify(hostedFacet).updatePackagesJson(VENDOR, PROJECT);
+    }
+    finally {
+      underTest.doStop();
+    }
+  }
+
+  @Test
+  public void testHoldOnOnePackageDoesNotHoldOthers() throws Exception {
+    underTest.doStart();
+    try {
+      underTest.holdRebuild("othervendor", "otherproject");
+      underTest.on(new ComposerHostedMetadataInvalidationEvent(REPOSITORY_NAME, VENDOR, PROJECT, "1.0.0", false));
+
+      assertThat(underTest.getHeldRebuildCount(), is(0));
+      verify(hostedFacet, timeout(5000)).rebuildPackageJson(VENDOR, PROJECT);
+    }
+    finally {
+      underTest.releaseRebuild("othervendor", "otherproject");
+      underTest.doStop();
+    }
+  }
+
+  @Test
+  public void testPendingRebuildsAreFlushedOnStop() throws Exception {
+    configureRebuildDelay(60000L);
+    underTest.doStart();
+    underTest.on(new ComposerHostedMetadataInvalidationEvent(REPOSITORY_NAME, VENDOR, PROJECT, "1.0.0", false));
+
+    assertThat(underTest.getPendingRebuildCount(), is(1));
+    verify(hostedFacet, never()).rebuildProviderJson(VENDOR, PROJECT);
+
+    underTest.doStop();
+
+    assertThat(underTest.getPendingRebuildCount(), is(0));
     verify(hostedFacet).rebuildProviderJson(VENDOR, PROJECT);
+    verify(hostedFacet).patchPackageJson(VENDOR, PROJECT, "1.0.0", false);
+  }
+
+  @Test
+  public void testStaleMetadataIsRebuiltOnStart() throws Exception {
+    AtomicReference<String> baseUrl = new AtomicReference<>();
+    when(baseUrlManager.getUrl()).thenReturn("http://localhost:8081");
+    when(hostedFacet.findStaleMetadata()).thenReturn(singleton(VENDOR + "/" + PROJECT));
+    doAnswer(invocation -> {
+      baseUrl.set(BaseUrlHolder.get());
+      return null;
+    }).when(hostedFacet).rebuildProviderJson(VENDOR, PROJECT);
+
+    underTest.doStart();
+    try {
+      verify(hostedFacet, timeout(5000)).updatePackagesJson(VENDOR, PROJECT);
+      verify(hostedFacet).rebuildPackageJson(VENDOR, PROJECT);
+      assertThat(baseUrl.get(), is("http://localhost:8081"));
+    }
+    finally {
+      underTest.doStop();
+    }
+  }
+
+  @Test
+  public void testRebuildsRunOnWorkersWithoutDelay() throws Exception {
+    AtomicReference<Thread> thread = new AtomicReference<>();
+    doAnswer(invocation -> {
+      thread.set(Thread.currentThread());
+      return null;
+    }).when(hostedFacet).rebuildProviderJson(VENDOR, PROJECT);
+
+    configureRebuildDelay(0L);
+    underTest.doStart();
+    try {
+      underTest.on(new ComposerHostedMetadataInvalidationEvent(REPOSITORY_NAME, VENDOR, PROJECT, "1.0.0", false));
+
+      verify(hostedFacet, timeout(5000)).updatePackagesJson(VENDOR, PROJECT);
+      verify(hostedFacet).patchPackageJson(VENDOR, PROJECT, "1.0.0", false);
+      assertThat(thread.get(), not(Thread.currentThread()));
+      assertThat(underTest.getPendingRebuildCount(), is(0));
+      assertThat(underTest.getRebuildQueueDepth(), is(0));
+      assertThat(underTest.getRejectedRebuildCount(), is(0L));
+    }
+    finally {
+      underTest.doStop();
+    }
+  }
+
+  @Test
+  public void testWorkersUseTheBaseUrlOfTheInvalidation() throws Exception {
+    AtomicReference<String> baseUrl = new AtomicReference<>();
+    AtomicReference<Thread> thread = new AtomicReference<>();
+    doAnswer(invocation -> {
+      baseUrl.set(BaseUrlHolder.get());
+      thread.set(Thread.currentThread());
+      return null;
+    }).when(hostedFacet).rebuildProviderJson(VENDOR, PROJECT);
+
+    configureRebuildDelay(10L);
+    underTest.doStart();
+    try {
+      BaseUrlHolder.set("http://nexus.example.com");
+      try {
+        underTest.on(new ComposerHostedMetadataInvalidationEvent(REPOSITORY_NAME, VENDOR, PROJECT, "1.0.0", false));
+      }
+      finally {
+        BaseUrlHolder.unset();
+      }
+
+      verify(hostedFacet, timeout(5000)).updatePackagesJson(VENDOR, PROJECT);
+      assertThat(baseUrl.get(), is("http://nexus.example.com"));
+      assertThat(thread.get(), not(Thread.currentThread()));
+    }
+    finally {
+      underTest.doStop();
+    }
+  }
+
+  @Test
+  public void testPackagesJsonUpdatesAreSerialized() throws Exception {
+    CountDownLatch entered = new CountDownLatch(2);
+    AtomicInteger concurrent = new AtomicInteger();
+    AtomicInteger maximum = new AtomicInteger();
+    doAnswer(invocation -> {
+      maximum.accumulateAndGet(concurrent.incrementAndGet(), Math::max);
+      entered.countDown();
+      // gives the other worker the chance to enter as well if the updates were not serialized
+      entered.await(500, MILLISECONDS);
+      concurrent.decrementAndGet();
+      return null;
+    }).when(hostedFacet).updatePackagesJson(any(String.class), any(String.class));
+
+    configureRebuildDelay(1L);
+    underTest.doStart();
+    try {
+      underTest.on(new ComposerHostedMetadataInvalidationEvent(REPOSITORY_NAME, VENDOR, "first", null, false));
+      underTest.on(new ComposerHostedMetadataInvalidationEvent(REPOSITORY_NAME, VENDOR, "second", null, false));
+
+      verify(hostedFacet, timeout(5000)).updatePackagesJson(VENDOR, "first");
+      verify(hostedFacet, timeout(5000)).updatePackagesJson(VENDOR, "second");
+      assertThat(maximum.get(), is(1));
+    }
+    finally {
+      underTest.doStop();
+    }
+  }
+
+  private void configureRebuildDelay(final long delay) throws Exception {
+    Configuration configuration = mock(Configuration.class);
+    when(configuration.attributes("composer")).thenReturn(
+        new NestedAttributesMap("composer", new HashMap<>(singletonMap("metadataRebuildDelay", delay))));
+    underTest.doConfigure(configuration);
   }
 }
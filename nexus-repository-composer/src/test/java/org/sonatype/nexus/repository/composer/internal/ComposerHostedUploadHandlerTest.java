@@ -17,21 +17,21 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
-import org.mockito.ArgumentCaptor;
-import org.mockito.Captor;
 import org.sonatype.goodies.testsupport.TestSupport;
 import org.sonatype.nexus.common.collect.AttributesMap;
+import org.sonatype.nexus.repository.InvalidContentException;
 import org.sonatype.nexus.repository.Repository;
 import org.sonatype.nexus.repository.view.*;
 import org.sonatype.nexus.repository.view.matchers.token.TokenMatcher;
 
 import org.junit.Test;
 import org.mockito.Mock;
-import org.sonatype.nexus.repository.view.payloads.BytesPayload;
+import org.sonatype.nexus.repository.view.payloads.TempBlob;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.hamcrest.Matchers.*;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
 import static org.mockito.Mockito.*;
 import static org.sonatype.nexus.repository.composer.internal.ComposerRecipeSupport.*;
 
@@ -64,8 +64,8 @@ public class ComposerHostedUploadHandlerTest
   @Mock
   private AttributesMap attributes;
 
-  @Captor
-  private ArgumentCaptor<Payload> bytesPayload;
+  @Mock
+  private TempBlob tempBlob;
 
   @Test
   public void testHandleClassic() throws Exception {
@@ -90,7 +90,6 @@ public class ComposerHostedUploadHandlerTest
 
   @Test
   public void testHandleMultipartWithSource() throws Exception {
-    String byteContents = "This is a test content";
     when(repository.facet(ComposerHostedFacet.class)).thenReturn(composerHostedFacet);
     List<PartPayload> parts = new ArrayList<>();
     PartPayload sourceTypeField = mock(PartPayload.class);
@@ -104,8 +103,8 @@ public class ComposerHostedUploadHandlerTest
     when(sourceRefField.openInputStream()).thenReturn(new ByteArrayInputStream("srcRef".getBytes(UTF_8)));
     PartPayload packageField = mock(PartPayload.class);
     when(packageField.getFieldName()).thenReturn(PACKAGE_FIELD_NAME);
-    when(packageField.openInputStream()).thenReturn(new ByteArrayInputStream(byteContents.getBytes(UTF_8)));
     when(packageField.getContentType()).thenReturn("application/zip");
+    when(composerHostedFacet.createUploadBlob(packageField)).thenReturn(tempBlob);
     parts.add(packageField);
     parts.add(sourceUrlField);
     parts.add(sourceTypeField);
@@ -132,11 +131,44 @@ public class ComposerHostedUploadHandlerTest
         eq("srcType"),
         eq("srcUrl"),
         eq("srcRef"),
-        bytesPayload.capture()
+        eq(tempBlob),
+        eq(packageField)
     );
-    assertThat(bytesPayload.getValue(), notNullValue());
-    assertThat(bytesPayload.getValue(), instanceOf(BytesPayload.class));
-    assertThat(bytesPayload.getValue().getContentType(), is("application/zip"));
-    assertThat(bytesPayload.getValue().getSize(), is((long)byteContents.length()));
+    verify(packageField).close();
+    verify(tempBlob).close();
+  }
+
+  @Test
+  public void testHandleMultipartRejectsSecondPackagePart() throws Exception {
+    when(repository.facet(ComposerHostedFacet.class)).thenReturn(composerHostedFacet);
+    List<PartPayload> parts = new ArrayList<>();
+    PartPayload packageField = mock(PartPayload.class);
+    when(packageField.getFieldName()).thenReturn(PACKAGE_FIELD_NAME);
+    when(composerHostedFacet.createUploadBlob(packageField)).thenReturn(tempBlob);
+    PartPayload secondPackageField = mock(PartPayload.class);
+    when(secondPackageField.getFieldName()).thenReturn(PACKAGE_FIELD_NAME);
+    parts.add(packageField);
+    parts.add(secondPackageField);
+    when(request.getMultiparts()).thenReturn(parts);
+    when(request.isMultipart()).thenReturn(true);
+    when(context.getRepository()).thenReturn(repository);
+    when(context.getAttributes()).thenReturn(attributes);
+    when(context.getRequest()).thenReturn(request);
+
+    when(attributes.require(TokenMatcher.State.class)).thenReturn(state);
+    when(state.getTokens()).thenReturn(tokens);
+
+    try {
+      underTest.handle(context);
+      fail("Expected InvalidContentException");
+    }
+    catch (InvalidContentException e) {
+      // expected
+    }
+
+    verify(composerHostedFacet).createUploadBlob(packageField);
+    verify(secondPackageField).close();
+    verify(tempBlob).close();
+    verifyNoMoreInteractions(composerHostedFacet);
   }
 }
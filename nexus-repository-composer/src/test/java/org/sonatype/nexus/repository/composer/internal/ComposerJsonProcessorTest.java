@@ -13,14 +13,18 @@
 package org.sonatype.nexus.repository.composer.internal;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 
 import org.sonatype.goodies.testsupport.TestSupport;
 import org.sonatype.nexus.blobstore.api.Blob;
 import org.sonatype.nexus.blobstore.api.BlobRef;
+import org.sonatype.nexus.common.collect.NestedAttributesMap;
 import org.sonatype.nexus.common.hash.HashAlgorithm;
 import org.sonatype.nexus.repository.Repository;
 import org.sonatype.nexus.repository.storage.Asset;
@@ -39,12 +43,19 @@ import org.mockito.Mock;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
 import static java.util.Collections.singletonMap;
+import static org.hamcrest.Matchers.containsString;
 import static org.hamcrest.Matchers.is;
 import static org.junit.Assert.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.skyscreamer.jsonassert.JSONAssert.assertEquals;
 import static org.sonatype.nexus.common.hash.HashAlgorithm.SHA1;
+import static org.sonatype.nexus.repository.composer.internal.ComposerAttributes.P_COMPOSER_JSON;
+import static org.sonatype.nexus.repository.composer.internal.ComposerAttributes.P_COMPOSER_METADATA;
 
 public class ComposerJsonProcessorTest
     extends TestSupport
@@ -148,9 +159,10 @@ public class ComposerJsonProcessorTest
     when(component3.version()).thenReturn("version2");
 
     ComposerJsonProcessor underTest = new ComposerJsonProcessor(composerJsonExtractor, composerJsonMinifier);
-    Content output = underTest.generatePackagesFromComponents(repository, asList(component1, component2, component3));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    underTest.writePackagesFromComponents(repository, asList(component1, component2, component3), out);
 
-    assertEquals(packagesJson, readStreamToString(output.openInputStream()), true);
+    assertEquals(packagesJson, new String(out.toByteArray(), UTF_8), true);
   }
 
   @Test
@@ -167,6 +179,111 @@ public class ComposerJsonProcessorTest
     assertEquals(outputJson, readStreamToString(output.openInputStream()), true);
   }
 
+  @Test
+  public void rewritePackageJson() throws Exception {
+    String inputJson = readStreamToString(getClass().getResourceAsStream("rewritePackageJson.input.json"));
+    String outputJson = readStreamToString(getClass().getResourceAsStream("rewritePackageJson.output.json"));
+
+    when(repository.getUrl()).thenReturn("http://nexus.repo/base/repo");
+    when(payload1.openInputStream()).thenAnswer(invocation -> new ByteArrayInputStream(inputJson.getBytes(UTF_8)));
+
+    ComposerJsonProcessor underTest = new ComposerJsonProcessor(composerJsonExtractor, new ComposerJsonMinifier());
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    underTest.rewritePackageJson(repository, payload1, out);
+
+    assertEquals(outputJson, new String(out.toByteArray(), UTF_8), true);
+  }
+
+  @Test
+  public void rewritePackageJsonDoesNotInheritDistWhenNotMinified() throws Exception {
+    String inputJson = "{\"packages\":{\"vendor1/project1\":[" +
+        "{\"version\":\"1.0.0\",\"dist\":{\"type\":\"zip\",\"url\":\"https://example.com/a.zip\"," +
+        "\"reference\":\"abc\",\"shasum\":\"\"}}," +
+        "{\"version\":\"0.9.0\"}]}}";
+    String outputJson = "{\"packages\":{\"vendor1/project1\":[" +
+        "{\"version\":\"1.0.0\",\"dist\":{\"type\":\"zip\"," +
+        "\"url\":\"http://nexus.repo/base/repo/vendor1/project1/1.0.0/vendor1-project1-1.0.0.zip\"," +
+        "\"reference\":\"abc\",\"shasum\":\"\"}}," +
+        "{\"version\":\"0.9.0\"}]}}";
+
+    when(repository.getUrl()).thenReturn("http://nexus.repo/base/repo");
+    when(payload1.openInputStream()).thenAnswer(invocation -> new ByteArrayInputStream(inputJson.getBytes(UTF_8)));
+
+    ComposerJsonProcessor underTest = new ComposerJsonProcessor(composerJsonExtractor, new ComposerJsonMinifier());
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    underTest.rewritePackageJson(repository, payload1, out);
+
+    assertEquals(outputJson, new String(out.toByteArray(), UTF_8), true);
+  }
+
+  @Test
+  public void rewritePackagesJson() throws Exception {
+    String inputJson = readStreamToString(getClass().getResourceAsStream("rewritePackagesJson.input.json"));
+    String outputJson = readStreamToString(getClass().getResourceAsStream("rewritePackagesJson.output.json"));
+
+    when(repository.getUrl()).thenReturn("http://nexus.repo/base/repo");
+
+    ComposerJsonProcessor underTest = new ComposerJsonProcessor(composerJsonExtractor, composerJsonMinifier);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    underTest.rewritePackagesJson(repository, new ByteArrayInputStream(inputJson.getBytes(UTF_8)), out);
+
+    assertEquals(outputJson, new String(out.toByteArray(), UTF_8), true);
+  }
+
+  @Test
+  public void rewriteStoredPackagesJson() throws Exception {
+    String inputJson = "{\"providers-url\":\"http://old.host/repository/repo/p/%package%.json\"," +
+        "\"metadata-url\":\"http://old.host/repository/repo/p2/%package%.json\"," +
+        "\"providers\":{\"vendor1/project1\":{\"sha256\":null}}}";
+    String outputJson = "{\"providers-url\":\"http://nexus.repo/base/repo/p/%package%.json\"," +
+        "\"metadata-url\":\"http://nexus.repo/base/repo/p2/%package%.json\"," +
+        "\"providers\":{\"vendor1/project1\":{\"sha256\":null}}}";
+    when(repository.getUrl()).thenReturn("http://nexus.repo/base/repo");
+
+    ComposerJsonProcessor underTest = new ComposerJsonProcessor(composerJsonExtractor, composerJsonMinifier);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    underTest.rewritePackagesJson(repository, new ByteArrayInputStream(inputJson.getBytes(UTF_8)), out);
+
+    assertEquals(outputJson, new String(out.toByteArray(), UTF_8), true);
+  }
+
+  @Test
+  public void rewriteInlinePackagesInPackagesJson() throws Exception {
+    String inputJson = "{\"packages\":{\"vendor1/project1\":{\"1.0.0\":{\"name\":\"vendor1/project1\"," +
+        "\"version\":\"1.0.0\",\"source\":{\"type\":\"git\",\"url\":\"https://git.example.com/project1\"}," +
+        "\"dist\":{\"type\":\"zip\",\"url\":\"https://upstream.example.com/project1-1.0.0.zip\"," +
+        "\"reference\":\"abc\",\"shasum\":\"def\"}}}}}";
+    String outputJson = "{\"packages\":{\"vendor1/project1\":{\"1.0.0\":{\"name\":\"vendor1/project1\"," +
+        "\"version\":\"1.0.0\",\"dist\":{\"type\":\"zip\"," +
+        "\"url\":\"http://nexus.repo/base/repo/vendor1/project1/1.0.0/vendor1-project1-1.0.0.zip\"," +
+        "\"reference\":\"abc\",\"shasum\":\"def\"}}}}}";
+    when(repository.getUrl()).thenReturn("http://nexus.repo/base/repo");
+
+    ComposerJsonProcessor underTest = new ComposerJsonProcessor(composerJsonExtractor, composerJsonMinifier);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    underTest.rewritePackagesJson(repository, new ByteArrayInputStream(inputJson.getBytes(UTF_8)), out);
+
+    assertEquals(outputJson, new String(out.toByteArray(), UTF_8), true);
+  }
+
+  @Test
+  public void mergePackageJson() throws Exception {
+    DateTime time = new DateTime(1210869000000L, DateTimeZone.forOffsetHours(-4));
+
+    String inputJson1 = readStreamToString(getClass().getResourceAsStream("mergePackageJson.input1.json"));
+    String inputJson2 = readStreamToString(getClass().getResourceAsStream("mergePackageJson.input2.json"));
+    String outputJson = readStreamToString(getClass().getResourceAsStream("mergePackageJson.output.json"));
+
+    when(repository.getUrl()).thenReturn("http://nexus.repo/base/repo");
+    when(payload1.openInputStream()).thenAnswer(invocation -> new ByteArrayInputStream(inputJson1.getBytes(UTF_8)));
+    when(payload2.openInputStream()).thenAnswer(invocation -> new ByteArrayInputStream(inputJson2.getBytes(UTF_8)));
+
+    ComposerJsonProcessor underTest = new ComposerJsonProcessor(composerJsonExtractor, new ComposerJsonMinifier());
+    Payload output = underTest.mergePackageJson(repository, Arrays.asList(payload1, payload2), time);
+
+    assertEquals(outputJson, readStreamToString(output.openInputStream()), true);
+  }
+
   @Test
   public void mergeProviderJson() throws Exception {
     DateTime time = new DateTime(1210869000000L, DateTimeZone.forOffsetHours(-4));
@@ -176,8 +293,8 @@ public class ComposerJsonProcessorTest
     String outputJson = readStreamToString(getClass().getResourceAsStream("mergeProviderJson.output.json"));
 
     when(repository.getUrl()).thenReturn("http://nexus.repo/base/repo");
-    when(payload1.openInputStream()).thenReturn(new ByteArrayInputStream(inputJson1.getBytes(UTF_8)));
-    when(payload2.openInputStream()).thenReturn(new ByteArrayInputStream(inputJson2.getBytes(UTF_8)));
+    when(payload1.openInputStream()).thenAnswer(invocation -> new ByteArrayInputStream(inputJson1.getBytes(UTF_8)));
+    when(payload2.openInputStream()).thenAnswer(invocation -> new ByteArrayInputStream(inputJson2.getBytes(UTF_8)));
 
     ComposerJsonProcessor underTest = new ComposerJsonProcessor(composerJsonExtractor, composerJsonMinifier);
     Payload output = underTest.mergeProviderJson(repository, Arrays.asList(payload1, payload2), time);
@@ -322,6 +439,137 @@ public class ComposerJsonProcessorTest
     assertEquals(outputJson, readStreamToString(output.openInputStream()), true);
   }
 
+  @Test
+  public void buildPackageJsonFromStoredComposerJson() throws Exception {
+    when(repository.getUrl()).thenReturn("http://nexus.repo/base/repo");
+
+    when(component1.group()).thenReturn("vendor1");
+    when(component1.name()).thenReturn("project1");
+    when(component1.version()).thenReturn("1.0.0");
+    when(component1.requireLastUpdated()).thenReturn(new DateTime(392056200000L, DateTimeZone.forOffsetHours(-4)));
+    when(storageTx.firstAsset(component1)).thenReturn(asset1);
+    when(asset1.getChecksum(SHA1)).thenReturn(HashCode.fromLong(1L));
+    when(asset1.attributes()).thenReturn(new NestedAttributesMap("attributes", new HashMap<>(singletonMap(
+        P_COMPOSER_METADATA, new HashMap<>(singletonMap(P_COMPOSER_JSON,
+            "{\"require\":{\"dependency-1\":\"version-1\"}}"))))));
+
+    ComposerJsonProcessor underTest = new ComposerJsonProcessor(composerJsonExtractor, new ComposerJsonMinifier());
+    Content output = underTest.buildPackageJson(repository, storageTx, singletonList(component1));
+
+    assertThat(readStreamToString(output.openInputStream()), containsString("\"dependency-1\":\"version-1\""));
+    verify(storageTx, never()).requireBlob(any(BlobRef.class));
+    verify(composerJsonExtractor, never()).extractFromZip(any(Blob.class));
+  }
+
+  @Test
+  public void patchPackageJsonRemovesVersion() throws Exception {
+    String inputJson = "{\"minified\":\"composer/2.0\",\"packages\":{\"vendor1/project1\":[" +
+        "{\"name\":\"vendor1/project1\",\"version\":\"1.0.0\",\"require\":{\"dependency-1\":\"version-1\"}}," +
+        "{\"version\":\"2.0.0\"}]}}";
+    String outputJson = "{\"minified\":\"composer/2.0\",\"packages\":{\"vendor1/project1\":[" +
+        "{\"name\":\"vendor1/project1\",\"version\":\"2.0.0\",\"require\":{\"dependency-1\":\"version-1\"}}]}}";
+    when(payload1.openInputStream()).thenAnswer(invocation -> new ByteArrayInputStream(inputJson.getBytes(UTF_8)));
+
+    ComposerJsonProcessor underTest = new ComposerJsonProcessor(composerJsonExtractor, new ComposerJsonMinifier());
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    underTest.patchPackageJson(repository, storageTx, payload1, "vendor1/project1", "1.0.0", null, out);
+
+    assertEquals(outputJson, new String(out.toByteArray(), UTF_8), true);
+  }
+
+  @Test
+  public void patchPackageJsonCopiesVersionsAfterTheRemovedOne() throws Exception {
+    String inputJson = "{\"packages\":{\"vendor1/project1\":[" +
+        "{\"name\":\"vendor1/project1\",\"version\":\"3.0.0\"}," +
+        "{\"version\":\"2.0.0\",\"description\":\"Description 2\"}," +
+        "{\"version\":\"1.0.0\",\"description\":\"__unset\"}," +
+        "{\"version\":\"0.9.0\",\"description\":\"Description 0\"}]," +
+        "\"vendor2/project2\":[{\"name\":\"vendor2/project2\",\"version\":\"1.0.0\"}]}," +
+        "\"minified\":\"composer/2.0\"}";
+    String outputJson = "{\"packages\":{\"vendor1/project1\":[" +
+        "{\"name\":\"vendor1/project1\",\"version\":\"3.0.0\"}," +
+        "{\"version\":\"1.0.0\"}," +
+        "{\"version\":\"0.9.0\",\"description\":\"Description 0\"}]," +
+        "\"vendor2/project2\":[{\"name\":\"vendor2/project2\",\"version\":\"1.0.0\"}]}," +
+        "\"minified\":\"composer/2.0\"}";
+    when(payload1.openInputStream()).thenAnswer(invocation -> new ByteArrayInputStream(inputJson.getBytes(UTF_8)));
+
+    ComposerJsonProcessor underTest = new ComposerJsonProcessor(composerJsonExtractor, new ComposerJsonMinifier());
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    underTest.patchPackageJson(repository, storageTx, payload1, "vendor1/project1", "2.0.0", null, out);
+
+    assertEquals(outputJson, new String(out.toByteArray(), UTF_8), true);
+  }
+
+  @Test
+  public void patchPackageJsonDropsPackageWithoutVersions() throws Exception {
+    String inputJson = "{\"packages\":{\"vendor1/project1\":[{\"name\":\"vendor1/project1\",\"version\":\"1.0.0\"}]," +
+        "\"vendor2/project2\":[{\"name\":\"vendor2/project2\",\"version\":\"1.0.0\"}]}," +
+        "\"minified\":\"composer/2.0\"}";
+    String outputJson = "{\"packages\":{" +
+        "\"vendor2/project2\":[{\"name\":\"vendor2/project2\",\"version\":\"1.0.0\"}]}," +
+        "\"minified\":\"composer/2.0\"}";
+    when(payload1.openInputStream()).thenAnswer(invocation -> new ByteArrayInputStream(inputJson.getBytes(UTF_8)));
+
+    ComposerJsonProcessor underTest = new ComposerJsonProcessor(composerJsonExtractor, new ComposerJsonMinifier());
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    underTest.patchPackageJson(repository, storageTx, payload1, "vendor1/project1", "1.0.0", null, out);
+
+    assertEquals(outputJson, new String(out.toByteArray(), UTF_8), true);
+  }
+
+  @Test
+  public void patchPackageJsonReplacesVersion() throws Exception {
+    String inputJson = "{\"packages\":{\"vendor1/project1\":[" +
+        "{\"name\":\"vendor1/project1\",\"version\":\"2.0.0\",\"require\":{\"dependency-1\":\"version-1\"}}," +
+        "{\"version\":\"1.0.0\",\"description\":\"Description 1\"}]}," +
+        "\"minified\":\"composer/2.0\"}";
+    when(payload1.openInputStream()).thenAnswer(invocation -> new ByteArrayInputStream(inputJson.getBytes(UTF_8)));
+    when(repository.getUrl()).thenReturn("http://nexus.repo/base/repo");
+    when(component1.group()).thenReturn("vendor1");
+    when(component1.name()).thenReturn("project1");
+    when(component1.version()).thenReturn("2.0.0");
+    when(component1.requireLastUpdated()).thenReturn(new DateTime(392056200000L, DateTimeZone.forOffsetHours(-4)));
+    when(storageTx.firstAsset(component1)).thenReturn(asset1);
+    when(asset1.getChecksum(SHA1)).thenReturn(HashCode.fromLong(1L));
+    when(asset1.attributes()).thenReturn(new NestedAttributesMap("attributes", new HashMap<>(singletonMap(
+        P_COMPOSER_METADATA, new HashMap<>(singletonMap(P_COMPOSER_JSON,
+            "{\"require\":{\"dependency-2\":\"version-2\"}}"))))));
+
+    ComposerJsonProcessor underTest = new ComposerJsonProcessor(composerJsonExtractor, new ComposerJsonMinifier());
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    underTest.patchPackageJson(repository, storageTx, payload1, "vendor1/project1", "2.0.0", component1, out);
+
+    String output = new String(out.toByteArray(), UTF_8);
+    assertThat(output, containsString("{\"name\":\"vendor1/project1\",\"version\":\"2.0.0\",\"dist\":"));
+    assertThat(output, containsString("\"require\":{\"dependency-2\":\"version-2\"}}," +
+        "{\"version\":\"1.0.0\",\"require\":{\"dependency-1\":\"version-1\"},\"description\":\"Description 1\"," +
+        "\"dist\":\"__unset\",\"time\":\"__unset\",\"uid\":\"__unset\"}]"));
+  }
+
+  @Test
+  public void patchPackagesJson() throws Exception {
+    String inputJson = "{\"providers-url\":\"http://nexus.repo/base/repo/p/%package%.json\"," +
+        "\"metadata-url\":\"http://nexus.repo/base/repo/p2/%package%.json\"," +
+        "\"providers\":{\"vendor1/project1\":{\"sha256\":null}}}";
+    String outputJson = "{\"providers-url\":\"http://nexus.repo/base/repo/p/%package%.json\"," +
+        "\"metadata-url\":\"http://nexus.repo/base/repo/p2/%package%.json\"," +
+        "\"providers\":{\"vendor1/project1\":{\"sha256\":null},\"vendor2/project2\":{\"sha256\":null}}}";
+    ComposerJsonProcessor underTest = new ComposerJsonProcessor(composerJsonExtractor, composerJsonMinifier);
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    underTest.patchPackagesJson(new ByteArrayInputStream(inputJson.getBytes(UTF_8)), out, "vendor1/project1", true);
+    assertEquals(inputJson, new String(out.toByteArray(), UTF_8), true);
+
+    out = new ByteArrayOutputStream();
+    underTest.patchPackagesJson(new ByteArrayInputStream(inputJson.getBytes(UTF_8)), out, "vendor2/project2", true);
+    assertEquals(outputJson, new String(out.toByteArray(), UTF_8), true);
+
+    out = new ByteArrayOutputStream();
+    underTest.patchPackagesJson(new ByteArrayInputStream(outputJson.getBytes(UTF_8)), out, "vendor2/project2", false);
+    assertEquals(inputJson, new String(out.toByteArray(), UTF_8), true);
+  }
+
   @Test
   public void mergePackagesJson() throws Exception {
     String inputJson1 = readStreamToString(getClass().getResourceAsStream("mergePackagesJson.input1.json"));
@@ -329,8 +577,8 @@ public class ComposerJsonProcessorTest
     String outputJson = readStreamToString(getClass().getResourceAsStream("mergePackagesJson.output.json"));
 
     when(repository.getUrl()).thenReturn("http://nexus.repo/base/repo");
-    when(payload1.openInputStream()).thenReturn(new ByteArrayInputStream(inputJson1.getBytes(UTF_8)));
-    when(payload2.openInputStream()).thenReturn(new ByteArrayInputStream(inputJson2.getBytes(UTF_8)));
+    when(payload1.openInputStream()).thenAnswer(invocation -> new ByteArrayInputStream(inputJson1.getBytes(UTF_8)));
+    when(payload2.openInputStream()).thenAnswer(invocation -> new ByteArrayInputStream(inputJson2.getBytes(UTF_8)));
 
     ComposerJsonProcessor underTest = new ComposerJsonProcessor(composerJsonExtractor, composerJsonMinifier);
     Payload output = underTest.mergePackagesJson(repository, Arrays.asList(payload1, payload2));
@@ -338,6 +586,26 @@ public class ComposerJsonProcessorTest
     assertEquals(outputJson, readStreamToString(output.openInputStream()), true);
   }
 
+  @Test
+  public void readDistUrls() throws Exception {
+    String inputJson = "{\"packages\":{\"vendor1/project1\":[" +
+        "{\"version\":\"2.0.0\",\"dist\":{\"type\":\"zip\",\"url\":\"https://example.com/2.0.0.zip\"}}," +
+        "{\"version\":\"1.0.0\"}]," +
+        "\"vendor2/project2\":{\"1.0.0\":{\"dist\":{\"type\":\"zip\",\"url\":\"https://example.com/v2.zip\"}}}}";
+    when(composerJsonMinifier.getMinifiedFormat()).thenReturn("composer/2.0");
+
+    ComposerJsonProcessor underTest = new ComposerJsonProcessor(composerJsonExtractor, composerJsonMinifier);
+
+    Map<String, Map<String, String>> distUrls =
+        underTest.readDistUrls(new ByteArrayInputStream((inputJson + "}").getBytes(UTF_8)));
+    assertThat(distUrls.get("vendor1/project1"), is(singletonMap("2.0.0", "https://example.com/2.0.0.zip")));
+    assertThat(distUrls.get("vendor2/project2"), is(singletonMap("1.0.0", "https://example.com/v2.zip")));
+
+    distUrls = underTest.readDistUrls(
+        new ByteArrayInputStream((inputJson + ",\"minified\":\"composer/2.0\"}").getBytes(UTF_8)));
+    assertThat(distUrls.get("vendor1/project1").get("1.0.0"), is("https://example.com/2.0.0.zip"));
+  }
+
   @Test
   public void getDistUrl() throws Exception {
     String inputJson = readStreamToString(getClass().getResourceAsStream("getDistUrl.json"));
@@ -349,6 +617,37 @@ public class ComposerJsonProcessorTest
     assertThat(distUrl, is("https://git.example.com/zipball/418e708b379598333d0a48954c0fa210437795be"));
   }
 
+  @Test
+  public void getDistUrlFromPackage() throws Exception {
+    String inputJson = readStreamToString(getClass().getResourceAsStream("rewritePackageJson.input.json"));
+    when(payload1.openInputStream()).thenReturn(new ByteArrayInputStream(inputJson.getBytes(UTF_8)));
+
+    ComposerJsonProcessor underTest = new ComposerJsonProcessor(composerJsonExtractor, composerJsonMinifier);
+    String distUrl = underTest.getDistUrlFromPackage("vendor1", "project1", "1.0.0", payload1);
+
+    assertThat(distUrl, is("https://git.example.com/zipball/418e708b379598333d0a48954c0fa210437795be"));
+  }
+
+  @Test
+  public void getDistUrlFromMinifiedPackage() throws Exception {
+    String inputJson = readStreamToString(getClass().getResourceAsStream("rewritePackageJson.input.json"));
+    when(payload1.openInputStream()).thenReturn(new ByteArrayInputStream(inputJson.getBytes(UTF_8)));
+
+    ComposerJsonProcessor underTest = new ComposerJsonProcessor(composerJsonExtractor, composerJsonMinifier);
+    String distUrl = underTest.getDistUrlFromPackage("vendor1", "project1", "0.9.0", payload1);
+
+    assertThat(distUrl, is("https://git.example.com/zipball/418e708b379598333d0a48954c0fa210437795be"));
+  }
+
+  @Test(expected = IOException.class)
+  public void getDistUrlFromPackageForMissingVersion() throws Exception {
+    String inputJson = readStreamToString(getClass().getResourceAsStream("rewritePackageJson.input.json"));
+    when(payload1.openInputStream()).thenReturn(new ByteArrayInputStream(inputJson.getBytes(UTF_8)));
+
+    ComposerJsonProcessor underTest = new ComposerJsonProcessor(composerJsonExtractor, composerJsonMinifier);
+    underTest.getDistUrlFromPackage("vendor1", "project1", "3.0.0", payload1);
+  }
+
   private String readStreamToString(final InputStream in) throws IOException {
     try {
       return CharStreams.toString(new InputStreamReader(in, UTF_8));
@@ -12,25 +12,40 @@
  */
 package org.sonatype.nexus.repository.composer.internal;
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
 import org.sonatype.goodies.testsupport.TestSupport;
 import org.sonatype.nexus.common.collect.AttributesMap;
 import org.sonatype.nexus.repository.Repository;
+import org.sonatype.nexus.repository.view.Content;
 import org.sonatype.nexus.repository.view.Context;
 import org.sonatype.nexus.repository.view.Payload;
 import org.sonatype.nexus.repository.view.Request;
 import org.sonatype.nexus.repository.view.Response;
 import org.sonatype.nexus.repository.view.Status;
+import org.sonatype.nexus.repository.view.matchers.token.TokenMatcher;
 
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.HashCode;
+import com.google.common.io.CharStreams;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mock;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Collections.singletonMap;
 import static org.hamcrest.Matchers.is;
 import static org.hamcrest.Matchers.not;
 import static org.junit.Assert.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
+import static org.sonatype.nexus.common.hash.HashAlgorithm.SHA1;
 import static org.sonatype.nexus.repository.composer.internal.ComposerProviderHandler.DO_NOT_REWRITE;
 import static org.sonatype.nexus.repository.http.HttpStatus.INTERNAL_SERVER_ERROR;
 import static org.sonatype.nexus.repository.http.HttpStatus.OK;
@@ -65,11 +80,25 @@ public class ComposerProviderHandlerTest
   @Mock
   private Status status;
 
+  @Mock
+  private AttributesMap contextAttributes;
+
+  @Mock
+  private TokenMatcher.State state;
+
+  @Mock
+  private ComposerContentFacet composerContentFacet;
+
+  @Mock
+  private Content rewrittenContent;
+
   private ComposerProviderHandler underTest;
 
   @Before
   public void setUp() throws Exception {
     when(composerJsonProcessor.rewriteProviderJson(repository, payload)).thenReturn(rewrittenPayload);
+    when(rewrittenPayload.openInputStream())
+        .thenAnswer(invocation -> new ByteArrayInputStream("{\"rewritten\":true}".getBytes(UTF_8)));
 
     when(context.getRequest()).thenReturn(request);
     when(context.getRepository()).thenReturn(repository);
@@ -100,7 +129,9 @@ public class ComposerProviderHandlerTest
     Response output = underTest.handle(context);
 
     assertThat(output, is(not(response)));
-    assertThat(output.getPayload(), is(rewrittenPayload));
+    try (InputStream in = output.getPayload().openInputStream()) {
+      assertThat(CharStreams.toString(new InputStreamReader(in, UTF_8)), is("{\"rewritten\":true}"));
+    }
 
     verify(composerJsonProcessor).rewriteProviderJson(repository, payload);
   }
@@ -124,4 +155,29 @@ public class ComposerProviderHandlerTest
     assertThat(output, is(response));
     verifyNoMoreInteractions(composerJsonProcessor);
   }
+
+  @Test
+  public void handleWithRewriteEnabledStoredVariant() throws Exception {
+    Content content = new Content(payload);
+    content.getAttributes().set(Content.CONTENT_HASH_CODES_MAP, singletonMap(SHA1, HashCode.fromInt(1)));
+    when(response.getPayload()).thenReturn(content);
+
+    when(context.getAttributes()).thenReturn(contextAttributes);
+    when(contextAttributes.require(TokenMatcher.State.class)).thenReturn(state);
+    when(state.getTokens()).thenReturn(new ImmutableMap.Builder<String, String>()
+        .put("vendor", "vendor")
+        .put("project", "project")
+        .build());
+    when(repository.getUrl()).thenReturn("http://nexus.repo/base/repo");
+    when(repository.facet(ComposerContentFacet.class)).thenReturn(composerContentFacet);
+    when(composerContentFacet.getRewritten("p/vendor/project.json.rewritten",
+        "http://nexus.repo/base/repo@" + HashCode.fromInt(1))).thenReturn(rewrittenContent);
+
+    Response output = underTest.handle(context);
+
+    assertThat(output.getPayload(), is(rewrittenContent));
+    verify(composerContentFacet, never()).putRewritten(anyString(), any(ComposerJsonWriter.class), any(AssetKind.class),
+        anyString());
+    verifyNoMoreInteractions(composerJsonProcessor);
+  }
 }
@@ -12,25 +12,55 @@
  */
 package org.sonatype.nexus.repository.composer.internal;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
 import com.google.common.collect.ImmutableMap;
+import org.joda.time.DateTime;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.sonatype.goodies.testsupport.TestSupport;
+import org.sonatype.nexus.common.app.BaseUrlHolder;
 import org.sonatype.nexus.common.collect.AttributesMap;
+import org.sonatype.nexus.common.collect.NestedAttributesMap;
 import org.sonatype.nexus.repository.Repository;
 import org.sonatype.nexus.repository.cache.CacheInfo;
 import org.sonatype.nexus.repository.composer.internal.ComposerProxyFacetImpl.NonResolvableProviderJsonException;
+import org.sonatype.nexus.repository.storage.Asset;
+import org.sonatype.nexus.repository.storage.AssetCreatedEvent;
+import org.sonatype.nexus.repository.storage.StorageFacet;
+import org.sonatype.nexus.repository.storage.StorageTx;
+import org.sonatype.nexus.repository.view.payloads.StringPayload;
 import org.sonatype.nexus.repository.view.*;
 import org.sonatype.nexus.repository.view.matchers.token.TokenMatcher;
 
+import static java.util.Collections.emptyList;
+import static java.util.Collections.singletonList;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
 import static org.junit.Assert.assertThat;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.sonatype.nexus.repository.composer.internal.AssetKind.*;
+import static org.sonatype.nexus.repository.composer.internal.ComposerAttributes.P_COMPOSER_METADATA;
+import static org.sonatype.nexus.repository.composer.internal.ComposerAttributes.P_EXTRACTION_PENDING;
 
 public class ComposerProxyFacetImplTest
     extends TestSupport
@@ -64,6 +94,9 @@ public class ComposerProxyFacetImplTest
   @Mock
   private Content content;
 
+  @Mock
+  private AttributesMap contentAttributes;
+
   @Mock
   private TokenMatcher.State state;
 
@@ -79,6 +112,12 @@ public class ComposerProxyFacetImplTest
   @Mock
   private Payload payload;
 
+  @Mock
+  private StorageFacet storageFacet;
+
+  @Mock
+  private StorageTx storageTx;
+
   private ComposerProxyFacetImpl underTest;
 
   @Before
@@ -93,17 +132,31 @@ public class ComposerProxyFacetImplTest
     when(context.getRequest()).thenReturn(request);
     when(context.getRepository()).thenReturn(repository);
 
+    when(repository.facet(StorageFacet.class)).thenReturn(storageFacet);
+    when(storageFacet.txSupplier()).thenReturn(() -> storageTx);
+
     when(response.getPayload()).thenReturn(payload);
+    when(response.getStatus()).thenReturn(Status.success(200));
   }
 
   @Test
   public void getCachedContentPackages() throws Exception {
     when(contextAttributes.require(AssetKind.class)).thenReturn(PACKAGES);
-    when(composerContentFacet.get(PACKAGES_PATH)).thenReturn(content);
+    when(composerContentFacet.getRewritten(PACKAGES_PATH, "generated")).thenReturn(content);
 
     assertThat(underTest.getCachedContent(context), is(content));
   }
 
+  @Test
+  public void getCachedContentPackagesIgnoresOtherMode() throws Exception {
+    when(contextAttributes.require(AssetKind.class)).thenReturn(PACKAGES);
+    when(composerContentFacet.getRewritten(PACKAGES_PATH, "generated")).thenReturn(content);
+    underTest.composerConfig.passThroughPackages = true;
+
+    assertThat(underTest.getCachedContent(context), is(nullValue()));
+    verify(composerContentFacet).getRewritten(PACKAGES_PATH, "passThrough");
+  }
+
   @Test
   public void getCachedContentList() throws Exception {
     when(contextAttributes.require(AssetKind.class)).thenReturn(LIST);
@@ -196,15 +249,121 @@ public class ComposerProxyFacetImplTest
 
   @Test
   public void storePackages() throws Exception {
+    InputStream in = new ByteArrayInputStream(new byte[0]);
+    OutputStream out = new ByteArrayOutputStream();
+    ArgumentCaptor<ComposerJsonWriter> writer = ArgumentCaptor.forClass(ComposerJsonWriter.class);
+
     when(contextAttributes.require(AssetKind.class)).thenReturn(PACKAGES);
-    when(composerContentFacet.put(PACKAGES_PATH, content, PACKAGES)).thenReturn(content);
+    when(content.getAttributes()).thenReturn(contentAttributes);
+    when(composerContentFacet.putRewritten(eq(PACKAGES_PATH), writer.capture(), eq(PACKAGES), eq("generated")))
+        .thenReturn(content);
 
     when(viewFacet.dispatch(any(Request.class), eq(context))).thenReturn(response);
-    when(composerJsonProcessor.generatePackagesFromList(repository, payload)).thenReturn(content);
+    when(payload.openInputStream()).thenReturn(in);
 
     assertThat(underTest.store(context, content), is(content));
 
-    verify(composerContentFacet).put(PACKAGES_PATH, content, PACKAGES);
+    writer.getValue().writeTo(out);
+    verify(composerJsonProcessor).writePackagesFromList(repository, in, out);
+  }
+
+  @Test(expected = IOException.class)
+  public void storePackagesFailsWithoutList() throws Exception {
+    ArgumentCaptor<ComposerJsonWriter> writer = ArgumentCaptor.forClass(ComposerJsonWriter.class);
+
+    when(contextAttributes.require(AssetKind.class)).thenReturn(PACKAGES);
+    when(composerContentFacet.putRewritten(eq(PACKAGES_PATH), writer.capture(), eq(PACKAGES), eq("generated")))
+        .thenReturn(content);
+    when(viewFacet.dispatch(any(Request.class), eq(context))).thenReturn(response);
+    when(response.getStatus()).thenReturn(Status.failure(404));
+
+    underTest.store(context, content);
+
+    writer.getValue().writeTo(new ByteArrayOutputStream());
+  }
+
+  @Test
+  public void storePackagesRegeneratesFromChangedList() throws Exception {
+    // the upstream packages.json is unchanged (and would answer a conditional request with a 304) while list.json
+    // changed in between, so the stored document must not carry the upstream validators
+    InputStream oldList = new ByteArrayInputStream(new byte[0]);
+    InputStream newList = new ByteArrayInputStream(new byte[0]);
+    Content remote = new Content(new StringPayload("{}", ContentTypes.APPLICATION_JSON));
+    remote.getAttributes().set(Content.CONTENT_LAST_MODIFIED, new DateTime(0L));
+    remote.getAttributes().set(Content.CONTENT_ETAG, "etag");
+    ArgumentCaptor<ComposerJsonWriter> writer = ArgumentCaptor.forClass(ComposerJsonWriter.class);
+
+    when(contextAttributes.require(AssetKind.class)).thenReturn(PACKAGES);
+    when(viewFacet.dispatch(any(Request.class), eq(context))).thenReturn(response);
+    when(payload.openInputStream()).thenReturn(oldList, newList);
+
+    underTest.store(context, remote);
+    underTest.store(context, remote);
+
+    verify(composerContentFacet, times(2))
+        .putRewritten(eq(PACKAGES_PATH), writer.capture(), eq(PACKAGES), eq("generated"));
+    verify(composerContentFacet, never())
+        .put(eq(PACKAGES_PATH), any(ComposerJsonWriter.class), eq(PACKAGES));
+
+    OutputStream out = new ByteArrayOutputStream();
+    writer.getAllValues().get(0).writeTo(out);
+    writer.getAllValues().get(1).writeTo(out);
+    verify(composerJsonProcessor).writePackagesFromList(repository, oldList, out);
+    verify(composerJsonProcessor).writePackagesFromList(repository, newList, out);
+  }
+
+  @Test
+  public void revalidationFetchesAndStoresOffThread() throws Exception {
+    ComposerProxyFacetImpl underTest = spy(this.underTest);
+    Content stale = mock(Content.class);
+    Content remote = mock(Content.class);
+    ArgumentCaptor<Context> revalidation = ArgumentCaptor.forClass(Context.class);
+    AtomicReference<String> baseUrl = new AtomicReference<>();
+
+    when(contextAttributes.require(AssetKind.class)).thenReturn(PACKAGE);
+    when(contextAttributes.get(TokenMatcher.State.class)).thenReturn(state);
+    when(request.getPath()).thenReturn("/p2/vendor/project.json");
+    doReturn(stale).when(underTest).getCachedContent(any(Context.class));
+    doReturn(remote).when(underTest).fetch(any(Context.class), eq(stale));
+    doAnswer(invocation -> {
+      baseUrl.set(BaseUrlHolder.get());
+      return remote;
+    }).when(underTest).store(revalidation.capture(), eq(remote));
+
+    BaseUrlHolder.set("http://localhost:8081");
+    Runnable task;
+    try {
+      task = underTest.newRevalidation(context);
+    }
+    finally {
+      BaseUrlHolder.unset();
+    }
+    Thread thread = new Thread(task);
+    thread.start();
+    thread.join();
+
+    assertThat(baseUrl.get(), is("http://localhost:8081"));
+    assertThat(revalidation.getValue(), is(not(context)));
+    assertThat(revalidation.getValue().getRequest().getPath(), is("/p2/vendor/project.json"));
+    assertThat(revalidation.getValue().getAttributes().require(AssetKind.class), is(PACKAGE));
+    assertThat(revalidation.getValue().getAttributes().require(TokenMatcher.State.class), is(state));
+    assertThat(revalidation.getValue().getAttributes().get(ComposerProxyFacetImpl.REVALIDATE), is(Boolean.TRUE));
+    verify(viewFacet, never()).dispatch(any(Request.class));
+  }
+
+  @Test
+  public void revalidationOfUnmodifiedContentStoresNothing() throws Exception {
+    ComposerProxyFacetImpl underTest = spy(this.underTest);
+    Content stale = mock(Content.class);
+
+    when(contextAttributes.require(AssetKind.class)).thenReturn(PACKAGE);
+    when(request.getPath()).thenReturn("/p2/vendor/project.json");
+    doReturn(stale).when(underTest).getCachedContent(any(Context.class));
+    doReturn(null).when(underTest).fetch(any(Context.class), eq(stale));
+
+    underTest.newRevalidation(context).run();
+
+    verify(underTest, never()).store(any(Context.class), any(Content.class));
   }
 
   @Test
@@ -295,6 +454,26 @@ public class ComposerProxyFacetImplTest
     assertThat(underTest.getUrl(context), is("distUrl"));
   }
 
+  @Test
+  public void getUrlZipballFromRecordedDistUrl() throws Exception {
+    when(contextAttributes.require(AssetKind.class)).thenReturn(ZIPBALL);
+    when(contextAttributes.require(TokenMatcher.State.class)).thenReturn(state);
+
+    when(composerContentFacet.getDistUrl("p2/vendor/project~dev.json", "vendor/project", "version"))
+        .thenReturn("distUrl");
+
+    when(state.getTokens()).thenReturn(new ImmutableMap.Builder<String, String>()
+        .put("vendor", "vendor")
+        .put("project", "project")
+        .put("version", "version")
+        .put("name", "project-version")
+        .build());
+
+    assertThat(underTest.getUrl(context), is("distUrl"));
+
+    verify(viewFacet, never()).dispatch(any(Request.class), eq(context));
+  }
+
   @Test(expected = NonResolvableProviderJsonException.class)
   public void getUrlZipballMissingProviderJson() throws Exception {
     when(contextAttributes.require(AssetKind.class)).thenReturn(ZIPBALL);
@@ -312,4 +491,43 @@ public class ComposerProxyFacetImplTest
 
     underTest.getUrl(context);
   }
+
+  @Test
+  public void extractionIsHandedToWorkersOnAssetCreated() throws Exception {
+    AssetCreatedEvent created = mock(AssetCreatedEvent.class);
+    Asset asset = mock(Asset.class);
+    NestedAttributesMap attributes = new NestedAttributesMap("attributes", new HashMap<>());
+    attributes.child(P_COMPOSER_METADATA).set(P_EXTRACTION_PENDING, true);
+    when(repository.getName()).thenReturn("composer-proxy");
+    when(created.isLocal()).thenReturn(true);
+    when(created.getRepositoryName()).thenReturn("composer-proxy");
+    when(created.getAsset()).thenReturn(asset);
+    when(asset.name()).thenReturn(ZIPBALL_PATH);
+    when(asset.attributes()).thenReturn(attributes);
+    when(composerContentFacet.findPendingExtractions()).thenReturn(emptyList());
+
+    underTest.doStart();
+    try {
+      underTest.on(created);
+
+      verify(composerContentFacet, timeout(5000)).extractFormatAttributes(ZIPBALL_PATH);
+    }
+    finally {
+      underTest.doStop();
+    }
+  }
+
+  @Test
+  public void pendingExtractionsAreResumedOnStart() throws Exception {
+    when(repository.getName()).thenReturn("composer-proxy");
+    when(composerContentFacet.findPendingExtractions()).thenReturn(singletonList(ZIPBALL_PATH));
+
+    underTest.doStart();
+    try {
+      verify(composerContentFacet, timeout(5000)).extractFormatAttributes(ZIPBALL_PATH);
+    }
+    finally {
+      underTest.doStop();
+    }
+  }
 }